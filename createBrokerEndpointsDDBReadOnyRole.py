@@ -41,7 +41,10 @@ def create_read_only_policy (resource_arn):
                     "dynamodb:Scan"
                 ],
                 "Effect": "Allow",
-                "Resource": resource_arn,
+                "Resource": [
+                    resource_arn,
+                    resource_arn + "/index/*"
+                ],
                 "Sid": "BrokerEndpointsDynamodb"
             },
             {
@@ -1,34 +1,115 @@
 import argparse
+import os
+from datetime import datetime, timedelta, timezone
 import boto3
+from boto3.dynamodb.conditions import Key
 from botocore.exceptions import ClientError
 
+# Changes newer than this may not be in the change sequence index yet, so the cursor does not move past them
+INDEX_SETTLE_SECONDS = 30
+
 def getHostedZoneId():
     response = r53Client.list_hosted_zones()
     for hostedZone in response['HostedZones']:
         if hostedZone['Name'] == "kafka." + str(region) + ".amazonaws.com.":
             return hostedZone['Id'].split("/")[2]
 
-def getServiceEndpoints(ddbResource):
-    try:
-        table = ddbResource.Table('Broker_Endpoint_Services')
-        response=table.scan()
-        serviceEndpoints = response['Items']
-        return serviceEndpoints
-    except ClientError as err:
-        print(err.response['Error'])
+def readAllPages(operation, **kwargs):
+    items = []
+    while True:
+        response = operation(**kwargs)
+        items.extend(response['Items'])
+        if 'LastEvaluatedKey' not in response:
+            return items
+        kwargs['ExclusiveStartKey'] = response['LastEvaluatedKey']
+
+def getChangeSequence(table):
+    # Each cluster has its own change sequence, kept in a row outside the cluster's partition
+    response = table.get_item(Key={'Cluster_ARN': '#change-sequence#' + mskClusterArn, 'Broker_ID': 0}, ConsistentRead=True)
+    return int(response['Item']['Change_Sequence']) if 'Item' in response else 0
+
+def getServiceEndpoints(ddbResource, cursor):
+    # Returns the rows to sync and the cursor to sync later changes from: all rows without a cursor,
+    # else only the rows changed since the cursor, including tombstones of deleted rows
+    table = ddbResource.Table('Broker_Endpoint_Services')
+    if cursor is None:
+        nextCursor = getChangeSequence(table) if cursorFile else 0
+        if mskClusterArn:
+            items = readAllPages(table.query, KeyConditionExpression=Key('Cluster_ARN').eq(mskClusterArn), ConsistentRead=True)
+        else:
+            items = readAllPages(table.scan, ConsistentRead=True)
+        return [i for i in items if 'Service_Endpoint_DNS' in i and not i.get('Deleted', False)], nextCursor
+
+    items = readAllPages(table.query, IndexName='Change_Sequence_Index',
+                         KeyConditionExpression=Key('Change_Feed').eq(mskClusterArn) & Key('Change_Sequence').gt(cursor))
+    nextCursor = cursor
+    settled = datetime.now(timezone.utc) - timedelta(seconds=INDEX_SETTLE_SECONDS)
+    for item in items:
+        if datetime.strptime(item['Updated_At'][:19], '%Y-%m-%dT%H:%M:%S').replace(tzinfo=timezone.utc) > settled:
+            break
+        nextCursor = int(item['Change_Sequence'])
+    for item in items:
+        if item.get('Deleted', False):
+            print("Broker " + item['Broker_Endpoint'] + " was deleted. Its record set and VPC Endpoint are left in place.")
+    return [i for i in items if not i.get('Deleted', False)], nextCursor
+
+def readCursor():
+    if cursorFile and os.path.exists(cursorFile):
+        with open(cursorFile) as f:
+            return int(f.read().strip())
+    return None
+
+def writeCursor(cursor):
+    if cursorFile:
+        with open(cursorFile, 'w') as f:
+            f.write(str(cursor))
+        print("Synced up to change sequence " + str(cursor))
+
+def getExistingVPCEndpoint(endpointServiceDNS, ec2Client):
+    response = ec2Client.describe_vpc_endpoints(
+        Filters=[
+            {'Name': 'vpc-id', 'Values': [vpcId]},
+            {'Name': 'service-name', 'Values': [endpointServiceDNS]}
+        ]
+    )
+    for vpcEndpoint in response['VpcEndpoints']:
+        if vpcEndpoint['State'].lower() not in ('deleting', 'deleted', 'failed', 'rejected'):
+            return vpcEndpoint
+    return None
 
 def getSubnetIds(originalList, subnetIdToAppend):
     originalList.append(subnetIdToAppend)
     return originalList
 
-def createVPCEndpoints(endpointService, ec2Client):
+def getZoneSubnets(ec2Client):
+    # Maps the Availability Zone IDs of the client subnets to a subnet and to this account's zone name,
+    # as zone names differ between accounts while zone IDs do not
+    zoneSubnets = {}
+    zoneNames = {}
+    for subnet in ec2Client.describe_subnets(SubnetIds=subnetIds)['Subnets']:
+        zoneSubnets.setdefault(subnet['AvailabilityZoneId'], subnet['SubnetId'])
+        zoneNames[subnet['AvailabilityZoneId']] = subnet['AvailabilityZone']
+    return zoneSubnets, zoneNames
+
+def getDNSEntry(vpcEndpoint, zoneName):
+    # The zonal DNS entry of a zone ends its first label with the zone name, e.g. vpce-id-us-east-1a;
+    # the regional one has no zone, and so no region, in its first label
+    for dnsEntry in vpcEndpoint['DnsEntries']:
+        firstLabel = dnsEntry['DnsName'].split(".")[0]
+        if zoneName is not None and firstLabel.endswith("-" + zoneName):
+            return dnsEntry
+        if zoneName is None and str(region) not in firstLabel:
+            return dnsEntry
+    raise RuntimeError("VPC Endpoint " + vpcEndpoint['VpcEndpointId'] + " has no DNS entry" + (" in " + zoneName if zoneName else ""))
+
+def createVPCEndpoints(endpointServiceDNS, endpointSubnetIds, ec2Client):
     try:
         response = ec2Client.create_vpc_endpoint(
             DryRun=False,
             VpcEndpointType='Interface',
             VpcId=vpcId,
-            ServiceName=serviceEndpoint['Service_Endpoint_DNS'],
-            SubnetIds=subnetIds,
+            ServiceName=endpointServiceDNS,
+            SubnetIds=endpointSubnetIds,
             SecurityGroupIds=[
                 endpointSecurityGroupId
             ],
@@ -56,7 +137,7 @@ def createAliasRecordsetForEndpoint(hostedzoneId, endpointDNSName, aliasHostedZo
         ChangeBatch={
             'Changes': [
                 {
-                    'Action': 'CREATE',
+                    'Action': 'UPSERT',
                     'ResourceRecordSet': {
                         'Name': mskBrokerEndpoint,
                         'Type': 'A',
@@ -77,12 +158,18 @@ parser.add_argument("--region", help="region where the Cloudformation template w
 parser.add_argument("--stackName", help="the name of Cloudformation stack ")
 parser.add_argument("--roleArn", help="role ARN of role in MSK cluster account with permission to Broker Endpoints Dynamo DB table")
 parser.add_argument("--profile", help="the name of Cloudformation stack ",default='mskclient')
+parser.add_argument("--mskClusterArn", help="ARN of the MSK cluster to create endpoints for (all clusters in the table if not set)")
+parser.add_argument("--cursorFile", help="file that holds the cluster's change sequence synced up to; only the endpoints changed since are synced if it exists")
 args = parser.parse_args()
+if args.cursorFile and not args.mskClusterArn:
+    parser.error("--cursorFile needs --mskClusterArn, as each cluster has its own change sequence")
 
 region = args.region
 stackName = args.stackName
 profile = args.profile
 roleArn= args.roleArn
+mskClusterArn = args.mskClusterArn
+cursorFile = args.cursorFile
 
 session = boto3.Session(profile_name=profile)
 
@@ -123,18 +210,48 @@ for output in result['Stacks'][0]['Outputs']:
 
 hostedzoneId = getHostedZoneId()
 
-for serviceEndpoint in getServiceEndpoints(ddbResource):
+# Brokers behind a shared NLB share one Endpoint service, so their VPC Endpoint is created once
+vpcEndpointDNSEntries = {}
+
+serviceEndpoints, nextCursor = getServiceEndpoints(ddbResource, readCursor())
+synced = True
+
+# A zonal Endpoint service is only offered in its broker's zone, so its VPC Endpoint goes in the client subnet of that zone
+zoneSubnets, zoneNames = getZoneSubnets(ec2Client) if any('Availability_Zone_ID' in i for i in serviceEndpoints) else ({}, {})
+
+for serviceEndpoint in serviceEndpoints:
     endpointServiceDNS = serviceEndpoint['Service_Endpoint_DNS']
     mskBrokerEndpoint = serviceEndpoint['Broker_Endpoint']
-    print("Creating VPC Endpoint for Service Endpoint: " + endpointServiceDNS)
+    zoneId = serviceEndpoint.get('Availability_Zone_ID')
+    if zoneId is not None and zoneId not in zoneSubnets:
+        synced = False
+        print("No client subnet in Availability Zone " + zoneId + " of the Endpoint service of broker " + mskBrokerEndpoint + ". Skipping it.")
+        continue
     try: 
-        response = createVPCEndpoints(endpointServiceDNS, ec2Client)
-        dnsentries = response['DnsEntries']
-        for dnsEntry in dnsentries:
-            if str(region) not in dnsEntry['DnsName'].split(".")[0]:
-                endpointDNSEntry = dnsEntry
+        if endpointServiceDNS not in vpcEndpointDNSEntries:
+            response = getExistingVPCEndpoint(endpointServiceDNS, ec2Client)
+            if response:
+                print("Using existing VPC Endpoint for Service Endpoint: " + endpointServiceDNS)
+            else:
+                print("Creating VPC Endpoint for Service Endpoint: " + endpointServiceDNS)
+                response = createVPCEndpoints(endpointServiceDNS, [zoneSubnets[zoneId]] if zoneId else subnetIds, ec2Client)
+                if response is None:
+                    raise RuntimeError("Could not create VPC Endpoint for Service Endpoint: " + endpointServiceDNS)
+            vpcEndpointDNSEntries[endpointServiceDNS] = getDNSEntry(response, zoneNames[zoneId] if zoneId else None)
+        endpointDNSEntry = vpcEndpointDNSEntries[endpointServiceDNS]
+        if 'Listener_Port' in serviceEndpoint:
+            print("Broker " + mskBrokerEndpoint + " is reachable on port " + str(serviceEndpoint['Listener_Port']))
+        if 'Port_Mappings' in serviceEndpoint:
+            print("Broker " + mskBrokerEndpoint + " is reachable on ports " + ", ".join(str(i['Listener_Port']) for i in serviceEndpoint['Port_Mappings']))
         #print(endpointDNSEntry)
         response = createAliasRecordsetForEndpoint(hostedzoneId, endpointDNSEntry['DnsName'], endpointDNSEntry['HostedZoneId'], mskBrokerEndpoint)
         #print(response)
     except ClientError as err:
+        synced = False
         print(err.response['Error'])
+    except RuntimeError as err:
+        synced = False
+        print(err)
+
+if synced:
+    writeCursor(nextCursor)
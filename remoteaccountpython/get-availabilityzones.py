@@ -2,11 +2,26 @@ import boto3
 import sys
 import argparse
 import requests
+from boto3.dynamodb.conditions import Key
 from botocore.exceptions import ClientError
 
+def readAllPages(operation, **kwargs):
+    items = []
+    while True:
+        response = operation(**kwargs)
+        items.extend(response['Items'])
+        if 'LastEvaluatedKey' not in response:
+            return items
+        kwargs['ExclusiveStartKey'] = response['LastEvaluatedKey']
+
 def getAZsfromService(serviceEndpoints, ec2Client):
+    endpointDNSNames = set()
     for serviceEndpoint in serviceEndpoints:
-        endpointDNS = serviceEndpoint['Service_Endpoint_DNS']
+        # Change sequence counter rows have no Endpoint service, and tombstones point at deleted ones
+        if 'Service_Endpoint_DNS' not in serviceEndpoint or serviceEndpoint.get('Deleted', False):
+            continue
+        endpointDNSNames.add(serviceEndpoint['Service_Endpoint_DNS'])
+    for endpointDNS in endpointDNSNames:
         serviceEndpointDescription = ec2Client.describe_vpc_endpoint_services(
             DryRun=False,
             ServiceNames= [endpointDNS],
@@ -36,11 +51,13 @@ parser = argparse.ArgumentParser()
 parser.add_argument("--region", help="region where the Cloudformation template was run", default="us-east-1")
 parser.add_argument("--profile", help="Profile to use for AWS credentials", default="mskclient")
 parser.add_argument("--roleArn", help="role ARN of role in MSK cluster account with permission to Broker Endpoints Dynamo DB table")
+parser.add_argument("--mskClusterArn", help="ARN of the MSK cluster to list Availability Zones for (all clusters in the table if not set)")
 args = parser.parse_args()
 
 region = args.region
 roleArn= args.roleArn
 profile = args.profile
+mskClusterArn = args.mskClusterArn
 
 remoteAZs = set()
 AZs = set()
@@ -66,8 +83,10 @@ try:
         aws_session_token=credentials['SessionToken'],
     )
     table = ddbResource.Table('Broker_Endpoint_Services')
-    response=table.scan()
-    serviceEndpoints = response['Items']
+    if mskClusterArn:
+        serviceEndpoints = readAllPages(table.query, KeyConditionExpression=Key('Cluster_ARN').eq(mskClusterArn), ConsistentRead=True)
+    else:
+        serviceEndpoints = readAllPages(table.scan, ConsistentRead=True)
 except ClientError as err:
     print(err.response['Error'])
 
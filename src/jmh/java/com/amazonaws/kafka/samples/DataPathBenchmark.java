@@ -0,0 +1,71 @@
+package com.amazonaws.kafka.samples;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the data path probe against a local Kafka broker through a {@link TcpProxy} that stands in for the broker's NLB.
+ * The broker has to advertise the proxy's port, the way MSK brokers advertise the port of their endpoint, e.g. with
+ * listeners=PLAINTEXT://localhost:9092 and advertised.listeners=PLAINTEXT://localhost:19092. Each invocation prints
+ * the probe's latencies and throughput.
+ *
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="DataPathBenchmark -p brokerPort=9092 -p proxyPort=19092 -p latencyMillis=0,2"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DataPathBenchmark {
+
+    @State(Scope.Thread)
+    public static class Environment {
+
+        @Param({"localhost"})
+        String brokerHost;
+
+        @Param({"9092"})
+        int brokerPort;
+
+        @Param({"19092"})
+        int proxyPort;
+
+        @Param({"0"})
+        long latencyMillis;
+
+        @Param({"1000"})
+        int records;
+
+        @Param({"1024"})
+        int recordSize;
+
+        TcpProxy proxy;
+        RunMetrics metrics;
+        Clients clients;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            proxy = new TcpProxy(proxyPort, brokerHost, brokerPort, latencyMillis);
+            metrics = new RunMetrics();
+            clients = new Clients(metrics);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            System.out.println(String.format("records=%d recordSize=%d latencyMillis=%d %s", records, recordSize, latencyMillis, metrics.toReport().get("probe")));
+            clients.close();
+            proxy.close();
+        }
+    }
+
+    @Benchmark
+    public void probe(Environment environment) throws InterruptedException, ExecutionException, TimeoutException {
+        new DataPathProbe(environment.clients, environment.metrics).run("localhost:" + environment.proxyPort, Collections.emptyMap(), "privatelink-probe",
+                environment.records, environment.recordSize, TimeUnit.SECONDS.toMillis(60), 0L);
+    }
+}
@@ -0,0 +1,134 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Drives the provisioning and teardown paths against the local AWS stand-ins. Each invocation runs one full pass
+ * over a fresh cluster, so SingleShotTime reports the wall-clock time of a run; the API call counts are printed
+ * after each invocation.
+ *
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="ProvisioningBenchmark -p brokers=3,30,120"
+ *
+ * listeners is the number of port mappings per broker NLB, e.g. -p listeners=1,3 for TLS, SASL/SCRAM and IAM.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ProvisioningBenchmark {
+
+    private static final String TABLE_NAME = "Broker_Endpoint_Services";
+    private static final String CLUSTER_ARN = "arn:aws:kafka:us-east-1:123456789012:cluster/fake/00000000-0000-0000-0000-000000000000-1";
+    private static final List<String> ALLOWED_PRINCIPALS = Collections.singletonList("arn:aws:iam::210987654321:root");
+
+    @State(Scope.Thread)
+    public static class Environment {
+
+        @Param({"3", "30", "120"})
+        int brokers;
+
+        @Param({"1"})
+        int listeners;
+
+        @Param({"10"})
+        int maxConcurrency;
+
+        @Param({"50"})
+        long latencyMillis;
+
+        @Param({"3000"})
+        long provisioningMillis;
+
+        @Param({"0.0", "0.1"})
+        double throttleRate;
+
+        FakeAws aws;
+        RunMetrics metrics;
+        MSK msk;
+        NLB nlb;
+        LoadBalancerWaiter lbWaiter;
+        ServiceEndpoint serviceEndpoint;
+        ManageEndpointServicesInfo endpointServicesInfo;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            aws = new FakeAws(latencyMillis, provisioningMillis, throttleRate);
+            metrics = new RunMetrics();
+            MetadataCache cache = new MetadataCache(0L, null);
+            RunJournal journal = new RunJournal(null, false);
+            FakeLoadBalancing lbClient = new FakeLoadBalancing(aws);
+            msk = new MSK(new FakeKafka(aws, brokers), metrics, cache);
+            nlb = new NLB(lbClient, metrics, cache, journal);
+            lbWaiter = new LoadBalancerWaiter(lbClient, cache);
+            endpointServicesInfo = new ManageEndpointServicesInfo(new FakeDynamoDB(aws), metrics);
+            serviceEndpoint = new ServiceEndpoint(new FakeEC2(aws), lbWaiter, endpointServicesInfo, metrics, cache, journal);
+            endpointServicesInfo.createTableIfNotExists(TABLE_NAME, BillingMode.PAY_PER_REQUEST, 0L, 0L);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            System.out.println(String.format("brokers=%d throttleRate=%s %s", brokers, throttleRate, aws.report()));
+            lbWaiter.shutdown();
+            aws.shutdown();
+        }
+
+        void provision() throws ExecutionException, InterruptedException {
+            BrokerTopology brokers = msk.getTopology(CLUSTER_ARN);
+            List<PortMapping> portMappings = new ArrayList<>();
+            for (int i = 0; i < listeners; i++) {
+                portMappings.add(new PortMapping(9094 + 2 * i, 9094 + 2 * i));
+            }
+            Map<String, Integer> lbArnsBrokerIdMap = nlb.createNLBSet(brokers, false, portMappings, serviceEndpoint.getVPCId(brokers.getSubnets().get(0)), maxConcurrency);
+            serviceEndpoint.createVpcEndpointServices(lbArnsBrokerIdMap, ALLOWED_PRINCIPALS, TABLE_NAME, CLUSTER_ARN, brokers.getBrokerEndpointMap(), null, portMappings);
+        }
+    }
+
+    /**
+     * Starts from a cluster that has already been provisioned, so the invocation measures the teardown alone.
+     */
+    @State(Scope.Thread)
+    public static class ProvisionedEnvironment extends Environment {
+
+        @Setup(Level.Invocation)
+        public void provisionFirst() throws ExecutionException, InterruptedException {
+            provision();
+            aws.resetCounters();
+        }
+    }
+
+    @Benchmark
+    public void provision(Environment environment) throws ExecutionException, InterruptedException {
+        environment.provision();
+    }
+
+    @Benchmark
+    public void teardown(ProvisionedEnvironment environment) throws ExecutionException, InterruptedException {
+        Map<Integer, EndpointServiceRecord> records = environment.endpointServicesInfo.getClusterRecords(TABLE_NAME, CLUSTER_ARN);
+        new Teardown(environment.nlb, environment.serviceEndpoint, environment.endpointServicesInfo, environment.metrics).deleteBrokers(TABLE_NAME, CLUSTER_ARN, records, environment.maxConcurrency);
+    }
+
+    /**
+     * Allows 20 more consumer accounts on every endpoint service of a provisioned cluster.
+     */
+    @Benchmark
+    public int onboardPrincipals(ProvisionedEnvironment environment) {
+        List<String> allowedPrincipals = new ArrayList<>(ALLOWED_PRINCIPALS);
+        for (int i = 0; i < 20; i++) {
+            allowedPrincipals.add(String.format("arn:aws:iam::3000000000%02d:root", i));
+        }
+        List<String> serviceIds = environment.endpointServicesInfo.getClusterRecords(TABLE_NAME, CLUSTER_ARN).values().stream()
+                .map(EndpointServiceRecord::getServiceId)
+                .collect(Collectors.toList());
+        return environment.serviceEndpoint.syncPermissions(serviceIds, allowedPrincipals);
+    }
+}
@@ -0,0 +1,295 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Client side limiter for one AWS service. Every attempt takes a token from a token bucket, and at most maxInFlight
+ * requests run at a time. The service's client submits its calls through {@link #gate(ExecutorService, ScheduledExecutorService)},
+ * which holds a call back until it has a permit and a token and only then hands it to the shared executor, so a throttled
+ * service never takes more than maxInFlight of the shared threads. Retries, and calls made on the caller's thread, take
+ * their token and permit as a request handler.
+ * The refill rate is halved whenever the service throttles a request and climbs back towards maxRate
+ * on successful attempts, so the tool settles just under the rate the account allows.
+ */
+class AdaptiveRateLimiter extends RequestHandler2 {
+
+    private static final HandlerContextKey<AtomicBoolean> DISPATCHED = new HandlerContextKey<>("AdaptiveRateLimiterDispatched");
+    private static final HandlerContextKey<Boolean> ATTEMPTED = new HandlerContextKey<>("AdaptiveRateLimiterAttempted");
+    private static final HandlerContextKey<Boolean> IN_FLIGHT = new HandlerContextKey<>("AdaptiveRateLimiterInFlight");
+    private static final Logger logger = LogManager.getLogger(AdaptiveRateLimiter.class);
+
+    private final String serviceName;
+    private final RunMetrics metrics;
+    private final double maxRate;
+    private final double minRate;
+    private final Semaphore inFlight;
+    private final Queue<Call> pending;
+    // The permit of a dispatched call, set on its thread until its request starts, so the handler knows its permit and
+    // token are taken and can give the permit back as soon as the request is done rather than after its callbacks ran.
+    private final ThreadLocal<AtomicBoolean> dispatched;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private boolean dispatchScheduled;
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+
+    AdaptiveRateLimiter(String serviceName, double maxRate, int maxInFlight, RunMetrics metrics) {
+        this.serviceName = serviceName;
+        this.metrics = metrics;
+        this.maxRate = maxRate;
+        this.minRate = Math.min(maxRate, 0.5);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.dispatched = new ThreadLocal<>();
+        this.rate = maxRate;
+        this.tokens = Math.max(1.0, maxRate);
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    private static final class Call {
+        private final Runnable task;
+        private final long submitNanos;
+
+        private Call(Runnable task) {
+            this.task = task;
+            this.submitNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The executor the service's client is built with. Calls wait in a queue, without a thread, until they can be
+     * dispatched to the shared executor; the scheduler wakes the queue up when the next token is due. Shutting it down,
+     * as the client's shutdown does, drops the waiting calls but leaves the shared executor running.
+     */
+    synchronized ExecutorService gate(ExecutorService executor, ScheduledExecutorService scheduler) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+        return new AbstractExecutorService() {
+            private volatile boolean shutdown;
+
+            @Override
+            public void execute(Runnable task) {
+                if (shutdown) {
+                    throw new RejectedExecutionException(String.format("%s client is shut down \n", serviceName));
+                }
+                pending.add(new Call(task));
+                dispatch();
+            }
+
+            @Override
+            public void shutdown() {
+                shutdown = true;
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                shutdown = true;
+                List<Runnable> dropped = new ArrayList<>();
+                for (Call call = pending.poll(); call != null; call = pending.poll()) {
+                    dropped.add(call.task);
+                }
+                return dropped;
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return shutdown;
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return shutdown && pending.isEmpty();
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) {
+                return isTerminated();
+            }
+        };
+    }
+
+    /**
+     * Hands waiting calls to the shared executor while there are permits and tokens. Without a token it schedules
+     * itself for when the next one is due; without a permit the next call to finish runs it.
+     */
+    private synchronized void dispatch() {
+        while (!pending.isEmpty() && !dispatchScheduled) {
+            if (!inFlight.tryAcquire()) {
+                return;
+            }
+            long waitMillis = takeToken();
+            if (waitMillis > 0) {
+                inFlight.release();
+                dispatchScheduled = true;
+                scheduler.schedule(() -> {
+                    synchronized (this) {
+                        dispatchScheduled = false;
+                    }
+                    dispatch();
+                }, waitMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            Call call = pending.poll();
+            if (System.nanoTime() - call.submitNanos > TimeUnit.MILLISECONDS.toNanos(1)) {
+                metrics.recordWait("rate_limit:" + serviceName, call.submitNanos);
+            }
+            try {
+                AtomicBoolean permit = new AtomicBoolean(true);
+                executor.execute(() -> {
+                    dispatched.set(permit);
+                    try {
+                        call.task.run();
+                    } finally {
+                        dispatched.remove();
+                        release(permit);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        AtomicBoolean permit = dispatched.get();
+        if (permit != null) {
+            dispatched.remove();
+            request.addHandlerContext(DISPATCHED, permit);
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            long start = System.nanoTime();
+            inFlight.acquireUninterruptibly();
+            metrics.recordWait("in_flight_limit:" + serviceName, start);
+        }
+        request.addHandlerContext(IN_FLIGHT, Boolean.TRUE);
+    }
+
+    /**
+     * The first attempt of a dispatched call took its token before it was dispatched; any other attempt takes one here
+     * and waits for it.
+     */
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context) {
+        Request<?> request = context.getRequest();
+        if (request.getHandlerContext(DISPATCHED) != null && !Boolean.TRUE.equals(request.getHandlerContext(ATTEMPTED))) {
+            request.addHandlerContext(ATTEMPTED, Boolean.TRUE);
+            return;
+        }
+        long waitMillis = reserveToken();
+        if (waitMillis > 0) {
+            long start = System.nanoTime();
+            try {
+                TimeUnit.MILLISECONDS.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            metrics.recordWait("rate_limit:" + serviceName, start);
+        }
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        Exception exception = context.getException();
+        if (exception == null) {
+            onSuccess();
+        } else if (exception instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) exception)) {
+            onThrottled();
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        release(request);
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        release(request);
+    }
+
+    private void release(Request<?> request) {
+        if (Boolean.TRUE.equals(request.getHandlerContext(IN_FLIGHT))) {
+            request.addHandlerContext(IN_FLIGHT, Boolean.FALSE);
+            inFlight.release();
+        } else if (request.getHandlerContext(DISPATCHED) != null) {
+            release(request.getHandlerContext(DISPATCHED));
+        }
+    }
+
+    private void release(AtomicBoolean permit) {
+        if (permit.compareAndSet(true, false)) {
+            inFlight.release();
+            dispatch();
+        }
+    }
+
+    private synchronized void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1.0, rate), tokens + rate * (now - lastRefillNanos) / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Takes a token if one is there and returns 0, or returns how long until the next one is due without taking it.
+     */
+    private synchronized long takeToken() {
+        refill();
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1.0 - tokens) / rate * 1000));
+    }
+
+    /**
+     * Takes a token and returns how long the caller has to wait for it.
+     */
+    private synchronized long reserveToken() {
+        refill();
+        tokens -= 1.0;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000);
+    }
+
+    private synchronized void onThrottled() {
+        rate = Math.max(minRate, rate / 2);
+        tokens = Math.min(tokens, 0);
+        logger.info("{} throttled the request. Lowering request rate to {} per second. \n", serviceName, String.format("%.2f", rate));
+    }
+
+    private synchronized void onSuccess() {
+        if (rate < maxRate) {
+            rate = Math.min(maxRate, rate + maxRate * 0.02);
+        }
+    }
+
+    /**
+     * The current refill rate, in tokens per second.
+     */
+    synchronized double getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,22 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bridges the SDK's callback based async API to a CompletableFuture, so per-broker calls can be chained
+ * without blocking a thread on {@code Future.get()}.
+ */
+class AsyncResult<REQUEST extends AmazonWebServiceRequest, RESULT> extends CompletableFuture<RESULT> implements AsyncHandler<REQUEST, RESULT> {
+
+    @Override
+    public void onError(Exception exception) {
+        completeExceptionally(exception);
+    }
+
+    @Override
+    public void onSuccess(REQUEST request, RESULT result) {
+        complete(result);
+    }
+}
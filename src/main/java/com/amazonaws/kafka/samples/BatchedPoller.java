@@ -0,0 +1,154 @@
+package com.amazonaws.kafka.samples;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for resources to settle by describing all pending ones together, in batches, with backoff between rounds.
+ * Each caller's future completes as soon as its own resource settles, and fails once it has waited longer than the
+ * maximum wait, so a resource that never settles or an API that keeps failing cannot hold a run forever.
+ *
+ * @param <S> the settled state a caller's future completes with
+ */
+abstract class BatchedPoller<S> {
+
+    private static final Logger logger = LogManager.getLogger(BatchedPoller.class);
+
+    private final String resourceName;
+    private final int batchSize;
+    private final long firstDelayMillis;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long maxWaitMillis;
+    private final Map<String, Waiter<S>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private boolean polling = false;
+    private int attempt = 0;
+    private volatile Throwable lastError;
+
+    private static class Waiter<S> {
+        private final CompletableFuture<S> future = new CompletableFuture<>();
+        private final long deadline;
+
+        private Waiter(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    BatchedPoller(String resourceName, String threadName, int batchSize, long firstDelayMillis, long initialDelayMillis, long maxDelayMillis, long maxWaitMillis) {
+        this.resourceName = resourceName;
+        this.batchSize = batchSize;
+        this.firstDelayMillis = firstDelayMillis;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Describes one batch of pending resources and calls {@link #complete} or {@link #fail} for those that settled.
+     * A failed future is logged and the batch is described again in the next round.
+     */
+    abstract CompletableFuture<Void> describe(List<String> ids);
+
+    CompletableFuture<S> waitFor(String id) {
+        CompletableFuture<S> future = pending.computeIfAbsent(id, i -> new Waiter<>(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis))).future;
+        synchronized (this) {
+            if (!polling) {
+                polling = true;
+                attempt = 0;
+                scheduler.schedule(this::poll, firstDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return future;
+    }
+
+    void complete(String id, S state) {
+        Waiter<S> waiter = pending.remove(id);
+        if (waiter != null) {
+            waiter.future.complete(state);
+        }
+    }
+
+    void fail(String id, Throwable cause) {
+        Waiter<S> waiter = pending.remove(id);
+        if (waiter != null) {
+            waiter.future.completeExceptionally(cause);
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        pending.values().forEach(i -> i.future.cancel(false));
+    }
+
+    private void poll() {
+        CompletableFuture<Void> round = CompletableFuture.completedFuture(null);
+        try {
+            failExpired();
+            List<String> ids = new ArrayList<>(pending.keySet());
+            List<CompletableFuture<Void>> requests = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i += batchSize) {
+                requests.add(describeBatch(new ArrayList<>(ids.subList(i, Math.min(i + batchSize, ids.size())))));
+            }
+            round = CompletableFuture.allOf(requests.toArray(new CompletableFuture[0]));
+        } catch (RuntimeException e) {
+            logger.error("Could not check state of {}s. Retrying. \n", resourceName);
+            logger.error(Util.stackTrace(e));
+        } finally {
+            round.whenComplete((i, e) -> scheduleNext());
+        }
+    }
+
+    private CompletableFuture<Void> describeBatch(List<String> ids) {
+        CompletableFuture<Void> described;
+        try {
+            described = describe(ids);
+        } catch (RuntimeException e) {
+            described = Util.failedFuture(e);
+        }
+        return described.handle((i, e) -> {
+            if (e != null) {
+                lastError = Util.unwrap(e);
+                logger.error("Could not check state of {}s {}. Retrying. \n", resourceName, ids);
+                logger.error(Util.stackTrace(lastError));
+            }
+            return null;
+        });
+    }
+
+    private void failExpired() {
+        long now = System.nanoTime();
+        pending.forEach((id, waiter) -> {
+            if (now - waiter.deadline > 0 && pending.remove(id, waiter)) {
+                Throwable error = lastError;
+                waiter.future.completeExceptionally(new RuntimeException(String.format("%s %s did not settle within %d ms%s \n",
+                        resourceName, id, maxWaitMillis, error != null ? ", last error: " + error : "")));
+            }
+        });
+    }
+
+    private void scheduleNext() {
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                polling = false;
+                return;
+            }
+            long jitteredDelay = Util.backoffWithJitter(attempt++, initialDelayMillis, maxDelayMillis);
+            logger.info("{} {}s still pending. Checking again in {} ms. \n", pending.size(), resourceName, jitteredDelay);
+            scheduler.schedule(this::poll, jitteredDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.kafka.model.BrokerNodeInfo;
+import com.amazonaws.services.kafka.model.NodeInfo;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable snapshot of a cluster's brokers, built once from the complete MSK node list and shared by the NLB,
+ * endpoint service and table writes of a run. Brokers are keyed and ordered by their broker ID, and the names of the
+ * resources created for a broker are derived here only.
+ */
+final class BrokerTopology {
+
+    /**
+     * One broker: its ID, client VPC IP and subnet, and all its endpoints.
+     */
+    static final class Broker {
+        private final int id;
+        private final String ip;
+        private final String subnet;
+        private final List<String> endpoints;
+
+        private Broker(int id, String ip, String subnet, List<String> endpoints) {
+            this.id = id;
+            this.ip = ip;
+            this.subnet = subnet;
+            this.endpoints = endpoints;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        String getIp() {
+            return ip;
+        }
+
+        String getSubnet() {
+            return subnet;
+        }
+
+        List<String> getEndpoints() {
+            return endpoints;
+        }
+
+        /**
+         * The broker's first endpoint, the one its record and alias are written for.
+         */
+        String getEndpoint() {
+            return endpoints.isEmpty() ? null : endpoints.get(0);
+        }
+
+        /**
+         * Name of the broker's own NLB. It holds the broker's IP, so a broker that moves to a new IP gets a new NLB.
+         */
+        String getNlbName() {
+            return "NLB-MSKBroker-" + ip.replace(".", "-") + "-" + id;
+        }
+
+        String getTargetGroupName() {
+            return "TG-MSKBroker-" + ip.replace(".", "-") + "-" + id;
+        }
+
+        /**
+         * Names of the broker's target groups, one per port mapping, in the order of the mappings.
+         */
+        Map<String, PortMapping> getTargetGroupNames(List<PortMapping> portMappings) {
+            return BrokerTopology.getTargetGroupNames(getNlbName(), portMappings);
+        }
+    }
+
+    /**
+     * Names of the target groups of a broker NLB, one per port mapping. The first mapping's target group keeps the name
+     * of a single-port broker, TG-MSKBroker-ip-id, and the others add their listener port to a shorter prefix,
+     * TG-MSK-ip-id-port, to stay within 32 characters.
+     */
+    static Map<String, PortMapping> getTargetGroupNames(String nlbName, List<PortMapping> portMappings) {
+        String suffix = nlbName.substring("NLB-MSKBroker-".length());
+        Map<String, PortMapping> targetGroupNames = new LinkedHashMap<>();
+        for (int i = 0; i < portMappings.size(); i++) {
+            targetGroupNames.put(i == 0 ? "TG-MSKBroker-" + suffix : "TG-MSK-" + suffix + "-" + portMappings.get(i).getListenerPort(), portMappings.get(i));
+        }
+        return targetGroupNames;
+    }
+
+    private final SortedMap<Integer, Broker> brokers;
+    private final List<String> subnets;
+    private final Map<Integer, String> brokerIPMap;
+    private final Map<Integer, String> brokerEndpointMap;
+    private final Map<Integer, String> brokerSubnetMap;
+
+    private BrokerTopology(SortedMap<Integer, Broker> brokers, List<String> subnets) {
+        this.brokers = Collections.unmodifiableSortedMap(brokers);
+        this.subnets = Collections.unmodifiableList(subnets);
+        SortedMap<Integer, String> brokerIPMap = new TreeMap<>();
+        SortedMap<Integer, String> brokerEndpointMap = new TreeMap<>();
+        SortedMap<Integer, String> brokerSubnetMap = new TreeMap<>();
+        brokers.values().forEach(i -> {
+            brokerIPMap.put(i.getId(), i.getIp());
+            brokerEndpointMap.put(i.getId(), i.getEndpoint());
+            brokerSubnetMap.put(i.getId(), i.getSubnet());
+        });
+        this.brokerIPMap = Collections.unmodifiableSortedMap(brokerIPMap);
+        this.brokerEndpointMap = Collections.unmodifiableSortedMap(brokerEndpointMap);
+        this.brokerSubnetMap = Collections.unmodifiableSortedMap(brokerSubnetMap);
+    }
+
+    /**
+     * Builds the topology from all pages of ListNodes. Nodes other than brokers, such as controller nodes, are left out.
+     */
+    static BrokerTopology fromNodes(List<NodeInfo> nodes) {
+        SortedMap<Integer, Broker> brokers = new TreeMap<>();
+        for (NodeInfo node : nodes) {
+            BrokerNodeInfo brokerNodeInfo = node.getBrokerNodeInfo();
+            if (brokerNodeInfo == null || brokerNodeInfo.getBrokerId() == null) {
+                continue;
+            }
+            int brokerId = brokerNodeInfo.getBrokerId().intValue();
+            List<String> endpoints = brokerNodeInfo.getEndpoints() != null ? new ArrayList<>(brokerNodeInfo.getEndpoints()) : new ArrayList<>();
+            brokers.put(brokerId, new Broker(brokerId, brokerNodeInfo.getClientVpcIpAddress(), brokerNodeInfo.getClientSubnet(), Collections.unmodifiableList(endpoints)));
+        }
+        Set<String> subnets = new LinkedHashSet<>();
+        brokers.values().forEach(i -> subnets.add(i.getSubnet()));
+        return new BrokerTopology(brokers, new ArrayList<>(subnets));
+    }
+
+    /**
+     * The given brokers only. The subnets stay those of the whole cluster, as NLBs are placed in all of them.
+     */
+    BrokerTopology subset(Collection<Integer> brokerIds) {
+        SortedMap<Integer, Broker> subset = new TreeMap<>();
+        brokerIds.forEach(i -> {
+            if (brokers.containsKey(i)) {
+                subset.put(i, brokers.get(i));
+            }
+        });
+        return new BrokerTopology(subset, subnets);
+    }
+
+    Collection<Broker> getBrokers() {
+        return brokers.values();
+    }
+
+    Set<Integer> getBrokerIds() {
+        return brokers.keySet();
+    }
+
+    Broker getBroker(int brokerId) {
+        return brokers.get(brokerId);
+    }
+
+    int size() {
+        return brokers.size();
+    }
+
+    boolean isEmpty() {
+        return brokers.isEmpty();
+    }
+
+    /**
+     * The client subnets of the brokers, each once, in broker ID order.
+     */
+    List<String> getSubnets() {
+        return subnets;
+    }
+
+    Map<Integer, String> getBrokerIPMap() {
+        return brokerIPMap;
+    }
+
+    Map<Integer, String> getBrokerEndpointMap() {
+        return brokerEndpointMap;
+    }
+
+    Map<Integer, String> getBrokerSubnetMap() {
+        return brokerSubnetMap;
+    }
+}
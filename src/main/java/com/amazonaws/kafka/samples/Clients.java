@@ -1,7 +1,11 @@
 package com.amazonaws.kafka.samples;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationAsync;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationAsyncClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
@@ -12,58 +16,220 @@ import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingA
 import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingAsyncClientBuilder;
 import com.amazonaws.services.kafka.AWSKafkaAsync;
 import com.amazonaws.services.kafka.AWSKafkaAsyncClientBuilder;
-import com.amazonaws.services.s3.model.Region;
+import com.amazonaws.services.route53.AmazonRoute53Async;
+import com.amazonaws.services.route53.AmazonRoute53AsyncClientBuilder;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
 import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
 
 import java.util.Map;
-
-public class Clients {
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the SDK clients on first use. All clients share one bounded executor and one connection configuration and
+ * report their API calls to the run's {@link RunMetrics}. Each rate limited client reaches the executor through its
+ * service's {@link AdaptiveRateLimiter}, so it holds at most that service's in-flight limit of its threads.
+ * {@link #close()} shuts down every client that was built, followed by the executor.
+ */
+public class Clients implements AutoCloseable {
 
     private static final DefaultAWSCredentialsProviderChain defaultAWSCredentialsProviderChain = new DefaultAWSCredentialsProviderChain();
 
-    private static final AWSKafkaAsyncClientBuilder builder = AWSKafkaAsyncClientBuilder.standard()
-            .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
-            .withCredentials(defaultAWSCredentialsProviderChain);
-
-    private final AmazonCloudFormationAsyncClientBuilder amazonCloudFormationAsyncBuilder = AmazonCloudFormationAsyncClientBuilder.standard()
-            .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
-            .withCredentials(defaultAWSCredentialsProviderChain);
+    private final RunMetrics metrics;
+
+    // One limiter per service, shared by every client of that service.
+    private final AdaptiveRateLimiter mskRateLimiter;
+    private final AdaptiveRateLimiter ec2RateLimiter;
+    private final AdaptiveRateLimiter lbRateLimiter;
+    private final AdaptiveRateLimiter dynamoDBRateLimiter;
+    private final AdaptiveRateLimiter route53RateLimiter;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final ClientConfiguration clientConfiguration;
+
+    private AWSKafkaAsync mskClient;
+    private AmazonEC2Async ec2Client;
+    private AmazonElasticLoadBalancingAsync lbClient;
+    private AmazonDynamoDBAsync dynamoDBClient;
+    private AmazonCloudFormationAsync cloudFormationClient;
+    private AmazonRoute53Async route53Client;
+    private STSAssumeRoleSessionCredentialsProvider tableCredentialsProvider;
+
+    Clients(RunMetrics metrics) {
+        this.metrics = metrics;
+        this.mskRateLimiter = new AdaptiveRateLimiter("Amazon MSK", PrivateLinkCrossAccount.mskRequestRate, PrivateLinkCrossAccount.mskMaxInFlight, metrics);
+        this.ec2RateLimiter = new AdaptiveRateLimiter("Amazon EC2", PrivateLinkCrossAccount.ec2RequestRate, PrivateLinkCrossAccount.ec2MaxInFlight, metrics);
+        this.lbRateLimiter = new AdaptiveRateLimiter("Elastic Load Balancing", PrivateLinkCrossAccount.lbRequestRate, PrivateLinkCrossAccount.lbMaxInFlight, metrics);
+        this.dynamoDBRateLimiter = new AdaptiveRateLimiter("Amazon DynamoDB", PrivateLinkCrossAccount.ddbRequestRate, PrivateLinkCrossAccount.ddbMaxInFlight, metrics);
+        this.route53RateLimiter = new AdaptiveRateLimiter("Amazon Route 53", PrivateLinkCrossAccount.route53RequestRate, PrivateLinkCrossAccount.route53MaxInFlight, metrics);
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(PrivateLinkCrossAccount.executorThreads, PrivateLinkCrossAccount.executorThreads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "aws-client-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.executor = threadPoolExecutor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "aws-client-rate-limit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Throttled calls are retried by the SDK with its jittered backoff, on top of the client side rate limiting.
+        this.clientConfiguration = new ClientConfiguration()
+                .withRetryPolicy(PredefinedRetryPolicies.getDefaultRetryPolicyWithCustomMaxRetries(PrivateLinkCrossAccount.maxErrorRetry))
+                .withMaxConnections(PrivateLinkCrossAccount.maxConnections)
+                .withConnectionTTL(PrivateLinkCrossAccount.connectionTTL)
+                .withTcpKeepAlive(PrivateLinkCrossAccount.tcpKeepAlive);
+    }
 
-    private static final AmazonEC2AsyncClientBuilder amazonEC2AsyncClientBuilder = AmazonEC2AsyncClientBuilder.standard()
-            .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
-            .withCredentials(defaultAWSCredentialsProviderChain);
+    synchronized AmazonCloudFormationAsync getCloudFormationClient() {
+        if (cloudFormationClient == null) {
+            cloudFormationClient = AmazonCloudFormationAsyncClientBuilder.standard()
+                    .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                    .withCredentials(defaultAWSCredentialsProviderChain)
+                    .withClientConfiguration(clientConfiguration)
+                    .withExecutorFactory(() -> executor)
+                    .withRequestHandlers(metrics.apiCallHandler())
+                    .build();
+        }
+        return cloudFormationClient;
+    }
 
-    private static final AmazonElasticLoadBalancingAsyncClientBuilder amazonElasticLoadBalancingAsyncClientBuilder = AmazonElasticLoadBalancingAsyncClientBuilder.standard()
-            .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
-            .withCredentials(defaultAWSCredentialsProviderChain);
+    synchronized AWSKafkaAsync getMSKClient() {
+        if (mskClient == null) {
+            mskClient = AWSKafkaAsyncClientBuilder.standard()
+                    .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                    .withCredentials(defaultAWSCredentialsProviderChain)
+                    .withClientConfiguration(clientConfiguration)
+                    .withExecutorFactory(() -> mskRateLimiter.gate(executor, scheduler))
+                    .withRequestHandlers(metrics.apiCallHandler(), mskRateLimiter)
+                    .build();
+        }
+        return mskClient;
+    }
 
-    private static final AmazonDynamoDBAsyncClientBuilder amazonDynamoDBAsyncClientBuilder = AmazonDynamoDBAsyncClientBuilder.standard()
-            .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
-            .withCredentials(defaultAWSCredentialsProviderChain);
+    synchronized AmazonEC2Async getEC2Client(){
+        if (ec2Client == null) {
+            ec2Client = AmazonEC2AsyncClientBuilder.standard()
+                    .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                    .withCredentials(defaultAWSCredentialsProviderChain)
+                    .withClientConfiguration(clientConfiguration)
+                    .withExecutorFactory(() -> ec2RateLimiter.gate(executor, scheduler))
+                    .withRequestHandlers(metrics.apiCallHandler(), ec2RateLimiter)
+                    .build();
+        }
+        return ec2Client;
+    }
 
-    public AmazonCloudFormationAsync createCloudFormationClient() {
-        return amazonCloudFormationAsyncBuilder.build();
+    synchronized AmazonElasticLoadBalancingAsync getLoadBalancingClient(){
+        if (lbClient == null) {
+            lbClient = AmazonElasticLoadBalancingAsyncClientBuilder.standard()
+                    .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                    .withCredentials(defaultAWSCredentialsProviderChain)
+                    .withClientConfiguration(clientConfiguration)
+                    .withExecutorFactory(() -> lbRateLimiter.gate(executor, scheduler))
+                    .withRequestHandlers(metrics.apiCallHandler(), lbRateLimiter)
+                    .build();
+        }
+        return lbClient;
     }
 
-    static AWSKafkaAsync createMSKClient() {
-        return builder.build();
+    synchronized AmazonRoute53Async getRoute53Client(){
+        if (route53Client == null) {
+            route53Client = AmazonRoute53AsyncClientBuilder.standard()
+                    .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                    .withCredentials(defaultAWSCredentialsProviderChain)
+                    .withClientConfiguration(clientConfiguration)
+                    .withExecutorFactory(() -> route53RateLimiter.gate(executor, scheduler))
+                    .withRequestHandlers(metrics.apiCallHandler(), route53RateLimiter)
+                    .build();
+        }
+        return route53Client;
     }
 
-    static AmazonEC2Async createEC2Client(){
-        return amazonEC2AsyncClientBuilder.build();
+    /**
+     * The table is read with the credentials of tableRoleArn when it is set, which lets a client account read the
+     * table of the cluster account.
+     */
+    private AWSCredentialsProvider getTableCredentialsProvider() {
+        if (PrivateLinkCrossAccount.tableRoleArn == null) {
+            return defaultAWSCredentialsProviderChain;
+        }
+        tableCredentialsProvider = new STSAssumeRoleSessionCredentialsProvider.Builder(PrivateLinkCrossAccount.tableRoleArn, "ListBrokerEndpoints")
+                .withStsClient(AWSSecurityTokenServiceClientBuilder.standard()
+                        .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                        .withCredentials(defaultAWSCredentialsProviderChain)
+                        .build())
+                .build();
+        return tableCredentialsProvider;
     }
 
-    static AmazonElasticLoadBalancingAsync createLoadBalancingClient(){
-        return amazonElasticLoadBalancingAsyncClientBuilder.build();
+    synchronized AmazonDynamoDBAsync getDynamoDBClient(){
+        if (dynamoDBClient == null) {
+            dynamoDBClient = AmazonDynamoDBAsyncClientBuilder.standard()
+                    .withRegion(Regions.fromName(PrivateLinkCrossAccount.region))
+                    .withCredentials(getTableCredentialsProvider())
+                    .withClientConfiguration(clientConfiguration)
+                    .withExecutorFactory(() -> dynamoDBRateLimiter.gate(executor, scheduler))
+                    .withRequestHandlers(metrics.apiCallHandler(), dynamoDBRateLimiter)
+                    .build();
+        }
+        return dynamoDBClient;
     }
 
-    static AmazonDynamoDBAsync createDynamoDBClient(){
-        return amazonDynamoDBAsyncClientBuilder.build();
+    public AdminClient createKafkaAdminClient(Map<String, Object> config) {
+        return AdminClient.create(config);
     }
 
+    public KafkaProducer<byte[], byte[]> createKafkaProducer(Map<String, Object> config) {
+        return new KafkaProducer<>(config);
+    }
 
+    public KafkaConsumer<byte[], byte[]> createKafkaConsumer(Map<String, Object> config) {
+        return new KafkaConsumer<>(config);
+    }
 
-    public AdminClient createKafkaAdminClient(Map<String, Object> config) {
-        return AdminClient.create(config);
+    /**
+     * Shuts down the clients that were built and then the shared executor. An async client's shutdown calls shutdownNow()
+     * on the executor it was built with: for a rate limited client that only drops the calls waiting in its limiter's gate,
+     * but the CloudFormation client uses the shared executor directly and stops it, interrupting whatever still runs on it.
+     * Call this only once all in-flight work is joined, as main does after the fleet has finished. The executor is shut
+     * down last for runs that never built the CloudFormation client.
+     */
+    @Override
+    public synchronized void close() {
+        if (mskClient != null) {
+            mskClient.shutdown();
+        }
+        if (ec2Client != null) {
+            ec2Client.shutdown();
+        }
+        if (lbClient != null) {
+            lbClient.shutdown();
+        }
+        if (dynamoDBClient != null) {
+            dynamoDBClient.shutdown();
+        }
+        if (route53Client != null) {
+            route53Client.shutdown();
+        }
+        if (cloudFormationClient != null) {
+            cloudFormationClient.shutdown();
+        }
+        if (tableCredentialsProvider != null) {
+            tableCredentialsProvider.close();
+        }
+        scheduler.shutdownNow();
+        executor.shutdownNow();
     }
 }
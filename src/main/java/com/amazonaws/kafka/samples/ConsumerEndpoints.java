@@ -0,0 +1,424 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsync;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.ec2.AmazonEC2Async;
+import com.amazonaws.services.ec2.model.CreateVpcEndpointRequest;
+import com.amazonaws.services.ec2.model.CreateVpcEndpointResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.DescribeVpcEndpointsRequest;
+import com.amazonaws.services.ec2.model.DescribeVpcEndpointsResult;
+import com.amazonaws.services.ec2.model.DnsEntry;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.State;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import com.amazonaws.services.ec2.model.VpcEndpoint;
+import com.amazonaws.services.ec2.model.VpcEndpointType;
+import com.amazonaws.services.route53.AmazonRoute53Async;
+import com.amazonaws.services.route53.model.AliasTarget;
+import com.amazonaws.services.route53.model.Change;
+import com.amazonaws.services.route53.model.ChangeAction;
+import com.amazonaws.services.route53.model.ChangeBatch;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsRequest;
+import com.amazonaws.services.route53.model.ChangeResourceRecordSetsResult;
+import com.amazonaws.services.route53.model.ChangeStatus;
+import com.amazonaws.services.route53.model.CreateHostedZoneRequest;
+import com.amazonaws.services.route53.model.GetChangeRequest;
+import com.amazonaws.services.route53.model.GetChangeResult;
+import com.amazonaws.services.route53.model.GetHostedZoneRequest;
+import com.amazonaws.services.route53.model.HostedZone;
+import com.amazonaws.services.route53.model.HostedZoneConfig;
+import com.amazonaws.services.route53.model.ListHostedZonesByNameRequest;
+import com.amazonaws.services.route53.model.ListHostedZonesByNameResult;
+import com.amazonaws.services.route53.model.RRType;
+import com.amazonaws.services.route53.model.ResourceRecordSet;
+import com.amazonaws.services.route53.model.VPC;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Creates the client account side of the cluster's endpoints: an interface VPC endpoint per endpoint service and an
+ * alias record per broker in the private hosted zone for the kafka domain. All VPC endpoints are created at once and
+ * the alias records are written with one ChangeResourceRecordSets call per 500 brokers, so the time taken barely grows
+ * with the number of brokers. The batches are sent one after another, as Route 53 rejects a change to a hosted zone
+ * while an earlier one is still being processed.
+ */
+class ConsumerEndpoints {
+
+    private static final int MAX_FILTER_VALUES = 200;
+    // Route 53 takes 1000 changes per batch and counts an UPSERT twice.
+    private static final int MAX_CHANGES_PER_BATCH = 500;
+    private static final int MAX_WAIT_ATTEMPTS = 40;
+    private static final Logger logger = LogManager.getLogger(ConsumerEndpoints.class);
+
+    private final AmazonEC2Async ec2Client;
+    private final AmazonRoute53Async route53Client;
+    private final AmazonCloudFormationAsync cloudFormationClient;
+    private final VpcEndpointWaiter vpcEndpointWaiter;
+    private final ManageEndpointServicesInfo endpointServicesInfo;
+    private final RunMetrics metrics;
+
+    ConsumerEndpoints(AmazonEC2Async ec2Client, AmazonRoute53Async route53Client, AmazonCloudFormationAsync cloudFormationClient,
+                      VpcEndpointWaiter vpcEndpointWaiter, ManageEndpointServicesInfo endpointServicesInfo, RunMetrics metrics) {
+        this.ec2Client = ec2Client;
+        this.route53Client = route53Client;
+        this.cloudFormationClient = cloudFormationClient;
+        this.vpcEndpointWaiter = vpcEndpointWaiter;
+        this.endpointServicesInfo = endpointServicesInfo;
+        this.metrics = metrics;
+    }
+
+    /**
+     * The VPC, private subnets and security group of the client, read from the outputs of its CloudFormation stack.
+     * The subnet and name of each Availability Zone ID are only looked up for zonal endpoint services.
+     */
+    private static class ClientNetwork {
+        private String vpcId;
+        private final List<String> subnetIds = new ArrayList<>();
+        private String securityGroupId;
+        private final Map<String, String> zoneSubnets = new HashMap<>();
+        private final Map<String, String> zoneNames = new HashMap<>();
+    }
+
+    private ClientNetwork getClientNetwork(String stackName) {
+        ClientNetwork network = new ClientNetwork();
+        List<Output> outputs = cloudFormationClient.describeStacks(new DescribeStacksRequest().withStackName(stackName)).getStacks().get(0).getOutputs();
+        for (Output output : outputs) {
+            if (output.getOutputKey().contains("PrivateSubnetMSK")) {
+                network.subnetIds.add(output.getOutputValue());
+            }
+            if (output.getOutputKey().equals("KafkaClientInstanceSecurityGroup")) {
+                network.securityGroupId = output.getOutputValue();
+            }
+            if (output.getOutputKey().equals("VPCId")) {
+                network.vpcId = output.getOutputValue();
+            }
+        }
+        if (network.vpcId == null || network.subnetIds.isEmpty() || network.securityGroupId == null) {
+            throw new RuntimeException(String.format("Stack %s has no VPCId, PrivateSubnetMSK or KafkaClientInstanceSecurityGroup outputs \n", stackName));
+        }
+        return network;
+    }
+
+    /**
+     * Maps the Availability Zone IDs of the client subnets to the subnets and to this account's zone names, which are
+     * what zonal DNS entries carry.
+     */
+    private void describeZones(ClientNetwork network) {
+        ec2Client.describeSubnets(new DescribeSubnetsRequest().withSubnetIds(network.subnetIds)).getSubnets().forEach(i -> {
+            network.zoneSubnets.putIfAbsent(i.getAvailabilityZoneId(), i.getSubnetId());
+            network.zoneNames.put(i.getAvailabilityZoneId(), i.getAvailabilityZone());
+        });
+    }
+
+    private static String getDomainName(String region) {
+        return "kafka." + region + ".amazonaws.com.";
+    }
+
+    /**
+     * Returns the private hosted zone of the kafka domain that is associated with the VPC, creating it if there is none.
+     */
+    String getOrCreateHostedZone(String vpcId, String region) {
+        String domainName = getDomainName(region);
+        ListHostedZonesByNameRequest listHostedZonesByNameRequest = new ListHostedZonesByNameRequest().withDNSName(domainName);
+        while (true) {
+            ListHostedZonesByNameResult listHostedZonesByNameResult = route53Client.listHostedZonesByName(listHostedZonesByNameRequest);
+            for (HostedZone hostedZone : listHostedZonesByNameResult.getHostedZones()) {
+                if (!hostedZone.getName().equals(domainName)) {
+                    break;
+                }
+                if (hostedZone.getConfig() != null && Boolean.TRUE.equals(hostedZone.getConfig().getPrivateZone())
+                        && route53Client.getHostedZone(new GetHostedZoneRequest().withId(hostedZone.getId())).getVPCs().stream().anyMatch(i -> vpcId.equals(i.getVPCId()))) {
+                    logger.info("Using hosted zone {} \n", hostedZone.getId());
+                    return getHostedZoneId(hostedZone.getId());
+                }
+            }
+            if (!Boolean.TRUE.equals(listHostedZonesByNameResult.getIsTruncated()) || !domainName.equals(listHostedZonesByNameResult.getNextDNSName())) {
+                break;
+            }
+            listHostedZonesByNameRequest.withHostedZoneId(listHostedZonesByNameResult.getNextHostedZoneId());
+        }
+
+        logger.info("Creating private hosted zone {} for VPC {} \n", domainName, vpcId);
+        CreateHostedZoneRequest createHostedZoneRequest = new CreateHostedZoneRequest()
+                .withName(domainName)
+                .withVPC(new VPC().withVPCId(vpcId).withVPCRegion(region))
+                .withCallerReference(vpcId + "-" + System.currentTimeMillis())
+                .withHostedZoneConfig(new HostedZoneConfig().withComment("Hosted zone for Amazon MSK endpoints").withPrivateZone(true));
+        return getHostedZoneId(route53Client.createHostedZone(createHostedZoneRequest).getHostedZone().getId());
+    }
+
+    private static String getHostedZoneId(String id) {
+        return id.substring(id.lastIndexOf('/') + 1);
+    }
+
+    private static boolean isUsable(VpcEndpoint vpcEndpoint) {
+        return Arrays.asList(State.Available.toString(), State.Pending.toString(), State.PendingAcceptance.toString()).stream()
+                .anyMatch(i -> i.equalsIgnoreCase(vpcEndpoint.getState()));
+    }
+
+    /**
+     * Returns the usable VPC endpoints of the VPC for the given endpoint services, so that reruns do not create them twice.
+     */
+    private Map<String, VpcEndpoint> getExistingVpcEndpoints(String vpcId, List<String> serviceNames) {
+        Map<String, VpcEndpoint> vpcEndpoints = new HashMap<>();
+        for (int i = 0; i < serviceNames.size(); i += MAX_FILTER_VALUES) {
+            String nextToken = null;
+            do {
+                DescribeVpcEndpointsResult describeVpcEndpointsResult = ec2Client.describeVpcEndpoints(new DescribeVpcEndpointsRequest()
+                        .withFilters(new Filter().withName("vpc-id").withValues(vpcId),
+                                new Filter().withName("service-name").withValues(serviceNames.subList(i, Math.min(i + MAX_FILTER_VALUES, serviceNames.size()))))
+                        .withNextToken(nextToken));
+                describeVpcEndpointsResult.getVpcEndpoints().stream()
+                        .filter(ConsumerEndpoints::isUsable)
+                        .forEach(k -> vpcEndpoints.putIfAbsent(k.getServiceName(), k));
+                nextToken = describeVpcEndpointsResult.getNextToken();
+            } while (nextToken != null);
+        }
+        return vpcEndpoints;
+    }
+
+    private CompletableFuture<VpcEndpoint> createVpcEndpoint(String serviceName, ClientNetwork network, List<String> subnetIds) {
+        CreateVpcEndpointRequest createVpcEndpointRequest = new CreateVpcEndpointRequest()
+                .withVpcEndpointType(VpcEndpointType.Interface)
+                .withVpcId(network.vpcId)
+                .withServiceName(serviceName)
+                .withSubnetIds(subnetIds)
+                .withSecurityGroupIds(network.securityGroupId)
+                .withPrivateDnsEnabled(false)
+                .withTagSpecifications(new TagSpecification().withResourceType("vpc-endpoint").withTags(new Tag("Name", "MSK-Endpoint")));
+        logger.info("Creating VPC Endpoint for Service Endpoint: {} \n", serviceName);
+        AsyncResult<CreateVpcEndpointRequest, CreateVpcEndpointResult> result = new AsyncResult<>();
+        ec2Client.createVpcEndpointAsync(createVpcEndpointRequest, result);
+        return result.thenApply(CreateVpcEndpointResult::getVpcEndpoint);
+    }
+
+    /**
+     * The regional DNS entry of the endpoint. Zonal entries carry the Availability Zone, and so the region, in their first label.
+     */
+    private static DnsEntry getRegionalDnsEntry(VpcEndpoint vpcEndpoint, String region) {
+        return vpcEndpoint.getDnsEntries().stream()
+                .filter(i -> !i.getDnsName().split("\\.")[0].contains(region))
+                .findFirst()
+                .orElseThrow(() -> new RuntimeException(String.format("VPC endpoint %s has no regional DNS entry \n", vpcEndpoint.getVpcEndpointId())));
+    }
+
+    /**
+     * The DNS entry of the endpoint in one Availability Zone, whose first label ends with the zone name, e.g. vpce-id-us-east-1a.
+     */
+    private static DnsEntry getZonalDnsEntry(VpcEndpoint vpcEndpoint, String zoneName) {
+        return vpcEndpoint.getDnsEntries().stream()
+                .filter(i -> i.getDnsName().split("\\.")[0].endsWith("-" + zoneName))
+                .findFirst()
+                .orElseThrow(() -> new RuntimeException(String.format("VPC endpoint %s has no DNS entry in %s \n", vpcEndpoint.getVpcEndpointId(), zoneName)));
+    }
+
+    private static String getZoneId(List<EndpointServiceRecord> records) {
+        return records.get(0).getZoneId();
+    }
+
+    private CompletableFuture<String> changeRecordSets(String hostedZoneId, List<Change> changes) {
+        ChangeResourceRecordSetsRequest changeResourceRecordSetsRequest = new ChangeResourceRecordSetsRequest()
+                .withHostedZoneId(hostedZoneId)
+                .withChangeBatch(new ChangeBatch().withComment("Amazon MSK broker endpoints").withChanges(changes));
+        AsyncResult<ChangeResourceRecordSetsRequest, ChangeResourceRecordSetsResult> result = new AsyncResult<>();
+        route53Client.changeResourceRecordSetsAsync(changeResourceRecordSetsRequest, result);
+        return result.thenApply(i -> i.getChangeInfo().getId());
+    }
+
+    private CompletableFuture<Void> waitForChange(String changeId, int attempt) {
+        AsyncResult<GetChangeRequest, GetChangeResult> result = new AsyncResult<>();
+        route53Client.getChangeAsync(new GetChangeRequest().withId(changeId), result);
+        return result.thenCompose(i -> {
+            if (ChangeStatus.INSYNC.toString().equals(i.getChangeInfo().getStatus())) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (attempt + 1 >= MAX_WAIT_ATTEMPTS) {
+                throw new RuntimeException(String.format("Record change %s was not in sync after %d checks \n", changeId, MAX_WAIT_ATTEMPTS));
+            }
+            return Util.delay(Util.backoffWithJitter(attempt, 1000L, 15000L)).thenCompose(k -> waitForChange(changeId, attempt + 1));
+        });
+    }
+
+    /**
+     * Creates the VPC endpoints and alias records for every broker of the cluster that has an endpoint service in the table,
+     * and waits until the endpoints are available and the records are in sync. Alias records may point at a VPC endpoint
+     * that is still pending, so they are written before the wait and both waits overlap. The endpoint of a zonal endpoint
+     * service is created in the client subnet of the service's zone, and its brokers resolve to that zone's DNS entry.
+     * With a cursorFile that holds a cursor, only the rows changed since are synced; without one, all rows are, and the
+     * cursor to sync later changes from is written to the file once the endpoints are available.
+     */
+    void createEndpoints(String stackName, String tableName, String clusterArn, String hostedZoneId, String region, String cursorFile) {
+        Long cursor = cursorFile != null ? readCursor(cursorFile) : null;
+        long nextCursor = 0L;
+        Collection<EndpointServiceRecord> records;
+        if (cursor == null) {
+            nextCursor = cursorFile != null ? endpointServicesInfo.getChangeSequence(tableName, clusterArn) : 0L;
+            records = endpointServicesInfo.getClusterRecords(tableName, clusterArn).values();
+        } else {
+            EndpointServiceChanges changes = endpointServicesInfo.getChanges(tableName, clusterArn, cursor);
+            nextCursor = changes.getCursor();
+            changes.getRecords().stream().filter(EndpointServiceRecord::isDeleted)
+                    .forEach(i -> logger.info("Broker {} was deleted. Its record in the hosted zone and its VPC Endpoint are left in place. \n", i.getBrokerEndpoint()));
+            records = changes.getRecords().stream().filter(i -> !i.isDeleted()).collect(Collectors.toList());
+        }
+
+        Map<String, List<EndpointServiceRecord>> recordsByService = new TreeMap<>();
+        records.stream()
+                .filter(i -> i.getServiceEndpointDNS() != null && i.getBrokerEndpoint() != null)
+                .forEach(i -> recordsByService.computeIfAbsent(i.getServiceEndpointDNS(), k -> new ArrayList<>()).add(i));
+        if (recordsByService.isEmpty() && cursor == null) {
+            throw new RuntimeException(String.format("No endpoint services of cluster %s found in table %s \n", clusterArn, tableName));
+        }
+        if (recordsByService.isEmpty()) {
+            logger.info("No endpoint services of cluster {} changed after change sequence {} \n", clusterArn, cursor);
+            writeCursor(cursorFile, nextCursor);
+            return;
+        }
+
+        long phaseStart = System.nanoTime();
+        ClientNetwork network = getClientNetwork(stackName);
+        metrics.recordPhase("read_client_stack", phaseStart);
+
+        if (recordsByService.values().stream().anyMatch(i -> getZoneId(i) != null)) {
+            describeZones(network);
+        }
+
+        phaseStart = System.nanoTime();
+        String zoneId = hostedZoneId != null ? hostedZoneId : getOrCreateHostedZone(network.vpcId, region);
+        metrics.recordPhase("hosted_zone", phaseStart);
+
+        logger.info("Creating VPC Endpoints for {} endpoint services .. \n", recordsByService.size());
+        phaseStart = System.nanoTime();
+        List<String> serviceNames = new ArrayList<>(recordsByService.keySet());
+        Map<String, VpcEndpoint> vpcEndpoints = new ConcurrentHashMap<>(getExistingVpcEndpoints(network.vpcId, serviceNames));
+        vpcEndpoints.keySet().forEach(i -> logger.info("Using existing VPC Endpoint for Service Endpoint: {} \n", i));
+        Map<String, Throwable> failedServices = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> creates = new ArrayList<>();
+        serviceNames.stream().filter(i -> !vpcEndpoints.containsKey(i)).forEach(serviceName -> {
+            String serviceZoneId = getZoneId(recordsByService.get(serviceName));
+            CompletableFuture<VpcEndpoint> vpcEndpoint;
+            if (serviceZoneId == null) {
+                vpcEndpoint = createVpcEndpoint(serviceName, network, network.subnetIds);
+            } else if (network.zoneSubnets.containsKey(serviceZoneId)) {
+                vpcEndpoint = createVpcEndpoint(serviceName, network, Collections.singletonList(network.zoneSubnets.get(serviceZoneId)));
+            } else {
+                vpcEndpoint = Util.failedFuture(new RuntimeException(String.format("No client subnet in Availability Zone %s \n", serviceZoneId)));
+            }
+            creates.add(vpcEndpoint
+                    .thenAccept(i -> vpcEndpoints.put(serviceName, i))
+                    .exceptionally(e -> {
+                        failedServices.put(serviceName, e);
+                        logger.error("Could not create VPC Endpoint for Service Endpoint {} \n", serviceName);
+                        logger.error(Util.stackTrace(e));
+                        return null;
+                    }));
+        });
+        CompletableFuture.allOf(creates.toArray(new CompletableFuture[0])).join();
+        metrics.recordPhase("create_vpc_endpoints", phaseStart);
+
+        List<Change> changes = new ArrayList<>();
+        vpcEndpoints.forEach((serviceName, vpcEndpoint) -> {
+            String serviceZoneId = getZoneId(recordsByService.get(serviceName));
+            DnsEntry dnsEntry = serviceZoneId != null ? getZonalDnsEntry(vpcEndpoint, network.zoneNames.get(serviceZoneId)) : getRegionalDnsEntry(vpcEndpoint, region);
+            recordsByService.get(serviceName).forEach(i -> {
+                if (i.isShared()) {
+                    logger.info("Broker {} is reachable on port {} \n", i.getBrokerEndpoint(), i.getListenerPort());
+                } else if (!i.getPortMappings().isEmpty()) {
+                    logger.info("Broker {} is reachable on ports {} \n", i.getBrokerEndpoint(), i.getPortMappings().stream().map(PortMapping::getListenerPort).collect(Collectors.toList()));
+                }
+                changes.add(new Change().withAction(ChangeAction.UPSERT).withResourceRecordSet(new ResourceRecordSet()
+                        .withName(i.getBrokerEndpoint())
+                        .withType(RRType.A)
+                        .withAliasTarget(new AliasTarget()
+                                .withHostedZoneId(dnsEntry.getHostedZoneId())
+                                .withDNSName(dnsEntry.getDnsName())
+                                .withEvaluateTargetHealth(true))));
+            });
+        });
+
+        logger.info("Writing {} broker records to hosted zone {} .. \n", changes.size(), zoneId);
+        phaseStart = System.nanoTime();
+        CompletableFuture<List<String>> batches = CompletableFuture.completedFuture(new ArrayList<>());
+        for (int i = 0; i < changes.size(); i += MAX_CHANGES_PER_BATCH) {
+            List<Change> batch = changes.subList(i, Math.min(i + MAX_CHANGES_PER_BATCH, changes.size()));
+            batches = batches.thenCompose(ids -> changeRecordSets(zoneId, batch).thenApply(id -> {
+                ids.add(id);
+                return ids;
+            }));
+        }
+        List<String> changeIds = batches.join();
+        metrics.recordPhase("dns_records", phaseStart);
+
+        phaseStart = System.nanoTime();
+        List<CompletableFuture<Void>> waits = new ArrayList<>();
+        vpcEndpoints.forEach((serviceName, vpcEndpoint) -> {
+            if (State.Available.toString().equalsIgnoreCase(vpcEndpoint.getState())) {
+                return;
+            }
+            waits.add(metrics.timeWait("vpc_endpoint_available", vpcEndpointWaiter.waitUntilReady(vpcEndpoint.getVpcEndpointId()))
+                    .thenAccept(state -> {
+                        if (!State.Available.toString().equalsIgnoreCase(state)) {
+                            throw new RuntimeException(String.format("VPC endpoint %s is in %s state \n", vpcEndpoint.getVpcEndpointId(), state));
+                        }
+                    })
+                    .exceptionally(e -> {
+                        failedServices.put(serviceName, e);
+                        logger.error(Util.stackTrace(e));
+                        return null;
+                    }));
+        });
+        changeIds.forEach(i -> waits.add(metrics.timeWait("dns_change_insync", waitForChange(i, 0))));
+        CompletableFuture.allOf(waits.toArray(new CompletableFuture[0])).join();
+        metrics.recordPhase("endpoints_available", phaseStart);
+
+        if (!failedServices.isEmpty()) {
+            throw new RuntimeException(String.format("Could not create VPC Endpoints for Service Endpoints %s \n", failedServices.keySet()));
+        }
+        if (cursorFile != null) {
+            writeCursor(cursorFile, nextCursor);
+        }
+    }
+
+    /**
+     * The cursor in the file, or null if there is no file yet.
+     */
+    private static Long readCursor(String cursorFile) {
+        Path path = Paths.get(cursorFile);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            throw new RuntimeException(String.format("Could not read a cursor from %s \n", cursorFile));
+        }
+    }
+
+    private static void writeCursor(String cursorFile, long cursor) {
+        try {
+            Files.write(Paths.get(cursorFile), Long.toString(cursor).getBytes(StandardCharsets.UTF_8));
+            logger.info("Synced up to change sequence {} \n", cursor);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not write the cursor to %s \n", cursorFile));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps a cluster's endpoints in line with its brokers until stopped. Each poll lists the brokers and compares them with
+ * an in-memory model of broker IPs and target groups: a broker that only moved to a new IP has its target swapped, which
+ * is the common case after MSK replaces a broker. Added or removed brokers, failed polls and the periodic resync fall back
+ * to a full {@link Reconciler} pass, after which the model is rebuilt. Health and metrics are served over HTTP.
+ */
+class Controller {
+
+    private static final Logger logger = LogManager.getLogger(Controller.class);
+
+    private final MSK msk;
+    private final NLB nlb;
+    private final Reconciler reconciler;
+    private final ManageEndpointServicesInfo endpointServicesInfo;
+    private final RunMetrics metrics;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // The model: the IP each broker's target groups point at, and their ARNs with the broker port each forwards to. Null until the first resync.
+    private volatile Map<Integer, String> brokerIPs;
+    private Map<Integer, Map<String, Integer>> targetGroups;
+    private long nextResyncMillis;
+
+    private volatile long lastSuccessfulPollMillis;
+    private volatile int consecutiveFailures;
+    private volatile String lastError;
+
+    Controller(MSK msk, NLB nlb, ServiceEndpoint serviceEndpoint, ManageEndpointServicesInfo endpointServicesInfo, RunMetrics metrics) {
+        this.msk = msk;
+        this.nlb = nlb;
+        this.reconciler = new Reconciler(msk, nlb, serviceEndpoint, endpointServicesInfo, metrics);
+        this.endpointServicesInfo = endpointServicesInfo;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Polls until {@link #stop()} is called. The fast interval is used while the cluster has an operation in progress,
+     * if watchClusterOperations is set. A healthPort of 0 disables the HTTP endpoint.
+     */
+    void run(String clusterArn, String tableName, Collection<String> allowedPrincipals, List<PortMapping> portMappings, int maxConcurrency, boolean sharedTopology,
+             boolean zonalTopology, long pollIntervalMillis, long fastPollIntervalMillis, long resyncIntervalMillis, boolean watchClusterOperations, int healthPort) throws IOException, InterruptedException {
+        HttpServer healthServer = healthPort > 0 ? startHealthServer(healthPort, pollIntervalMillis) : null;
+        try {
+            while (stopped.getCount() > 0) {
+                long start = System.nanoTime();
+                try {
+                    poll(clusterArn, tableName, allowedPrincipals, portMappings, maxConcurrency, sharedTopology, zonalTopology, resyncIntervalMillis);
+                    lastSuccessfulPollMillis = System.currentTimeMillis();
+                    consecutiveFailures = 0;
+                    lastError = null;
+                } catch (Exception e) {
+                    consecutiveFailures++;
+                    lastError = String.valueOf(Util.unwrap(e).getMessage());
+                    brokerIPs = null;
+                    logger.error("Poll failed ({} in a row). Resyncing on the next poll. \n", consecutiveFailures);
+                    logger.error(Util.stackTrace(e));
+                }
+                metrics.recordPhase("controller_poll", start);
+
+                long interval = pollIntervalMillis;
+                try {
+                    if (watchClusterOperations && msk.hasOperationInProgress(clusterArn)) {
+                        interval = fastPollIntervalMillis;
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Could not list cluster operations \n");
+                    logger.error(Util.stackTrace(e));
+                }
+                stopped.await(interval, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            if (healthServer != null) {
+                healthServer.stop(0);
+            }
+        }
+        logger.info("Controller stopped \n");
+    }
+
+    void stop() {
+        stopped.countDown();
+    }
+
+    private void poll(String clusterArn, String tableName, Collection<String> allowedPrincipals, List<PortMapping> portMappings, int maxConcurrency, boolean sharedTopology,
+                      boolean zonalTopology, long resyncIntervalMillis) throws ExecutionException, InterruptedException {
+        Map<Integer, String> desired = msk.refreshTopology(clusterArn).getBrokerIPMap();
+
+        if (brokerIPs == null || !brokerIPs.keySet().equals(desired.keySet()) || !targetGroups.keySet().containsAll(desired.keySet())
+                || System.currentTimeMillis() >= nextResyncMillis) {
+            resync(desired, clusterArn, tableName, allowedPrincipals, portMappings, maxConcurrency, sharedTopology, zonalTopology);
+            nextResyncMillis = System.currentTimeMillis() + resyncIntervalMillis;
+            return;
+        }
+
+        Map<Integer, String> moved = desired.entrySet().stream()
+                .filter(i -> !i.getValue().equals(brokerIPs.get(i.getKey())))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if (!moved.isEmpty()) {
+            retarget(moved);
+        }
+    }
+
+    private void resync(Map<Integer, String> desired, String clusterArn, String tableName, Collection<String> allowedPrincipals, List<PortMapping> portMappings, int maxConcurrency,
+                        boolean sharedTopology, boolean zonalTopology) throws ExecutionException, InterruptedException {
+        logger.info("Resyncing endpoints with the cluster .. \n");
+        long start = System.nanoTime();
+        reconciler.reconcile(clusterArn, tableName, allowedPrincipals, portMappings, maxConcurrency, sharedTopology, zonalTopology);
+
+        Map<Integer, EndpointServiceRecord> records = endpointServicesInfo.getClusterRecords(tableName, clusterArn);
+        Map<String, String> targetGroupArnIndex = nlb.getTargetGroupArnIndex(records.values().stream().flatMap(i -> i.getTargetGroupNames().stream()).collect(Collectors.toList()));
+        Map<Integer, Map<String, Integer>> resolvedTargetGroups = new HashMap<>();
+        records.forEach((k, v) -> {
+            Map<String, PortMapping> brokerTargetGroups = v.getTargetGroups(portMappings.get(0));
+            if (targetGroupArnIndex.keySet().containsAll(brokerTargetGroups.keySet())) {
+                Map<String, Integer> targetGroupPorts = new HashMap<>();
+                brokerTargetGroups.forEach((name, portMapping) -> targetGroupPorts.put(targetGroupArnIndex.get(name), portMapping.getTargetPort()));
+                resolvedTargetGroups.put(k, targetGroupPorts);
+            }
+        });
+        targetGroups = resolvedTargetGroups;
+        brokerIPs = new HashMap<>(desired);
+        metrics.recordPhase("controller_resync", start);
+    }
+
+    /**
+     * Swaps the targets of the brokers that moved, in all their target groups. The model is updated per broker, so a
+     * failed broker is retried on the next poll.
+     */
+    private void retarget(Map<Integer, String> moved) {
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        Map<Integer, String> retargeted = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> retargets = new ArrayList<>();
+
+        moved.forEach((brokerId, brokerIP) -> {
+            retargets.add(metrics.timeBroker("retarget", brokerId, CompletableFuture.allOf(targetGroups.get(brokerId).entrySet().stream()
+                    .map(i -> nlb.getTargets(i.getKey()).thenCompose(targets -> {
+                        List<TargetDescription> staleTargets = targets.stream()
+                                .filter(k -> !(k.getId().equals(brokerIP) && k.getPort().equals(i.getValue())))
+                                .collect(Collectors.toList());
+                        logger.info("Broker {} moved to {}. Replacing targets {} \n", brokerId, brokerIP, staleTargets);
+                        return nlb.retarget(i.getKey(), brokerIP, i.getValue(), staleTargets);
+                    }))
+                    .toArray(CompletableFuture[]::new)))
+                    .handle((i, e) -> {
+                        if (e == null) {
+                            retargeted.put(brokerId, brokerIP);
+                        } else {
+                            failedBrokers.put(brokerId, e);
+                            logger.error("Could not update targets for broker {} \n", brokerId);
+                            logger.error(Util.stackTrace(e));
+                        }
+                        return null;
+                    }));
+        });
+
+        CompletableFuture.allOf(retargets.toArray(new CompletableFuture[0])).join();
+        brokerIPs.putAll(retargeted);
+        if (!failedBrokers.isEmpty()) {
+            throw new RuntimeException(String.format("Could not update targets for brokers %s \n", failedBrokers.keySet()));
+        }
+    }
+
+    /**
+     * Serves /health, which answers 503 once no poll has succeeded for three poll intervals, and /metrics in the Prometheus text format.
+     */
+    private HttpServer startHealthServer(int healthPort, long pollIntervalMillis) throws IOException {
+        HttpServer healthServer = HttpServer.create(new InetSocketAddress(healthPort), 0);
+        healthServer.createContext("/health", exchange -> {
+            boolean healthy = System.currentTimeMillis() - lastSuccessfulPollMillis <= 3 * pollIntervalMillis;
+            Map<String, Object> health = new LinkedHashMap<>();
+            health.put("status", healthy ? "ok" : "unhealthy");
+            health.put("lastSuccessfulPoll", lastSuccessfulPollMillis == 0 ? null : Instant.ofEpochMilli(lastSuccessfulPollMillis).toString());
+            health.put("consecutiveFailures", consecutiveFailures);
+            health.put("lastError", lastError);
+            health.put("brokers", brokerIPs == null ? null : brokerIPs.size());
+            respond(exchange, healthy ? 200 : 503, "application/json", new ObjectMapper().writeValueAsString(health));
+        });
+        healthServer.createContext("/metrics", exchange -> respond(exchange, 200, "text/plain; version=0.0.4", metrics.toPrometheus()));
+        healthServer.start();
+        logger.info("Health endpoint listening on port {} \n", healthPort);
+        return healthServer;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.amazonaws.kafka.samples;
+
+import org.apache.kafka.clients.CommonClientConfigs;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigResource;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that a Kafka client reaches every broker through its endpoint and measures the data path. Each broker's
+ * advertised address is connected to, and the broker behind it is asked for its own configuration: a broker only
+ * answers for its own ID, so an endpoint whose NLB targets another broker fails the check. A probe topic with one
+ * partition led by each broker then carries a produce and consume workload, and the produce and end-to-end latency
+ * and the throughput of each broker are recorded in the run's metrics.
+ */
+class DataPathProbe {
+
+    private static final Logger logger = LogManager.getLogger(DataPathProbe.class);
+    private static final int MAX_REPLICATION_FACTOR = 3;
+
+    private final Clients clients;
+    private final RunMetrics metrics;
+
+    DataPathProbe(Clients clients, RunMetrics metrics) {
+        this.clients = clients;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Kafka client settings, e.g. security.protocol=SSL, from a properties file. None if fileName is null.
+     */
+    static Map<String, Object> loadClientConfig(String fileName) {
+        Map<String, Object> config = new HashMap<>();
+        if (fileName == null) {
+            return config;
+        }
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(Paths.get(fileName))) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not read Kafka client settings from %s \n", fileName));
+        }
+        properties.stringPropertyNames().forEach(i -> config.put(i, properties.getProperty(i)));
+        return config;
+    }
+
+    private static <T> CompletableFuture<T> toCompletableFuture(KafkaFuture<T> kafkaFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        kafkaFuture.whenComplete((i, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(i);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Probes the brokers behind bootstrapServers with recordsPerBroker records of recordSize bytes per broker. Fails if
+     * a broker cannot be reached or answers for another broker, if the workload does not finish within timeoutMillis,
+     * or, if maxP99Millis is above 0, if a broker's produce p99 latency is above it.
+     */
+    void run(String bootstrapServers, Map<String, Object> clientConfig, String topicPrefix, int recordsPerBroker, int recordSize, long timeoutMillis, long maxP99Millis)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Map<String, Object> config = new HashMap<>(clientConfig);
+        config.put(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+
+        try (AdminClient adminClient = clients.createKafkaAdminClient(config)) {
+            long phaseStart = System.nanoTime();
+            Collection<Node> nodes = adminClient.describeCluster().nodes().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            metrics.recordPhase("probe_metadata", phaseStart);
+            logger.info("Probing {} brokers through {} \n", nodes.size(), bootstrapServers);
+
+            phaseStart = System.nanoTime();
+            Map<Integer, Throwable> failedBrokers = checkBrokers(adminClient, nodes, timeoutMillis);
+            metrics.recordPhase("probe_brokers", phaseStart);
+            if (!failedBrokers.isEmpty()) {
+                throw new RuntimeException(String.format("Brokers %s are not reachable through their endpoints \n", failedBrokers.keySet()));
+            }
+
+            List<Integer> brokerIds = nodes.stream().map(Node::id).sorted().collect(Collectors.toList());
+            String topic = topicPrefix + "-" + System.currentTimeMillis();
+            createTopic(adminClient, topic, brokerIds, timeoutMillis);
+            try {
+                phaseStart = System.nanoTime();
+                runWorkload(config, topic, brokerIds, recordsPerBroker, recordSize, timeoutMillis);
+                metrics.recordPhase("probe_workload", phaseStart);
+            } finally {
+                try {
+                    adminClient.deleteTopics(Collections.singleton(topic)).all().get(timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    logger.error("Could not delete probe topic {} \n", topic);
+                    logger.error(Util.stackTrace(e));
+                }
+            }
+        }
+
+        Map<Integer, Long> p50 = metrics.getProbePercentiles("produce", 0.5);
+        Map<Integer, Long> p99 = metrics.getProbePercentiles("produce", 0.99);
+        p99.forEach((k, v) -> logger.info("Broker {}: produce latency p50 {} ms, p99 {} ms \n", k, p50.get(k), v));
+        if (maxP99Millis > 0) {
+            List<Integer> slowBrokers = p99.entrySet().stream().filter(i -> i.getValue() > maxP99Millis).map(Map.Entry::getKey).collect(Collectors.toList());
+            if (!slowBrokers.isEmpty()) {
+                throw new RuntimeException(String.format("Produce p99 latency of brokers %s is above %d ms \n", slowBrokers, maxP99Millis));
+            }
+        }
+    }
+
+    /**
+     * Connects to each broker's advertised address and asks the broker there for its configuration, all brokers at once.
+     * Returns the brokers that failed either check.
+     */
+    private Map<Integer, Throwable> checkBrokers(AdminClient adminClient, Collection<Node> nodes, long timeoutMillis) {
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nodes.size(), 16)), r -> {
+            Thread thread = new Thread(r, "probe-connect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<CompletableFuture<Void>> checks = new ArrayList<>();
+            nodes.forEach(node -> {
+                CompletableFuture<Void> connect = metrics.timeBroker("probe_connect", node.id(), CompletableFuture.runAsync(() -> connect(node, timeoutMillis), executor));
+                ConfigResource brokerResource = new ConfigResource(ConfigResource.Type.BROKER, String.valueOf(node.id()));
+                CompletableFuture<Void> identity = metrics.timeBroker("probe_identity", node.id(),
+                        toCompletableFuture(adminClient.describeConfigs(Collections.singleton(brokerResource)).values().get(brokerResource)).thenApply(i -> null));
+                checks.add(CompletableFuture.allOf(connect, identity).exceptionally(e -> {
+                    failedBrokers.put(node.id(), e);
+                    logger.error("Broker {} at {}:{} failed the probe \n", node.id(), node.host(), node.port());
+                    logger.error(Util.stackTrace(e));
+                    return null;
+                }));
+            });
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).join();
+        } finally {
+            executor.shutdownNow();
+        }
+        return failedBrokers;
+    }
+
+    private static void connect(Node node, long timeoutMillis) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host(), node.port()), (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not connect to broker %d at %s:%d: %s \n", node.id(), node.host(), node.port(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Creates the probe topic with one partition per broker, partition n being led by the n-th broker, so each
+     * partition's traffic goes through one broker's endpoint.
+     */
+    private static void createTopic(AdminClient adminClient, String topic, List<Integer> brokerIds, long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException {
+        Map<Integer, List<Integer>> replicaAssignments = new HashMap<>();
+        int replicationFactor = Math.min(MAX_REPLICATION_FACTOR, brokerIds.size());
+        for (int i = 0; i < brokerIds.size(); i++) {
+            List<Integer> replicas = new ArrayList<>();
+            for (int k = 0; k < replicationFactor; k++) {
+                replicas.add(brokerIds.get((i + k) % brokerIds.size()));
+            }
+            replicaAssignments.put(i, replicas);
+        }
+        logger.info("Creating probe topic {} \n", topic);
+        adminClient.createTopics(Collections.singleton(new NewTopic(topic, replicaAssignments))).all().get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Consumes the probe topic while it is produced to. The consumer starts from the earliest offset, so it gets
+     * every record whenever its assignment completes.
+     */
+    private void runWorkload(Map<String, Object> config, String topic, List<Integer> brokerIds, int recordsPerBroker, int recordSize, long timeoutMillis)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Map<String, Object> consumerConfig = new HashMap<>(config);
+        consumerConfig.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        consumerConfig.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        consumerConfig.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        CompletableFuture<Void> consumed = CompletableFuture.runAsync(() -> consume(consumerConfig, topic, brokerIds, (long) recordsPerBroker * brokerIds.size(), deadline));
+
+        Map<String, Object> producerConfig = new HashMap<>(config);
+        producerConfig.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        producerConfig.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        producerConfig.putIfAbsent(ProducerConfig.ACKS_CONFIG, "all");
+        produce(producerConfig, topic, brokerIds, recordsPerBroker, recordSize);
+
+        consumed.get(Math.max(0L, deadline - System.currentTimeMillis()) + timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Produces to every partition at once. Each broker's throughput is the bytes acknowledged on its partition over the
+     * time from the partition's first send to its last acknowledgement.
+     */
+    private void produce(Map<String, Object> producerConfig, String topic, List<Integer> brokerIds, int recordsPerBroker, int recordSize) {
+        byte[] value = new byte[recordSize];
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long[] firstSend = new long[brokerIds.size()];
+        AtomicLongArray lastAck = new AtomicLongArray(brokerIds.size());
+        AtomicLongArray ackedBytes = new AtomicLongArray(brokerIds.size());
+        try (KafkaProducer<byte[], byte[]> producer = clients.createKafkaProducer(producerConfig)) {
+            for (int i = 0; i < recordsPerBroker; i++) {
+                for (int partition = 0; partition < brokerIds.size(); partition++) {
+                    int brokerId = brokerIds.get(partition);
+                    int partitionIndex = partition;
+                    long sendStart = System.nanoTime();
+                    if (i == 0) {
+                        firstSend[partition] = sendStart;
+                    }
+                    producer.send(new ProducerRecord<>(topic, partition, null, value), (metadata, e) -> {
+                        if (e != null) {
+                            failure.compareAndSet(null, e);
+                            return;
+                        }
+                        long ackTime = System.nanoTime();
+                        lastAck.accumulateAndGet(partitionIndex, ackTime, Math::max);
+                        ackedBytes.addAndGet(partitionIndex, recordSize);
+                        metrics.recordProbeLatency("produce", brokerId, TimeUnit.NANOSECONDS.toMillis(ackTime - sendStart));
+                    });
+                }
+            }
+            producer.flush();
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException(String.format("Could not produce to probe topic %s: %s \n", topic, failure.get().getMessage()));
+        }
+        for (int partition = 0; partition < brokerIds.size(); partition++) {
+            double seconds = Math.max(1L, lastAck.get(partition) - firstSend[partition]) / 1e9;
+            metrics.recordProbeThroughput("produce", brokerIds.get(partition), ackedBytes.get(partition) / seconds);
+        }
+    }
+
+    private void consume(Map<String, Object> consumerConfig, String topic, List<Integer> brokerIds, long expectedRecords, long deadline) {
+        Map<Integer, Long> brokerBytes = new HashMap<>();
+        long received = 0;
+        long start = 0L;
+        try (KafkaConsumer<byte[], byte[]> consumer = clients.createKafkaConsumer(consumerConfig)) {
+            List<TopicPartition> partitions = new ArrayList<>();
+            for (int i = 0; i < brokerIds.size(); i++) {
+                partitions.add(new TopicPartition(topic, i));
+            }
+            consumer.assign(partitions);
+            while (received < expectedRecords && System.currentTimeMillis() < deadline) {
+                for (ConsumerRecord<byte[], byte[]> record : consumer.poll(Duration.ofMillis(500))) {
+                    if (start == 0L) {
+                        start = System.nanoTime();
+                    }
+                    int brokerId = brokerIds.get(record.partition());
+                    metrics.recordProbeLatency("end_to_end", brokerId, Math.max(0L, System.currentTimeMillis() - record.timestamp()));
+                    brokerBytes.merge(brokerId, (long) record.serializedValueSize(), Long::sum);
+                    received++;
+                }
+            }
+        }
+        if (received < expectedRecords) {
+            throw new RuntimeException(String.format("Consumed %d of %d probe records before the timeout \n", received, expectedRecords));
+        }
+        double seconds = Math.max(1L, System.nanoTime() - start) / 1e9;
+        brokerBytes.forEach((k, v) -> metrics.recordProbeThroughput("consume", k, v / seconds));
+    }
+}
@@ -0,0 +1,25 @@
+package com.amazonaws.kafka.samples;
+
+import java.util.List;
+
+/**
+ * The endpoint service rows changed after a cursor, in change sequence order, and the cursor to read the next changes from.
+ */
+class EndpointServiceChanges {
+
+    private final List<EndpointServiceRecord> records;
+    private final long cursor;
+
+    EndpointServiceChanges(List<EndpointServiceRecord> records, long cursor) {
+        this.records = records;
+        this.cursor = cursor;
+    }
+
+    List<EndpointServiceRecord> getRecords() {
+        return records;
+    }
+
+    long getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,175 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A row of the endpoint services table, describing the resources created for one broker. Rows of brokers behind a
+ * shared NLB also hold the broker's target group and listener port; all brokers of the cluster share the NLB and endpoint service.
+ * Rows of brokers behind a zonal NLB hold the ID of the one Availability Zone their endpoint service is offered in.
+ * Rows of broker NLBs with more than one port mapping hold the mappings, from which the names of their target groups follow.
+ * Every write of a row increases its version and gives it the next change sequence of the table; a deleted row is kept
+ * as a tombstone so consumers that sync by change sequence learn about the deletion.
+ */
+class EndpointServiceRecord {
+
+    private final int brokerId;
+    private final String serviceEndpointDNS;
+    private final String nlbName;
+    private final String brokerEndpoint;
+    private final String targetGroupName;
+    private final Integer listenerPort;
+    private final String zoneId;
+    private final List<PortMapping> portMappings;
+    private final String clusterArn;
+    private final long version;
+    private final long changeSequence;
+    private final String updatedAt;
+    private final boolean deleted;
+
+    EndpointServiceRecord(int brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint) {
+        this(brokerId, serviceEndpointDNS, nlbName, brokerEndpoint, null, null, null);
+    }
+
+    EndpointServiceRecord(int brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint, List<PortMapping> portMappings) {
+        this(brokerId, serviceEndpointDNS, nlbName, brokerEndpoint, null, null, null, portMappings, null, 0L, 0L, null, false);
+    }
+
+    EndpointServiceRecord(int brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint, String targetGroupName, Integer listenerPort, String zoneId) {
+        this(brokerId, serviceEndpointDNS, nlbName, brokerEndpoint, targetGroupName, listenerPort, zoneId, Collections.emptyList(), null, 0L, 0L, null, false);
+    }
+
+    private EndpointServiceRecord(int brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint, String targetGroupName, Integer listenerPort, String zoneId,
+                                  List<PortMapping> portMappings, String clusterArn, long version, long changeSequence, String updatedAt, boolean deleted) {
+        this.brokerId = brokerId;
+        this.serviceEndpointDNS = serviceEndpointDNS;
+        this.nlbName = nlbName;
+        this.brokerEndpoint = brokerEndpoint;
+        this.targetGroupName = targetGroupName;
+        this.listenerPort = listenerPort;
+        this.zoneId = zoneId;
+        this.portMappings = portMappings;
+        this.clusterArn = clusterArn;
+        this.version = version;
+        this.changeSequence = changeSequence;
+        this.updatedAt = updatedAt;
+        this.deleted = deleted;
+    }
+
+    static EndpointServiceRecord fromItem(Map<String, AttributeValue> item) {
+        return new EndpointServiceRecord(
+                Integer.parseInt(item.get("Broker_ID").getN()),
+                item.containsKey("Service_Endpoint_DNS") ? item.get("Service_Endpoint_DNS").getS() : null,
+                item.containsKey("NLB_Name") ? item.get("NLB_Name").getS() : null,
+                item.containsKey("Broker_Endpoint") ? item.get("Broker_Endpoint").getS() : null,
+                item.containsKey("Target_Group_Name") ? item.get("Target_Group_Name").getS() : null,
+                item.containsKey("Listener_Port") ? Integer.valueOf(item.get("Listener_Port").getN()) : null,
+                item.containsKey("Availability_Zone_ID") ? item.get("Availability_Zone_ID").getS() : null,
+                item.containsKey("Port_Mappings") ? PortMapping.fromAttributeValue(item.get("Port_Mappings")) : Collections.emptyList(),
+                item.containsKey("Cluster_ARN") ? item.get("Cluster_ARN").getS() : null,
+                item.containsKey("Version") ? Long.parseLong(item.get("Version").getN()) : 0L,
+                item.containsKey("Change_Sequence") ? Long.parseLong(item.get("Change_Sequence").getN()) : 0L,
+                item.containsKey("Updated_At") ? item.get("Updated_At").getS() : null,
+                item.containsKey("Deleted") && Boolean.TRUE.equals(item.get("Deleted").getBOOL()));
+    }
+
+    int getBrokerId() {
+        return brokerId;
+    }
+
+    String getServiceEndpointDNS() {
+        return serviceEndpointDNS;
+    }
+
+    /**
+     * The endpoint service ID, taken from the service name (com.amazonaws.vpce.region.vpce-svc-id).
+     */
+    String getServiceId() {
+        return serviceEndpointDNS.split("\\.")[4];
+    }
+
+    String getNlbName() {
+        return nlbName;
+    }
+
+    /**
+     * The stored target group name, or for a per-broker NLB its name with a TG- instead of an NLB- prefix.
+     */
+    String getTargetGroupName() {
+        return targetGroupName != null ? targetGroupName : "TG-" + nlbName.substring("NLB-".length());
+    }
+
+    /**
+     * The stored port mappings, empty for a shared NLB or a broker NLB written with a single port mapping.
+     */
+    List<PortMapping> getPortMappings() {
+        return portMappings;
+    }
+
+    /**
+     * The stored port mappings, or for a row without them the single mapping the NLB was created with.
+     */
+    List<PortMapping> getPortMappings(PortMapping defaultPortMapping) {
+        return portMappings.isEmpty() ? Collections.singletonList(defaultPortMapping) : portMappings;
+    }
+
+    /**
+     * The names of all target groups of the broker. A shared NLB or a broker NLB with a single port mapping has one.
+     */
+    List<String> getTargetGroupNames() {
+        return portMappings.isEmpty() ? Collections.singletonList(getTargetGroupName()) : new ArrayList<>(BrokerTopology.getTargetGroupNames(nlbName, portMappings).keySet());
+    }
+
+    /**
+     * The broker's target groups by name, each with the mapping it serves. A shared NLB's target group listens on the
+     * row's listener port.
+     */
+    Map<String, PortMapping> getTargetGroups(PortMapping defaultPortMapping) {
+        if (isShared()) {
+            return Collections.singletonMap(getTargetGroupName(), new PortMapping(defaultPortMapping.getTargetPort(), listenerPort));
+        }
+        return portMappings.isEmpty() ? Collections.singletonMap(getTargetGroupName(), defaultPortMapping) : BrokerTopology.getTargetGroupNames(nlbName, portMappings);
+    }
+
+    String getBrokerEndpoint() {
+        return brokerEndpoint;
+    }
+
+    Integer getListenerPort() {
+        return listenerPort;
+    }
+
+    boolean isShared() {
+        return listenerPort != null;
+    }
+
+    String getZoneId() {
+        return zoneId;
+    }
+
+    String getClusterArn() {
+        return clusterArn;
+    }
+
+    /**
+     * The number of times the row was written, 0 for rows written before rows were versioned.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    long getChangeSequence() {
+        return changeSequence;
+    }
+
+    String getUpdatedAt() {
+        return updatedAt;
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+}
@@ -0,0 +1,266 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.Get;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ItemResponse;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.TransactGetItem;
+import com.amazonaws.services.dynamodbv2.model.TransactGetItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactGetItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Buffers endpoint service record puts and deletes and writes them in transactions of up to 24 records of one cluster.
+ * Each transaction reads the records and the cluster's change sequence counter, skips records whose content did not
+ * change, and writes the others with the next version and change sequence, on condition that neither the records nor
+ * the counter changed since they were read. Sequences are allocated and written in one transaction, so they become
+ * visible in the order they were allocated. Deletes leave a tombstone, so the change feed reports them. Transactions
+ * that lose a race with another writer of the same cluster are read and retried with backoff. The records describe
+ * resources that already exist, so once the retries run out they are written one by one without a transaction rather
+ * than not at all; the future returned by {@link #close()} only fails if a record could not be written that way either.
+ */
+class EndpointServicesRecordWriter {
+
+    // A transaction takes at most 25 items: the counter and 24 records.
+    private static final int MAX_ITEMS_PER_BATCH = 24;
+    private static final int MAX_TRANSACTION_ATTEMPTS = 10;
+    private static final Set<String> METADATA_ATTRIBUTES = new HashSet<>(Arrays.asList("Version", "Updated_At", "Change_Sequence", "Change_Feed", "Deleted"));
+    private static final Logger logger = LogManager.getLogger(EndpointServicesRecordWriter.class);
+
+    private final AmazonDynamoDBAsync dynamodbClient;
+    private final String tableName;
+    private final int maxTransactionAttempts;
+    // Keyed by record key, as a transaction may not touch a record twice; the last write of a record wins.
+    private final Map<Map<String, AttributeValue>, WriteRequest> buffer = new LinkedHashMap<>();
+    private final List<CompletableFuture<Void>> batches = new ArrayList<>();
+    private CompletableFuture<Void> lastBatch = CompletableFuture.completedFuture(null);
+
+    EndpointServicesRecordWriter(AmazonDynamoDBAsync dynamodbClient, String tableName) {
+        this(dynamodbClient, tableName, MAX_TRANSACTION_ATTEMPTS);
+    }
+
+    EndpointServicesRecordWriter(AmazonDynamoDBAsync dynamodbClient, String tableName, int maxTransactionAttempts) {
+        this.dynamodbClient = dynamodbClient;
+        this.tableName = tableName;
+        this.maxTransactionAttempts = maxTransactionAttempts;
+    }
+
+    synchronized void add(Map<String, AttributeValue> item) {
+        buffer(getKey(item), new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+    }
+
+    synchronized void delete(Map<String, AttributeValue> key) {
+        buffer(key, new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(key)));
+    }
+
+    private void buffer(Map<String, AttributeValue> key, WriteRequest writeRequest) {
+        // A transaction only holds the change sequence counter of one cluster.
+        if (!buffer.isEmpty() && !buffer.keySet().iterator().next().get("Cluster_ARN").equals(key.get("Cluster_ARN"))) {
+            flush();
+        }
+        buffer.put(key, writeRequest);
+        if (buffer.size() == MAX_ITEMS_PER_BATCH) {
+            flush();
+        }
+    }
+
+    private static Map<String, AttributeValue> getKey(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("Cluster_ARN", item.get("Cluster_ARN"));
+        key.put("Broker_ID", item.get("Broker_ID"));
+        return key;
+    }
+
+    /**
+     * Flushes the remaining records and returns a future that completes once every batch has been written.
+     */
+    synchronized CompletableFuture<Void> close() {
+        flush();
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Batches of one writer run one after the other, as batches of the same cluster would only conflict on its change sequence counter.
+     */
+    private void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        logger.info("Writing {} records to table {} \n", buffer.size(), tableName);
+        List<WriteRequest> writeRequests = new ArrayList<>(buffer.values());
+        lastBatch = lastBatch.handle((i, e) -> null).thenCompose(i -> write(writeRequests, 0));
+        batches.add(lastBatch);
+        buffer.clear();
+    }
+
+    private static Map<String, AttributeValue> getKey(WriteRequest writeRequest) {
+        return writeRequest.getPutRequest() != null ? getKey(writeRequest.getPutRequest().getItem()) : writeRequest.getDeleteRequest().getKey();
+    }
+
+    private CompletableFuture<Void> write(List<WriteRequest> writeRequests, int attempt) {
+        String clusterArn = getKey(writeRequests.get(0)).get("Cluster_ARN").getS();
+        List<TransactGetItem> gets = new ArrayList<>();
+        gets.add(new TransactGetItem().withGet(new Get().withTableName(tableName).withKey(ManageEndpointServicesInfo.getChangeSequenceKey(clusterArn))));
+        writeRequests.forEach(i -> gets.add(new TransactGetItem().withGet(new Get().withTableName(tableName).withKey(getKey(i)))));
+        AsyncResult<TransactGetItemsRequest, TransactGetItemsResult> result = new AsyncResult<>();
+        dynamodbClient.transactGetItemsAsync(new TransactGetItemsRequest().withTransactItems(gets), result);
+        return result.thenCompose(i -> commit(clusterArn, writeRequests, i.getResponses()))
+                .handle((i, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    if (!(Util.unwrap(e) instanceof TransactionCanceledException)) {
+                        return Util.<Void>failedFuture(Util.unwrap(e));
+                    }
+                    if (attempt + 1 >= maxTransactionAttempts) {
+                        logger.warn("Records of cluster {} in table {} kept being changed by another writer. Writing them one by one. \n", clusterArn, tableName);
+                        return writeEach(clusterArn, writeRequests);
+                    }
+                    logger.info("Records in table {} were changed by another writer. Retrying. \n", tableName);
+                    return Util.delay(Util.backoffWithJitter(attempt, 100L, 5000L)).thenCompose(k -> write(writeRequests, attempt + 1));
+                })
+                .thenCompose(i -> i);
+    }
+
+    private CompletableFuture<Void> commit(String clusterArn, List<WriteRequest> writeRequests, List<ItemResponse> responses) {
+        Map<String, AttributeValue> counter = responses.get(0).getItem();
+        long changeSequence = counter != null ? Long.parseLong(counter.get("Change_Sequence").getN()) : 0L;
+        String updatedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS).toString();
+
+        List<TransactWriteItem> writes = new ArrayList<>();
+        for (int i = 0; i < writeRequests.size(); i++) {
+            Map<String, AttributeValue> stored = responses.get(i + 1).getItem();
+            Map<String, AttributeValue> item = getChangedItem(writeRequests.get(i), stored);
+            if (item == null) {
+                continue;
+            }
+            long version = getVersion(stored);
+            setMetadata(item, version + 1, updatedAt, ++changeSequence);
+            writes.add(new TransactWriteItem().withPut(version > 0
+                    ? new Put().withTableName(tableName).withItem(item).withConditionExpression("Version = :version")
+                            .withExpressionAttributeValues(Collections.singletonMap(":version", new AttributeValue().withN(Long.toString(version))))
+                    : new Put().withTableName(tableName).withItem(item).withConditionExpression("attribute_not_exists(Version)")));
+        }
+        if (writes.isEmpty()) {
+            logger.info("{} records in table {} are unchanged \n", writeRequests.size(), tableName);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Map<String, AttributeValue> nextCounter = ManageEndpointServicesInfo.getChangeSequenceKey(clusterArn);
+        nextCounter.put("Change_Sequence", new AttributeValue().withN(Long.toString(changeSequence)));
+        writes.add(new TransactWriteItem().withPut(counter != null
+                ? new Put().withTableName(tableName).withItem(nextCounter).withConditionExpression("Change_Sequence = :changeSequence")
+                        .withExpressionAttributeValues(Collections.singletonMap(":changeSequence", counter.get("Change_Sequence")))
+                : new Put().withTableName(tableName).withItem(nextCounter).withConditionExpression("attribute_not_exists(Change_Sequence)")));
+
+        AsyncResult<TransactWriteItemsRequest, TransactWriteItemsResult> result = new AsyncResult<>();
+        dynamodbClient.transactWriteItemsAsync(new TransactWriteItemsRequest().withTransactItems(writes), result);
+        return result.thenAccept(i -> logger.info("Wrote {} changed records to table {}, up to change sequence {} \n", writes.size() - 1, tableName, nextCounter.get("Change_Sequence").getN()));
+    }
+
+    /**
+     * Writes the records one after the other, each with its own read, a sequence taken from the counter with an atomic
+     * add, and an unconditional put, so a busy counter cannot keep them from being written. A sequence may become visible
+     * after later ones, which readers already allow for by not moving their cursor past recent changes.
+     */
+    private CompletableFuture<Void> writeEach(String clusterArn, List<WriteRequest> writeRequests) {
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        for (WriteRequest writeRequest : writeRequests) {
+            written = written.thenCompose(i -> writeOne(clusterArn, writeRequest));
+        }
+        return written;
+    }
+
+    private CompletableFuture<Void> writeOne(String clusterArn, WriteRequest writeRequest) {
+        AsyncResult<GetItemRequest, GetItemResult> storedResult = new AsyncResult<>();
+        dynamodbClient.getItemAsync(new GetItemRequest().withTableName(tableName).withKey(getKey(writeRequest)).withConsistentRead(true), storedResult);
+        return storedResult.thenCompose(i -> {
+            Map<String, AttributeValue> stored = i.getItem();
+            Map<String, AttributeValue> item = getChangedItem(writeRequest, stored);
+            if (item == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            AsyncResult<UpdateItemRequest, UpdateItemResult> counterResult = new AsyncResult<>();
+            dynamodbClient.updateItemAsync(new UpdateItemRequest()
+                    .withTableName(tableName)
+                    .withKey(ManageEndpointServicesInfo.getChangeSequenceKey(clusterArn))
+                    .withUpdateExpression("ADD Change_Sequence :one")
+                    .withExpressionAttributeValues(Collections.singletonMap(":one", new AttributeValue().withN("1")))
+                    .withReturnValues(ReturnValue.UPDATED_NEW), counterResult);
+            return counterResult.thenCompose(k -> {
+                setMetadata(item, getVersion(stored) + 1, Instant.now().truncatedTo(ChronoUnit.MILLIS).toString(),
+                        Long.parseLong(k.getAttributes().get("Change_Sequence").getN()));
+                AsyncResult<PutItemRequest, PutItemResult> putResult = new AsyncResult<>();
+                dynamodbClient.putItemAsync(new PutItemRequest().withTableName(tableName).withItem(item), putResult);
+                return putResult.thenAccept(m -> logger.info("Wrote record of broker {} to table {} with change sequence {} \n",
+                        item.get("Broker_ID").getN(), tableName, item.get("Change_Sequence").getN()));
+            });
+        });
+    }
+
+    private static long getVersion(Map<String, AttributeValue> stored) {
+        return stored != null && stored.containsKey("Version") ? Long.parseLong(stored.get("Version").getN()) : 0L;
+    }
+
+    /**
+     * Sets the version and change sequence of the item; its Change_Feed is its cluster, so each cluster has its own feed.
+     */
+    private static void setMetadata(Map<String, AttributeValue> item, long version, String updatedAt, long changeSequence) {
+        item.put("Version", new AttributeValue().withN(Long.toString(version)));
+        item.put("Updated_At", new AttributeValue().withS(updatedAt));
+        item.put("Change_Sequence", new AttributeValue().withN(Long.toString(changeSequence)));
+        item.put("Change_Feed", item.get("Cluster_ARN"));
+    }
+
+    /**
+     * The item to write for a put or delete, or null if the stored record already holds it. A delete keeps the stored
+     * content in its tombstone, so a consumer can tell which broker endpoint went away.
+     */
+    static Map<String, AttributeValue> getChangedItem(WriteRequest writeRequest, Map<String, AttributeValue> stored) {
+        boolean storedDeleted = stored == null || (stored.containsKey("Deleted") && Boolean.TRUE.equals(stored.get("Deleted").getBOOL()));
+        if (writeRequest.getDeleteRequest() != null) {
+            if (storedDeleted) {
+                return null;
+            }
+            Map<String, AttributeValue> tombstone = getContent(stored);
+            tombstone.put("Deleted", new AttributeValue().withBOOL(true));
+            return tombstone;
+        }
+        Map<String, AttributeValue> item = getContent(writeRequest.getPutRequest().getItem());
+        return !storedDeleted && item.equals(getContent(stored)) ? null : item;
+    }
+
+    private static Map<String, AttributeValue> getContent(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> content = new HashMap<>(item);
+        content.keySet().removeAll(METADATA_ATTRIBUTES);
+        return content;
+    }
+}
@@ -0,0 +1,119 @@
+package com.amazonaws.kafka.samples;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one action over many clusters, a few clusters at a time. The clusters share the SDK clients, and with them the
+ * per-service rate limiters and connection pools, as well as the metadata cache, the run journal and the NLB waiter. Each cluster gets
+ * its own domain objects and metrics, so nothing about a cluster is kept in shared or static state.
+ */
+class Fleet {
+
+    private static final Logger logger = LogManager.getLogger(Fleet.class);
+
+    interface ClusterAction {
+        void run(Cluster cluster) throws Exception;
+    }
+
+    /**
+     * The context of one cluster's run: its ARN, its metrics and domain objects that report to those metrics.
+     */
+    static class Cluster {
+        final String clusterArn;
+        final RunMetrics metrics;
+        final MSK msk;
+        final NLB nlb;
+        final ServiceEndpoint serviceEndpoint;
+        final ManageEndpointServicesInfo endpointServicesInfo;
+
+        private Cluster(String clusterArn, RunMetrics metrics, MSK msk, NLB nlb, ServiceEndpoint serviceEndpoint, ManageEndpointServicesInfo endpointServicesInfo) {
+            this.clusterArn = clusterArn;
+            this.metrics = metrics;
+            this.msk = msk;
+            this.nlb = nlb;
+            this.serviceEndpoint = serviceEndpoint;
+            this.endpointServicesInfo = endpointServicesInfo;
+        }
+    }
+
+    private final Clients clients;
+    private final MetadataCache cache;
+    private final RunJournal journal;
+    private final LoadBalancerWaiter lbWaiter;
+    private final RunMetrics metrics;
+
+    Fleet(Clients clients, MetadataCache cache, RunJournal journal, LoadBalancerWaiter lbWaiter, RunMetrics metrics) {
+        this.clients = clients;
+        this.cache = cache;
+        this.journal = journal;
+        this.lbWaiter = lbWaiter;
+        this.metrics = metrics;
+    }
+
+    private Cluster getCluster(String clusterArn, RunMetrics clusterMetrics) {
+        ManageEndpointServicesInfo endpointServicesInfo = new ManageEndpointServicesInfo(clients.getDynamoDBClient(), clusterMetrics);
+        RunJournal clusterJournal = journal.forCluster(clusterArn);
+        return new Cluster(clusterArn, clusterMetrics,
+                new MSK(clients.getMSKClient(), clusterMetrics, cache),
+                new NLB(clients.getLoadBalancingClient(), clusterMetrics, cache, clusterJournal),
+                new ServiceEndpoint(clients.getEC2Client(), lbWaiter, endpointServicesInfo, clusterMetrics, cache, clusterJournal),
+                endpointServicesInfo);
+    }
+
+    /**
+     * Runs the action for each cluster, at most maxClusterConcurrency at a time. A single cluster runs on the calling
+     * thread and reports to the run's metrics; with several, each cluster reports to its own metrics within the run's,
+     * and a cluster that fails does not stop the others. The failed clusters are reported once all clusters are done.
+     */
+    void run(List<String> clusterArns, int maxClusterConcurrency, ClusterAction action) throws Exception {
+        if (clusterArns.size() == 1) {
+            action.run(getCluster(clusterArns.get(0), metrics));
+            return;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxClusterConcurrency, clusterArns.size())), r -> {
+            Thread thread = new Thread(r, "cluster-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Throwable> failedClusters = new ConcurrentHashMap<>();
+        try {
+            List<CompletableFuture<Void>> runs = new ArrayList<>();
+            clusterArns.forEach(i -> runs.add(CompletableFuture.runAsync(() -> runCluster(i, action, failedClusters), executor)));
+            CompletableFuture.allOf(runs.toArray(new CompletableFuture[0])).join();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("{} of {} clusters succeeded \n", clusterArns.size() - failedClusters.size(), clusterArns.size());
+        if (!failedClusters.isEmpty()) {
+            throw new RuntimeException(String.format("Failed for clusters %s \n", failedClusters.keySet()));
+        }
+    }
+
+    private void runCluster(String clusterArn, ClusterAction action, Map<String, Throwable> failedClusters) {
+        Cluster cluster = getCluster(clusterArn, metrics.forCluster(clusterArn));
+        logger.info("Starting cluster {} \n", clusterArn);
+        try {
+            action.run(cluster);
+            cluster.metrics.setStatus("succeeded");
+            logger.info("Finished cluster {} \n", clusterArn);
+        } catch (Exception e) {
+            cluster.metrics.setStatus("failed");
+            cluster.metrics.setError(String.valueOf(Util.unwrap(e).getMessage()));
+            failedClusters.put(clusterArn, e);
+            logger.error("Cluster {} failed \n", clusterArn);
+            logger.error(Util.stackTrace(e));
+        }
+    }
+}
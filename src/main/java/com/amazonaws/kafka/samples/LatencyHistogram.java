@@ -0,0 +1,79 @@
+package com.amazonaws.kafka.samples;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed-bucket latency histogram in milliseconds. The bucket bounds cover Kafka round trips and single API calls as
+ * well as NLB provisioning waits, and percentiles are reported as the upper bound of the bucket they fall in.
+ */
+class LatencyHistogram {
+
+    static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000, 1800000};
+
+    private final long[] bucketCounts = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+    private long count;
+    private long sumMillis;
+    private long minMillis = Long.MAX_VALUE;
+    private long maxMillis;
+
+    synchronized void record(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        bucketCounts[bucket]++;
+        count++;
+        sumMillis += millis;
+        minMillis = Math.min(minMillis, millis);
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getSumMillis() {
+        return sumMillis;
+    }
+
+    /**
+     * Cumulative counts per upper bound, as used by Prometheus histograms. The last entry is the total count.
+     */
+    synchronized long[] getCumulativeCounts() {
+        long[] cumulative = new long[bucketCounts.length];
+        long total = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            total += bucketCounts[i];
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    synchronized long percentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MILLIS[i], maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+
+    synchronized Map<String, Object> toReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("count", count);
+        report.put("sumMillis", sumMillis);
+        report.put("minMillis", count == 0 ? 0 : minMillis);
+        report.put("maxMillis", maxMillis);
+        report.put("p50Millis", percentile(0.5));
+        report.put("p90Millis", percentile(0.9));
+        report.put("p99Millis", percentile(0.99));
+        return report;
+    }
+}
@@ -0,0 +1,82 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingAsync;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancerNotFoundException;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancerStateEnum;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Waits for NLBs to leave the provisioning state. All pending load balancers are checked together with
+ * batched DescribeLoadBalancers calls, and each caller's future completes as soon as its own NLB settles.
+ */
+class LoadBalancerWaiter extends BatchedPoller<LoadBalancerStateEnum> {
+
+    private static final int MAX_ARNS_PER_REQUEST = 20;
+    private static final Logger logger = LogManager.getLogger(LoadBalancerWaiter.class);
+
+    private final AmazonElasticLoadBalancingAsync lbClient;
+    private final MetadataCache cache;
+
+    LoadBalancerWaiter(AmazonElasticLoadBalancingAsync lbClient, MetadataCache cache) {
+        this(lbClient, cache, 2000L, 30000L, 900000L);
+    }
+
+    LoadBalancerWaiter(AmazonElasticLoadBalancingAsync lbClient, MetadataCache cache, long initialDelayMillis, long maxDelayMillis, long maxWaitMillis) {
+        super("NLB", "nlb-waiter", MAX_ARNS_PER_REQUEST, 0L, initialDelayMillis, maxDelayMillis, maxWaitMillis);
+        this.lbClient = lbClient;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns a future that completes with the first state of the NLB other than provisioning. An NLB that was
+     * already seen Active is not described again.
+     */
+    CompletableFuture<LoadBalancerStateEnum> waitUntilReady(String lbArn) {
+        if (cache.get(MetadataCache.NLB_ACTIVE, lbArn) != null) {
+            return CompletableFuture.completedFuture(LoadBalancerStateEnum.Active);
+        }
+        return waitFor(lbArn);
+    }
+
+    @Override
+    CompletableFuture<Void> describe(List<String> lbArns) {
+        DescribeLoadBalancersRequest describeLoadBalancersRequest = new DescribeLoadBalancersRequest()
+                .withLoadBalancerArns(lbArns);
+        AsyncResult<DescribeLoadBalancersRequest, DescribeLoadBalancersResult> result = new AsyncResult<>();
+        lbClient.describeLoadBalancersAsync(describeLoadBalancersRequest, result);
+        return result.handle((describeLoadBalancersResult, e) -> {
+            if (e == null) {
+                describeLoadBalancersResult.getLoadBalancers().forEach(i -> {
+                    LoadBalancerStateEnum state = LoadBalancerStateEnum.fromValue(i.getState().getCode());
+                    if (!state.equals(LoadBalancerStateEnum.Provisioning)) {
+                        logger.info("NLB {} is {}. \n", i.getLoadBalancerName(), state);
+                        if (state.equals(LoadBalancerStateEnum.Active)) {
+                            cache.put(MetadataCache.NLB_ACTIVE, i.getLoadBalancerArn(), state.toString());
+                        }
+                        complete(i.getLoadBalancerArn(), state);
+                    }
+                });
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            Throwable cause = Util.unwrap(e);
+            if (cause instanceof LoadBalancerNotFoundException) {
+                if (lbArns.size() == 1) {
+                    fail(lbArns.get(0), cause);
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                // One unknown ARN fails the whole batch, so find it by checking the ARNs one at a time.
+                List<CompletableFuture<Void>> singles = new ArrayList<>();
+                lbArns.forEach(i -> singles.add(describe(Collections.singletonList(i))));
+                return CompletableFuture.allOf(singles.toArray(new CompletableFuture[0]));
+            }
+            return Util.<Void>failedFuture(cause);
+        }).thenCompose(i -> i);
+    }
+}
@@ -1,42 +1,79 @@
 package com.amazonaws.kafka.samples;
 
 import com.amazonaws.services.kafka.AWSKafkaAsync;
+import com.amazonaws.services.kafka.model.ListClusterOperationsRequest;
 import com.amazonaws.services.kafka.model.ListNodesRequest;
 import com.amazonaws.services.kafka.model.ListNodesResult;
+import com.amazonaws.services.kafka.model.NodeInfo;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 class MSK {
 
+    private static final int MAX_NODES_PER_PAGE = 100;
+
     private final AWSKafkaAsync mskClient;
+    private final RunMetrics metrics;
+    private final MetadataCache cache;
     private static final Logger logger = LogManager.getLogger(MSK.class);
 
-    MSK(AWSKafkaAsync mskClient){
+    MSK(AWSKafkaAsync mskClient, RunMetrics metrics, MetadataCache cache){
         this.mskClient = mskClient;
+        this.metrics = metrics;
+        this.cache = cache;
     }
 
-    ListNodesResult getNodes() {
-        return mskClient.listNodes(new ListNodesRequest().withClusterArn(PrivateLinkCrossAccount.mskClusterArn));
+    /**
+     * The cluster's broker topology, from the cache if it was discovered within the cache TTL.
+     */
+    BrokerTopology getTopology(String clusterArn) {
+        return cache.get(MetadataCache.NODES, clusterArn, () -> {
+            long start = System.nanoTime();
+            BrokerTopology topology = BrokerTopology.fromNodes(listNodes(clusterArn, null, new ArrayList<>()).join());
+            metrics.recordPhase("msk_list_nodes", start);
+            logger.info("Found {} brokers in {} subnets \n", topology.size(), topology.getSubnets().size());
+            return topology;
+        });
     }
 
-    List<String> getSubnetList(ListNodesResult mskNodes) {
-        return mskNodes.getNodeInfoList().stream().map(i -> i.getBrokerNodeInfo().getClientSubnet()).collect(Collectors.toList());
+    /**
+     * Discovers the brokers again, bypassing the cache.
+     */
+    BrokerTopology refreshTopology(String clusterArn) {
+        cache.invalidate(MetadataCache.NODES, clusterArn);
+        return getTopology(clusterArn);
     }
 
-    Map<Double, String> getBrokerIPMap(ListNodesResult mskNodes){
-        Map<Double, String> brokerIPMap = new HashMap<>();
-        mskNodes.getNodeInfoList().forEach(i -> brokerIPMap.put(i.getBrokerNodeInfo().getBrokerId(), i.getBrokerNodeInfo().getClientVpcIpAddress()));
-        return brokerIPMap;
+    /**
+     * Lists all nodes of the cluster, following NextToken until the last page.
+     */
+    private CompletableFuture<List<NodeInfo>> listNodes(String clusterArn, String nextToken, List<NodeInfo> nodes) {
+        ListNodesRequest listNodesRequest = new ListNodesRequest()
+                .withClusterArn(clusterArn)
+                .withMaxResults(MAX_NODES_PER_PAGE)
+                .withNextToken(nextToken);
+        AsyncResult<ListNodesRequest, ListNodesResult> result = new AsyncResult<>();
+        mskClient.listNodesAsync(listNodesRequest, result);
+        return result.thenCompose(i -> {
+            nodes.addAll(i.getNodeInfoList());
+            return i.getNextToken() == null || i.getNextToken().isEmpty()
+                    ? CompletableFuture.completedFuture(nodes)
+                    : listNodes(clusterArn, i.getNextToken(), nodes);
+        });
     }
 
-    Map<Integer, String> getBrokerEndpointMap(ListNodesResult mskNodes){
-        Map<Integer, String> brokerEndpointMap = new HashMap<>();
-        mskNodes.getNodeInfoList().forEach(i -> brokerEndpointMap.put(i.getBrokerNodeInfo().getBrokerId().intValue(), i.getBrokerNodeInfo().getEndpoints().listIterator().next()));
-        return brokerEndpointMap;
+    /**
+     * Whether the cluster has an operation running, such as a broker replacement or scaling, judged by its latest operations.
+     */
+    boolean hasOperationInProgress(String clusterArn) {
+        return mskClient.listClusterOperations(new ListClusterOperationsRequest()
+                        .withClusterArn(clusterArn)
+                        .withMaxResults(10))
+                .getClusterOperationInfoList().stream()
+                .anyMatch(i -> Arrays.asList("PENDING", "UPDATE_IN_PROGRESS").contains(i.getOperationState()));
     }
-
 }
@@ -5,102 +5,304 @@ import com.amazonaws.services.dynamodbv2.document.*;
 import com.amazonaws.services.dynamodbv2.model.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
 
 class ManageEndpointServicesInfo {
-    private static AmazonDynamoDBAsync dynamodbClient = Clients.createDynamoDBClient();
-    private static DynamoDB dynamoDB = new DynamoDB(dynamodbClient);
+    static final String CHANGE_SEQUENCE_INDEX = "Change_Sequence_Index";
+    // Changes newer than this may not be in the change sequence index yet, so a cursor does not move past them.
+    private static final long INDEX_SETTLE_MILLIS = 30000L;
+    private static final int MAX_INDEX_WAIT_ATTEMPTS = 60;
+
+    private final AmazonDynamoDBAsync dynamodbClient;
+    private final DynamoDB dynamoDB;
+    private final RunMetrics metrics;
 
     private static final Logger logger = LogManager.getLogger(ManageEndpointServicesInfo.class);
 
-    static void deleteTable(String tableName) {
-        Table table = dynamoDB.getTable(tableName);
-        try {
-            logger.info("Issuing DeleteTable request for {} \n", tableName);
-            table.delete();
-            logger.info("Waiting for {} to be deleted...this may take a while... \n", tableName);
-            table.waitForDelete();
-        } catch (Exception e) {
-            logger.error("DeleteTable request failed for " + tableName);
-            logger.error(Util.stackTrace(e));
-        }
+    ManageEndpointServicesInfo(AmazonDynamoDBAsync dynamodbClient, RunMetrics metrics) {
+        this.dynamodbClient = dynamodbClient;
+        this.dynamoDB = new DynamoDB(dynamodbClient);
+        this.metrics = metrics;
     }
 
     private static ArrayList<AttributeDefinition> getAttributeDefinitions() {
         ArrayList<AttributeDefinition> attributeDefinitions = new ArrayList<>();
+        attributeDefinitions
+                .add(new AttributeDefinition().withAttributeName("Cluster_ARN").withAttributeType(ScalarAttributeType.S));
         attributeDefinitions
                 .add(new AttributeDefinition().withAttributeName("Broker_ID").withAttributeType(ScalarAttributeType.N));
+        attributeDefinitions
+                .add(new AttributeDefinition().withAttributeName("Change_Feed").withAttributeType(ScalarAttributeType.S));
+        attributeDefinitions
+                .add(new AttributeDefinition().withAttributeName("Change_Sequence").withAttributeType(ScalarAttributeType.N));
         return attributeDefinitions;
     }
 
-    static void createTable(String tableName, long readCapacityUnits, long writeCapacityUnits) {
+    private static ArrayList<KeySchemaElement> getKeySchema() {
+        ArrayList<KeySchemaElement> keySchema = new ArrayList<>();
+        keySchema.add(new KeySchemaElement().withAttributeName("Cluster_ARN").withKeyType(KeyType.HASH)); // Partition Key
+        keySchema.add(new KeySchemaElement().withAttributeName("Broker_ID").withKeyType(KeyType.RANGE)); // Sort Key
+        return keySchema;
+    }
+
+    /**
+     * A sparse index of the rows by change sequence. A row's Change_Feed is its cluster ARN, so each cluster has its own
+     * partition and sequence, and a consumer reads its cluster's changes since its cursor with one Query.
+     */
+    private static GlobalSecondaryIndex getChangeSequenceIndex(boolean provisioned, long readCapacityUnits, long writeCapacityUnits) {
+        GlobalSecondaryIndex index = new GlobalSecondaryIndex()
+                .withIndexName(CHANGE_SEQUENCE_INDEX)
+                .withKeySchema(new KeySchemaElement().withAttributeName("Change_Feed").withKeyType(KeyType.HASH),
+                        new KeySchemaElement().withAttributeName("Change_Sequence").withKeyType(KeyType.RANGE))
+                .withProjection(new Projection().withProjectionType(ProjectionType.ALL));
+        if (provisioned) {
+            index.withProvisionedThroughput(new ProvisionedThroughput()
+                    .withReadCapacityUnits(readCapacityUnits)
+                    .withWriteCapacityUnits(writeCapacityUnits));
+        }
+        return index;
+    }
+
+    /**
+     * The key of the row that holds the cluster's last change sequence. Its partition is not a cluster ARN, so cluster queries never see it.
+     */
+    static Map<String, AttributeValue> getChangeSequenceKey(String clusterArn) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("Cluster_ARN", new AttributeValue().withS("#change-sequence#" + clusterArn));
+        key.put("Broker_ID", new AttributeValue().withN("0"));
+        return key;
+    }
 
+    /**
+     * Creates the table if it does not exist yet. The table is shared by all clusters and is never recreated,
+     * so an existing table with the single Broker_ID key from earlier versions has to be dropped by hand. An existing
+     * table without the change sequence index gets it added.
+     */
+    void createTableIfNotExists(String tableName, BillingMode billingMode, long readCapacityUnits, long writeCapacityUnits) {
+        long start = System.nanoTime();
         try {
+            createTable(tableName, billingMode, readCapacityUnits, writeCapacityUnits);
+        } finally {
+            metrics.recordPhase("table_initialize", start);
+        }
+    }
 
-            ArrayList<KeySchemaElement> keySchema = new ArrayList<>();
-            keySchema.add(new KeySchemaElement().withAttributeName("Broker_ID").withKeyType(KeyType.HASH)); // Partition Key
+    private void createTable(String tableName, BillingMode billingMode, long readCapacityUnits, long writeCapacityUnits) {
+        try {
+            TableDescription tableDescription = dynamodbClient.describeTable(new DescribeTableRequest().withTableName(tableName)).getTable();
+            if (!new HashSet<>(tableDescription.getKeySchema()).equals(new HashSet<>(getKeySchema()))) {
+                throw new RuntimeException(String.format("Table %s exists with key schema %s, expected %s. Delete the table and rerun. \n", tableName, tableDescription.getKeySchema(), getKeySchema()));
+            }
+            logger.info("Using existing table {} \n", tableName);
+            if (tableDescription.getGlobalSecondaryIndexes() == null
+                    || tableDescription.getGlobalSecondaryIndexes().stream().noneMatch(i -> CHANGE_SEQUENCE_INDEX.equals(i.getIndexName()))) {
+                boolean provisioned = tableDescription.getBillingModeSummary() == null
+                        || BillingMode.PROVISIONED.toString().equals(tableDescription.getBillingModeSummary().getBillingMode());
+                addChangeSequenceIndex(tableName, provisioned, readCapacityUnits, writeCapacityUnits);
+            }
+            return;
+        } catch (ResourceNotFoundException e) {
+            logger.info("Table {} does not exist yet \n", tableName);
+        }
 
+        try {
             CreateTableRequest request = new CreateTableRequest()
                     .withTableName(tableName)
-                    .withKeySchema(keySchema)
+                    .withKeySchema(getKeySchema())
                     .withAttributeDefinitions(getAttributeDefinitions())
-                    .withProvisionedThroughput(new ProvisionedThroughput()
-                            .withReadCapacityUnits(readCapacityUnits)
-                            .withWriteCapacityUnits(writeCapacityUnits));
-
+                    .withGlobalSecondaryIndexes(getChangeSequenceIndex(billingMode.equals(BillingMode.PROVISIONED), readCapacityUnits, writeCapacityUnits))
+                    .withBillingMode(billingMode);
+            if (billingMode.equals(BillingMode.PROVISIONED)) {
+                request.withProvisionedThroughput(new ProvisionedThroughput()
+                        .withReadCapacityUnits(readCapacityUnits)
+                        .withWriteCapacityUnits(writeCapacityUnits));
+            }
 
             logger.info("Issuing CreateTable request for {} \n", tableName);
             Table table = dynamoDB.createTable(request);
             logger.info("Waiting for {} to be created...this may take a while... \n", tableName);
+            long waitStart = System.nanoTime();
             table.waitForActive();
+            metrics.recordWait("table_active", waitStart);
 
+        } catch (ResourceInUseException e) {
+            logger.info("Table {} is already being created. Waiting for it to become active. \n", tableName);
+            try {
+                dynamoDB.getTable(tableName).waitForActive();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(String.format("Interrupted while waiting for table %s \n", tableName));
+            }
         } catch (Exception e) {
             logger.error("CreateTable request failed for " + tableName);
             logger.error(Util.stackTrace(e));
+            throw new RuntimeException(String.format("Could not create table %s \n", tableName));
         }
     }
 
-    static void loadRecord(Integer brokerId, String serviceEndpointDNS, String nlbName, String tableName, String brokerEndpoint) {
-        Table table = dynamoDB.getTable(tableName);
+    /**
+     * Adds the change sequence index to a table created before rows were versioned and waits until it is active.
+     * Rows written before show up in the index once they are written again.
+     */
+    private void addChangeSequenceIndex(String tableName, boolean provisioned, long readCapacityUnits, long writeCapacityUnits) {
+        logger.info("Adding index {} to table {} \n", CHANGE_SEQUENCE_INDEX, tableName);
+        long waitStart = System.nanoTime();
+        GlobalSecondaryIndex index = getChangeSequenceIndex(provisioned, readCapacityUnits, writeCapacityUnits);
         try {
-            logger.info("Adding record to table {} \n", tableName);
-            Item item = new Item()
-                    .withPrimaryKey("Broker_ID", brokerId)
-                    .withString("Service_Endpoint_DNS", serviceEndpointDNS)
-                    .withString("NLB_Name", nlbName)
-                    .withString("Broker_Endpoint", brokerEndpoint);
-
-            table.putItem(item);
-        } catch (Exception e) {
-            logger.error("Failed to add record in {} \n", tableName);
-            logger.error(Util.stackTrace(e));
+            dynamodbClient.updateTable(new UpdateTableRequest()
+                    .withTableName(tableName)
+                    .withAttributeDefinitions(getAttributeDefinitions())
+                    .withGlobalSecondaryIndexUpdates(new GlobalSecondaryIndexUpdate().withCreate(new CreateGlobalSecondaryIndexAction()
+                            .withIndexName(index.getIndexName())
+                            .withKeySchema(index.getKeySchema())
+                            .withProjection(index.getProjection())
+                            .withProvisionedThroughput(index.getProvisionedThroughput()))));
+        } catch (ResourceInUseException e) {
+            logger.info("Table {} is already being updated \n", tableName);
+        }
+        for (int attempt = 0; attempt < MAX_INDEX_WAIT_ATTEMPTS; attempt++) {
+            List<GlobalSecondaryIndexDescription> indexes = dynamodbClient.describeTable(new DescribeTableRequest().withTableName(tableName)).getTable().getGlobalSecondaryIndexes();
+            if (indexes != null && indexes.stream().anyMatch(i -> CHANGE_SEQUENCE_INDEX.equals(i.getIndexName()) && IndexStatus.ACTIVE.toString().equals(i.getIndexStatus()))) {
+                metrics.recordWait("table_index_active", waitStart);
+                return;
+            }
+            Util.delay(Util.backoffWithJitter(attempt, 2000L, 15000L)).join();
         }
+        throw new RuntimeException(String.format("Index %s of table %s was not active after %d checks \n", CHANGE_SEQUENCE_INDEX, tableName, MAX_INDEX_WAIT_ATTEMPTS));
+    }
+
+    EndpointServicesRecordWriter createRecordWriter(String tableName) {
+        return new EndpointServicesRecordWriter(dynamodbClient, tableName);
+    }
+
+    private static Map<String, AttributeValue> getKey(String clusterArn, Integer brokerId) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("Cluster_ARN", new AttributeValue().withS(clusterArn));
+        key.put("Broker_ID", new AttributeValue().withN(brokerId.toString()));
+        return key;
     }
 
-    static List<String> queryRecords(String tableName, List<String> nlbs) throws ExecutionException, InterruptedException {
-        StringJoiner filterExpValues = new StringJoiner(",");
-        int valIndex = 1;
-        StringBuilder filterExpression = new StringBuilder();
-        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
-        List<String> endpointServices = new ArrayList<>();
+    static Map<String, AttributeValue> getRecord(String clusterArn, Integer brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint) {
+        Map<String, AttributeValue> item = getKey(clusterArn, brokerId);
+        item.put("Service_Endpoint_DNS", new AttributeValue().withS(serviceEndpointDNS));
+        item.put("NLB_Name", new AttributeValue().withS(nlbName));
+        item.put("Broker_Endpoint", new AttributeValue().withS(brokerEndpoint));
+        return item;
+    }
+
+    static Map<String, AttributeValue> getZonalRecord(String clusterArn, Integer brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint, String zoneId) {
+        Map<String, AttributeValue> item = getRecord(clusterArn, brokerId, serviceEndpointDNS, nlbName, brokerEndpoint);
+        item.put("Availability_Zone_ID", new AttributeValue().withS(zoneId));
+        return item;
+    }
 
-        if (!nlbs.isEmpty()) {
-            for (String attributeValue : nlbs) {
-                filterExpValues.add(":val" + valIndex);
-                expressionAttributeValues.put(":val" + valIndex, new AttributeValue().withS(attributeValue));
-                valIndex++;
+    /**
+     * Adds the port mappings of a broker NLB with more than one, so readers of the row find all its listener ports.
+     */
+    static Map<String, AttributeValue> withPortMappings(Map<String, AttributeValue> item, List<PortMapping> portMappings) {
+        if (portMappings.size() > 1) {
+            item.put("Port_Mappings", PortMapping.toAttributeValue(portMappings));
+        }
+        return item;
+    }
+
+    static Map<String, AttributeValue> getSharedRecord(String clusterArn, Integer brokerId, String serviceEndpointDNS, String nlbName, String brokerEndpoint, String targetGroupName, Integer listenerPort) {
+        Map<String, AttributeValue> item = getRecord(clusterArn, brokerId, serviceEndpointDNS, nlbName, brokerEndpoint);
+        item.put("Target_Group_Name", new AttributeValue().withS(targetGroupName));
+        item.put("Listener_Port", new AttributeValue().withN(listenerPort.toString()));
+        return item;
+    }
+
+    /**
+     * Reads all rows of the cluster with a paginated Query on the cluster's partition. Tombstones of deleted rows are left out.
+     */
+    Map<Integer, EndpointServiceRecord> getClusterRecords(String tableName, String clusterArn) {
+        long start = System.nanoTime();
+        Map<Integer, EndpointServiceRecord> records = new HashMap<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            QueryRequest queryRequest = new QueryRequest()
+                    .withTableName(tableName)
+                    .withKeyConditionExpression("Cluster_ARN = :clusterArn")
+                    .withExpressionAttributeValues(Collections.singletonMap(":clusterArn", new AttributeValue().withS(clusterArn)))
+                    .withConsistentRead(true)
+                    .withExclusiveStartKey(lastEvaluatedKey);
+            QueryResult queryResult = dynamodbClient.query(queryRequest);
+            queryResult.getItems().forEach(i -> {
+                EndpointServiceRecord record = EndpointServiceRecord.fromItem(i);
+                if (!record.isDeleted()) {
+                    records.put(record.getBrokerId(), record);
+                }
+            });
+            lastEvaluatedKey = queryResult.getLastEvaluatedKey();
+        } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+        metrics.recordPhase("read_records", start);
+        return records;
+    }
+
+    /**
+     * The cluster's last change sequence. Reading it before a full read of the rows gives a cursor to read later changes from.
+     */
+    long getChangeSequence(String tableName, String clusterArn) {
+        Map<String, AttributeValue> counter = dynamodbClient.getItem(new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(getChangeSequenceKey(clusterArn))
+                .withConsistentRead(true)).getItem();
+        return counter != null ? Long.parseLong(counter.get("Change_Sequence").getN()) : 0L;
+    }
+
+    /**
+     * Reads the cluster's rows changed after the cursor, including tombstones of deleted rows, in change sequence order,
+     * from the cluster's partition of the change sequence index. The index is eventually consistent, so the
+     * returned cursor only moves past changes older than a settle time, and the newest changes may be returned again
+     * by the next read.
+     */
+    EndpointServiceChanges getChanges(String tableName, String clusterArn, long cursor) {
+        long start = System.nanoTime();
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":clusterArn", new AttributeValue().withS(clusterArn));
+        values.put(":cursor", new AttributeValue().withN(Long.toString(cursor)));
+        List<EndpointServiceRecord> records = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            QueryResult queryResult = dynamodbClient.query(new QueryRequest()
+                    .withTableName(tableName)
+                    .withIndexName(CHANGE_SEQUENCE_INDEX)
+                    .withKeyConditionExpression("Change_Feed = :clusterArn AND Change_Sequence > :cursor")
+                    .withExpressionAttributeValues(values)
+                    .withExclusiveStartKey(lastEvaluatedKey));
+            queryResult.getItems().forEach(i -> records.add(EndpointServiceRecord.fromItem(i)));
+            lastEvaluatedKey = queryResult.getLastEvaluatedKey();
+        } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+
+        metrics.recordPhase("read_changes", start);
+        logger.info("{} records of cluster {} changed after change sequence {} \n", records.size(), clusterArn, cursor);
+        return new EndpointServiceChanges(records, getSettledCursor(records, cursor, Instant.now().minusMillis(INDEX_SETTLE_MILLIS)));
+    }
+
+    /**
+     * The change sequence of the last record, in change sequence order, before the first one updated after settled.
+     * A record without an update time is never settled.
+     */
+    static long getSettledCursor(List<EndpointServiceRecord> records, long cursor, Instant settled) {
+        long nextCursor = cursor;
+        for (EndpointServiceRecord record : records) {
+            if (record.getUpdatedAt() == null || Instant.parse(record.getUpdatedAt()).isAfter(settled)) {
+                break;
             }
+            nextCursor = record.getChangeSequence();
         }
-        filterExpression.append("NLB_Name in (").append(filterExpValues.toString()).append(")");
-        ScanRequest scanRequest = new ScanRequest()
-                .withFilterExpression(filterExpression.toString())
-                .withProjectionExpression("Service_Endpoint_DNS")
-                .withExpressionAttributeValues(expressionAttributeValues)
-                .withTableName(tableName);
-        ScanResult scanResult = dynamodbClient.scanAsync(scanRequest).get();
-        scanResult.getItems().forEach(i -> endpointServices.add(i.entrySet().iterator().next().getValue().getS().split("\\.")[4]));
-        return endpointServices;
+        return nextCursor;
     }
-}
 
+    /**
+     * Removes the cluster's rows for the given brokers, leaving tombstones for the change feed.
+     */
+    void deleteRecords(String tableName, String clusterArn, Collection<Integer> brokerIds) {
+        long start = System.nanoTime();
+        EndpointServicesRecordWriter recordWriter = createRecordWriter(tableName);
+        brokerIds.forEach(i -> recordWriter.delete(getKey(clusterArn, i)));
+        recordWriter.close().join();
+        metrics.recordPhase("delete_records", start);
+    }
+}
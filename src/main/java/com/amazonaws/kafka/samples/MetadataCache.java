@@ -0,0 +1,160 @@
+package com.amazonaws.kafka.samples;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Metadata read through the Describe/List APIs, cached by namespace and resource ARN or name for ttlMillis.
+ * The domain classes put what they create and invalidate what they modify or delete, so the cache only saves reads.
+ * Only metadata that does not change for the life of a resource, the VPC and zone ID of a subnet, is
+ * saved to a snapshot file and loaded from it on the next run, as long as it has not expired. State that another run
+ * or the console can change, such as ARNs, listeners and NLB or endpoint service states, is described again in every
+ * run. A ttlMillis of 0 disables the cache.
+ */
+class MetadataCache {
+
+    static final String VPC_ID = "vpc-id";
+    static final String ZONE_ID = "zone-id";
+    static final String NLB_ARN = "nlb-arn";
+    static final String NLB_ACTIVE = "nlb-active";
+    static final String TARGET_GROUP_ARN = "target-group-arn";
+    static final String LISTENERS = "listeners";
+    static final String SERVICE_STATE = "service-state";
+    static final String NODES = "nodes";
+
+    private static final Set<String> SNAPSHOT_NAMESPACES = new HashSet<>(Arrays.asList(VPC_ID, ZONE_ID));
+    private static final Logger logger = LogManager.getLogger(MetadataCache.class);
+
+    private final long ttlMillis;
+    private final String snapshotFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    MetadataCache(long ttlMillis, String snapshotFile) {
+        this.ttlMillis = ttlMillis;
+        this.snapshotFile = snapshotFile;
+        load();
+    }
+
+    private static String cacheKey(String namespace, String key) {
+        return namespace + "|" + key;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(String namespace, String key) {
+        Entry entry = entries.get(cacheKey(namespace, key));
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis()) {
+            if (entry != null) {
+                entries.remove(cacheKey(namespace, key), entry);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return (T) entry.value;
+    }
+
+    <T> T get(String namespace, String key, Supplier<T> loader) {
+        T value = get(namespace, key);
+        if (value == null) {
+            value = loader.get();
+            put(namespace, key, value);
+        }
+        return value;
+    }
+
+    void put(String namespace, String key, Object value) {
+        if (ttlMillis > 0 && value != null) {
+            entries.put(cacheKey(namespace, key), new Entry(value, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    void invalidate(String namespace, String key) {
+        entries.remove(cacheKey(namespace, key));
+    }
+
+    /**
+     * Removes the entries of a namespace that hold the given value, e.g. the name to ARN entry of a deleted resource.
+     */
+    void invalidateValue(String namespace, Object value) {
+        entries.entrySet().removeIf(i -> i.getKey().startsWith(namespace + "|") && value.equals(i.getValue().value));
+    }
+
+    private static boolean isPersistable(String cacheKey, Object value) {
+        return SNAPSHOT_NAMESPACES.contains(cacheKey.substring(0, cacheKey.indexOf('|'))) && value instanceof String;
+    }
+
+    private void load() {
+        if (snapshotFile == null || ttlMillis <= 0 || !new File(snapshotFile).exists()) {
+            return;
+        }
+        try {
+            Map<String, Entry> snapshot = new ObjectMapper().readValue(new File(snapshotFile), new TypeReference<Map<String, Entry>>() {});
+            long now = System.currentTimeMillis();
+            snapshot.forEach((k, v) -> {
+                // Snapshots of earlier versions hold every namespace.
+                if (v.expiresAt > now && isPersistable(k, v.value)) {
+                    entries.put(k, v);
+                }
+            });
+            logger.info("Loaded {} metadata cache entries from {} \n", entries.size(), snapshotFile);
+        } catch (IOException e) {
+            logger.error("Could not read metadata cache snapshot {}. Starting with an empty cache. \n", snapshotFile);
+            logger.error(Util.stackTrace(e));
+        }
+    }
+
+    void save() {
+        if (snapshotFile == null || ttlMillis <= 0) {
+            return;
+        }
+        Map<String, Entry> snapshot = new HashMap<>();
+        long now = System.currentTimeMillis();
+        entries.forEach((k, v) -> {
+            if (v.expiresAt > now && isPersistable(k, v.value)) {
+                snapshot.put(k, v);
+            }
+        });
+        try {
+            new ObjectMapper().writeValue(new File(snapshotFile), snapshot);
+            logger.info("Saved {} metadata cache entries to {} \n", snapshot.size(), snapshotFile);
+        } catch (IOException e) {
+            logger.error("Could not write metadata cache snapshot {} \n", snapshotFile);
+            logger.error(Util.stackTrace(e));
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    static class Entry {
+        public Object value;
+        public long expiresAt;
+
+        Entry() {
+        }
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
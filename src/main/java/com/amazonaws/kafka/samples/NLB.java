@@ -2,33 +2,45 @@ package com.amazonaws.kafka.samples;
 
 import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingAsync;
 import com.amazonaws.services.elasticloadbalancingv2.model.*;
-import com.amazonaws.services.kafka.model.ListNodesResult;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 class NLB {
 
+    private static final int MAX_NAMES_PER_DESCRIBE = 20;
+    private static final int MAX_PAGE_SIZE = 400;
+    private static final int MAX_DELETE_ATTEMPTS = 8;
     private final AmazonElasticLoadBalancingAsync lbClient;
+    private final RunMetrics metrics;
+    private final MetadataCache cache;
+    private final RunJournal journal;
     private static final Logger logger = LogManager.getLogger(NLB.class);
 
-    NLB(AmazonElasticLoadBalancingAsync lbClient){
+    NLB(AmazonElasticLoadBalancingAsync lbClient, RunMetrics metrics, MetadataCache cache, RunJournal journal){
         this.lbClient = lbClient;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.journal = journal;
     }
 
-    private void modifyLBAttributes(String lbArn, Collection<LoadBalancerAttribute> loadBalancerAttributeCollection) throws ExecutionException, InterruptedException {
+    private CompletableFuture<ModifyLoadBalancerAttributesResult> modifyLBAttributes(String lbArn, Collection<LoadBalancerAttribute> loadBalancerAttributeCollection) {
         ModifyLoadBalancerAttributesRequest modifyLoadBalancerAttributesRequest = new ModifyLoadBalancerAttributesRequest()
                 .withLoadBalancerArn(lbArn)
                 .withAttributes(loadBalancerAttributeCollection);
-        lbClient.modifyLoadBalancerAttributesAsync(modifyLoadBalancerAttributesRequest).get();
+        AsyncResult<ModifyLoadBalancerAttributesRequest, ModifyLoadBalancerAttributesResult> result = new AsyncResult<>();
+        lbClient.modifyLoadBalancerAttributesAsync(modifyLoadBalancerAttributesRequest, result);
+        return result;
     }
 
-    private String createTargetGroup(String vpcId, Integer targetPort, String tgName) throws ExecutionException, InterruptedException {
+    private CompletableFuture<String> createTargetGroup(String vpcId, Integer targetPort, String tgName) {
         CreateTargetGroupRequest createTargetGroupRequest = new CreateTargetGroupRequest()
                 .withTargetType(TargetTypeEnum.Ip)
                 .withHealthCheckEnabled(true)
@@ -36,122 +48,329 @@ class NLB {
                 .withProtocol(ProtocolEnum.TCP)
                 .withVpcId(vpcId)
                 .withName(tgName);
+        AsyncResult<CreateTargetGroupRequest, CreateTargetGroupResult> result = new AsyncResult<>();
+        lbClient.createTargetGroupAsync(createTargetGroupRequest, result);
+        return result.thenApply(i -> {
+            String targetGroupArn = i.getTargetGroups().listIterator().next().getTargetGroupArn();
+            cache.put(MetadataCache.TARGET_GROUP_ARN, tgName, targetGroupArn);
+            return targetGroupArn;
+        });
+    }
 
-        return lbClient.createTargetGroupAsync(createTargetGroupRequest).get().getTargetGroups().listIterator().next().getTargetGroupArn();
+    /**
+     * Deletes a target group, retrying while the listener that used it is still being removed.
+     */
+    CompletableFuture<Void> deleteTargetGroup(String targetGroupArn) {
+        return deleteTargetGroup(targetGroupArn, 0).whenComplete((i, e) -> cache.invalidateValue(MetadataCache.TARGET_GROUP_ARN, targetGroupArn));
     }
 
-    private void deleteTargetGroup(String targetGroupArn) throws ExecutionException, InterruptedException {
+    private CompletableFuture<Void> deleteTargetGroup(String targetGroupArn, int attempt) {
         DeleteTargetGroupRequest deleteTargetGroupRequest = new DeleteTargetGroupRequest()
                 .withTargetGroupArn(targetGroupArn);
-        lbClient.deleteTargetGroupAsync(deleteTargetGroupRequest).get();
-    }
-
-    void deleteTargetGroups(List<String> targetGroupsArns){
-        targetGroupsArns.forEach(i -> {
-            try {
-                logger.info("Deleting Target Group with Arn: {} \n", i);
-                deleteTargetGroup(i);
-            } catch (ExecutionException| InterruptedException e) {
-                logger.error(Util.stackTrace(e));
-                throw new RuntimeException(String.format("Could not delete Target Group with Arn: %s \n", i));
+        logger.info("Deleting Target Group with Arn: {} \n", targetGroupArn);
+        AsyncResult<DeleteTargetGroupRequest, DeleteTargetGroupResult> result = new AsyncResult<>();
+        lbClient.deleteTargetGroupAsync(deleteTargetGroupRequest, result);
+        return result.handle((i, e) -> {
+            if (e == null) {
+                return CompletableFuture.<Void>completedFuture(null);
             }
-        });
-
+            if (e instanceof ResourceInUseException && attempt + 1 < MAX_DELETE_ATTEMPTS) {
+                return metrics.timeWait("target_group_in_use", Util.delay(Util.backoffWithJitter(attempt, 1000L, 15000L))).thenCompose(k -> deleteTargetGroup(targetGroupArn, attempt + 1));
+            }
+            return Util.<Void>failedFuture(e);
+        }).thenCompose(Function.identity());
     }
 
-    private void deleteListener(String listenerArn) throws ExecutionException, InterruptedException {
+    CompletableFuture<Void> deleteListener(String listenerArn) {
         DeleteListenerRequest deleteListenerRequest = new DeleteListenerRequest()
                 .withListenerArn(listenerArn);
-        lbClient.deleteListenerAsync(deleteListenerRequest).get();
+        logger.info("Deleting Listener with Arn: {} \n", listenerArn);
+        AsyncResult<DeleteListenerRequest, DeleteListenerResult> result = new AsyncResult<>();
+        lbClient.deleteListenerAsync(deleteListenerRequest, result);
+        return result.whenComplete((i, e) -> cache.invalidate(MetadataCache.LISTENERS, getLoadBalancerArn(listenerArn))).thenApply(i -> null);
     }
 
-    void deleteListeners(List<String> nlbListenerArns){
-        nlbListenerArns.forEach(i -> {
-            try {
-                logger.info("Deleting Listener with Arn: {} \n", i);
-                deleteListener(i);
-            } catch (ExecutionException| InterruptedException e) {
-                logger.error(Util.stackTrace(e));
-                throw new RuntimeException(String.format("Could not delete Listener with Arn: %s \n", i));
+    /**
+     * The ARN of a listener's NLB: arn:...:listener/net/name/lb-id/listener-id belongs to arn:...:loadbalancer/net/name/lb-id.
+     */
+    private static String getLoadBalancerArn(String listenerArn) {
+        return listenerArn.substring(0, listenerArn.lastIndexOf('/')).replace(":listener/", ":loadbalancer/");
+    }
+
+    private CompletableFuture<List<Listener>> getNLBListeners(String nlbArn, String marker) {
+        DescribeListenersRequest describeListenersRequest = new DescribeListenersRequest()
+                .withLoadBalancerArn(nlbArn)
+                .withMarker(marker);
+        AsyncResult<DescribeListenersRequest, DescribeListenersResult> result = new AsyncResult<>();
+        lbClient.describeListenersAsync(describeListenersRequest, result);
+        return result.thenCompose(i -> {
+            List<Listener> listeners = new ArrayList<>(i.getListeners());
+            if (i.getNextMarker() == null) {
+                return CompletableFuture.completedFuture(listeners);
             }
+            return getNLBListeners(nlbArn, i.getNextMarker()).thenApply(k -> {
+                listeners.addAll(k);
+                return listeners;
+            });
         });
-
     }
 
-    List<String> getNLBListenerArns(List<String> nlbArns){
-        List<String> nlbListenerArns = new ArrayList<>();
+    /**
+     * Describes the listeners of all NLBs concurrently and returns them by NLB ARN. Cached listeners are kept as
+     * listener ARN to port, which is all the callers use.
+     */
+    Map<String, List<Listener>> getNLBListenerIndex(Collection<String> nlbArns) {
+        Map<String, CompletableFuture<List<Listener>>> lookups = new HashMap<>();
         nlbArns.forEach(i -> {
-            DescribeListenersRequest describeListenersRequest = new DescribeListenersRequest()
-                    .withLoadBalancerArn(i);
-            try {
-                lbClient.describeListenersAsync(describeListenersRequest).get().getListeners().forEach(k -> nlbListenerArns.add(k.getListenerArn()));
-            } catch (ExecutionException| InterruptedException e) {
-                logger.error(Util.stackTrace(e));
-                throw new RuntimeException(String.format("Could not get listeners for NLB Arn: %s \n", i));
+            Map<String, Integer> cached = cache.get(MetadataCache.LISTENERS, i);
+            if (cached != null) {
+                lookups.put(i, CompletableFuture.completedFuture(cached.entrySet().stream()
+                        .map(k -> new Listener().withListenerArn(k.getKey()).withPort(k.getValue()).withLoadBalancerArn(i))
+                        .collect(Collectors.toList())));
+            } else {
+                lookups.put(i, getNLBListeners(i, null).thenApply(k -> {
+                    cache.put(MetadataCache.LISTENERS, i, k.stream().collect(Collectors.toMap(Listener::getListenerArn, Listener::getPort)));
+                    return k;
+                }));
             }
         });
-        return nlbListenerArns;
+        CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture[0])).join();
+        Map<String, List<Listener>> nlbListenerIndex = new HashMap<>();
+        lookups.forEach((k, v) -> nlbListenerIndex.put(k, v.join()));
+        return nlbListenerIndex;
     }
 
-    private void deleteNLB(String lbArn) throws ExecutionException, InterruptedException {
+    CompletableFuture<Void> deleteNLB(String lbArn) {
         DeleteLoadBalancerRequest deleteLoadBalancerRequest = new DeleteLoadBalancerRequest()
                 .withLoadBalancerArn(lbArn);
-        lbClient.deleteLoadBalancerAsync(deleteLoadBalancerRequest).get();
+        logger.info("Deleting NLB with Arn: {} \n", lbArn);
+        AsyncResult<DeleteLoadBalancerRequest, DeleteLoadBalancerResult> result = new AsyncResult<>();
+        lbClient.deleteLoadBalancerAsync(deleteLoadBalancerRequest, result);
+        return result.whenComplete((i, e) -> {
+            cache.invalidateValue(MetadataCache.NLB_ARN, lbArn);
+            cache.invalidate(MetadataCache.NLB_ACTIVE, lbArn);
+            cache.invalidate(MetadataCache.LISTENERS, lbArn);
+        }).thenApply(i -> null);
     }
 
-    void deleteNLBs(List<String> nlbArns){
-        nlbArns.forEach(i -> {
-            try {
-                logger.info("Deleting NLB with Arn: {} \n", i);
-                deleteNLB(i);
-            } catch (ExecutionException| InterruptedException e) {
-                logger.error(Util.stackTrace(e));
-                throw new RuntimeException(String.format("Could not delete NLB with Arn: %s \n", i));
+    /**
+     * Resolves NLB names to ARNs. Names that do not exist are left out.
+     */
+    Map<String, String> getNLBArnIndex(Collection<String> nlbs) throws ExecutionException, InterruptedException {
+        return resolveCachedNames(nlbs, MetadataCache.NLB_ARN, i -> describeLoadBalancers(i, null).thenApply(k -> toArnIndex(k, LoadBalancer::getLoadBalancerArn)), LoadBalancerNotFoundException.class);
+    }
+
+    /**
+     * Resolves target group names to ARNs. Names that do not exist are left out.
+     */
+    Map<String, String> getTargetGroupArnIndex(Collection<String> targetGroups) throws ExecutionException, InterruptedException {
+        return resolveCachedNames(targetGroups, MetadataCache.TARGET_GROUP_ARN, i -> describeTargetGroups(i, null).thenApply(k -> toArnIndex(k, TargetGroup::getTargetGroupArn)), TargetGroupNotFoundException.class);
+    }
+
+    /**
+     * Describes the NLBs of the given names, bypassing the cache. Names that do not exist are left out.
+     */
+    Map<String, LoadBalancer> getLoadBalancers(Collection<String> nlbs) throws ExecutionException, InterruptedException {
+        return resolveNames(nlbs, i -> describeLoadBalancers(i, null), LoadBalancerNotFoundException.class).get();
+    }
+
+    /**
+     * Describes the target groups of the given names, bypassing the cache. Names that do not exist are left out.
+     */
+    Map<String, TargetGroup> getTargetGroups(Collection<String> targetGroups) throws ExecutionException, InterruptedException {
+        return resolveNames(targetGroups, i -> describeTargetGroups(i, null), TargetGroupNotFoundException.class).get();
+    }
+
+    /**
+     * The account's Elastic Load Balancing quotas in the region, by name, e.g. network-load-balancers.
+     */
+    Map<String, Long> getAccountLimits() {
+        Map<String, Long> limits = new HashMap<>();
+        String marker = null;
+        do {
+            DescribeAccountLimitsResult describeAccountLimitsResult = lbClient.describeAccountLimits(new DescribeAccountLimitsRequest().withMarker(marker));
+            describeAccountLimitsResult.getLimits().forEach(i -> limits.put(i.getName(), Long.parseLong(i.getMax())));
+            marker = describeAccountLimitsResult.getNextMarker();
+        } while (marker != null);
+        return limits;
+    }
+
+    /**
+     * The number of NLBs in the account and region.
+     */
+    int countNetworkLoadBalancers() {
+        int count = 0;
+        String marker = null;
+        do {
+            DescribeLoadBalancersResult describeLoadBalancersResult = lbClient.describeLoadBalancers(new DescribeLoadBalancersRequest()
+                    .withPageSize(MAX_PAGE_SIZE)
+                    .withMarker(marker));
+            count += (int) describeLoadBalancersResult.getLoadBalancers().stream().filter(i -> LoadBalancerTypeEnum.Network.toString().equals(i.getType())).count();
+            marker = describeLoadBalancersResult.getNextMarker();
+        } while (marker != null);
+        return count;
+    }
+
+    /**
+     * The number of target groups in the account and region, of all load balancer types, as they share one quota.
+     */
+    int countTargetGroups() {
+        int count = 0;
+        String marker = null;
+        do {
+            DescribeTargetGroupsResult describeTargetGroupsResult = lbClient.describeTargetGroups(new DescribeTargetGroupsRequest()
+                    .withPageSize(MAX_PAGE_SIZE)
+                    .withMarker(marker));
+            count += describeTargetGroupsResult.getTargetGroups().size();
+            marker = describeTargetGroupsResult.getNextMarker();
+        } while (marker != null);
+        return count;
+    }
+
+    private static <T> Map<String, String> toArnIndex(Map<String, T> resources, Function<T, String> arn) {
+        Map<String, String> index = new HashMap<>();
+        resources.forEach((k, v) -> index.put(k, arn.apply(v)));
+        return index;
+    }
+
+    /**
+     * Takes what it can from the cache and resolves only the remaining names. Names that were not found are not cached.
+     */
+    private Map<String, String> resolveCachedNames(Collection<String> names, String namespace, Function<List<String>, CompletableFuture<Map<String, String>>> describe,
+                                                   Class<? extends Exception> notFoundException) throws ExecutionException, InterruptedException {
+        Map<String, String> index = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String name : new LinkedHashSet<>(names)) {
+            String arn = cache.get(namespace, name);
+            if (arn != null) {
+                index.put(name, arn);
+            } else {
+                uncached.add(name);
             }
-        });
+        }
+        if (!uncached.isEmpty()) {
+            Map<String, String> resolved = resolveNames(uncached, describe, notFoundException).get();
+            resolved.forEach((k, v) -> cache.put(namespace, k, v));
+            index.putAll(resolved);
+        }
+        return index;
     }
 
-    List<String> getTargetGroups(ListNodesResult mskNodes){
-        List<String> targetGroups = new ArrayList<>();
-        mskNodes.getNodeInfoList().forEach(i -> targetGroups.add("TG-MSKBroker-"  + i.getBrokerNodeInfo().getClientVpcIpAddress().replace(".", "-") + "-" + i.getBrokerNodeInfo().getBrokerId().intValue()));
-        return targetGroups;
+    /**
+     * Splits the names into chunks of 20, the most a Describe call accepts, and describes all chunks concurrently.
+     * A single unknown name fails its whole chunk, so such a chunk is retried one name per call.
+     */
+    private <T> CompletableFuture<Map<String, T>> resolveNames(Collection<String> names, Function<List<String>, CompletableFuture<Map<String, T>>> describe, Class<? extends Exception> notFoundException) {
+        List<String> uniqueNames = new ArrayList<>(new LinkedHashSet<>(names));
+        List<CompletableFuture<Map<String, T>>> chunks = new ArrayList<>();
+        for (int i = 0; i < uniqueNames.size(); i += MAX_NAMES_PER_DESCRIBE) {
+            chunks.add(resolveChunk(new ArrayList<>(uniqueNames.subList(i, Math.min(i + MAX_NAMES_PER_DESCRIBE, uniqueNames.size()))), describe, notFoundException));
+        }
+        return mergeIndexes(chunks);
     }
 
-    List<String> getTargetGroupArns(List<String> targetGroups) throws ExecutionException, InterruptedException {
-        List<String> targetGroupsArns = new ArrayList<>();
-        DescribeTargetGroupsRequest describeTargetGroupsRequest = new DescribeTargetGroupsRequest()
-                .withNames(targetGroups);
-        lbClient.describeTargetGroupsAsync(describeTargetGroupsRequest).get().getTargetGroups().forEach(i -> targetGroupsArns.add(i.getTargetGroupArn()));
-        return targetGroupsArns;
+    private <T> CompletableFuture<Map<String, T>> resolveChunk(List<String> names, Function<List<String>, CompletableFuture<Map<String, T>>> describe, Class<? extends Exception> notFoundException) {
+        return describe.apply(names).handle((index, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(index);
+            }
+            Throwable cause = Util.unwrap(e);
+            if (!notFoundException.isInstance(cause)) {
+                return Util.<Map<String, T>>failedFuture(cause);
+            }
+            if (names.size() == 1) {
+                return CompletableFuture.completedFuture(Collections.<String, T>emptyMap());
+            }
+            return mergeIndexes(names.stream().map(i -> resolveChunk(Collections.singletonList(i), describe, notFoundException)).collect(Collectors.toList()));
+        }).thenCompose(Function.identity());
     }
 
-    List<String> getNLBs(ListNodesResult mskNodes){
-        List<String> nlbs = new ArrayList<>();
-        mskNodes.getNodeInfoList().forEach(i -> nlbs.add("NLB-MSKBroker-"  + i.getBrokerNodeInfo().getClientVpcIpAddress().replace(".", "-") + "-" + i.getBrokerNodeInfo().getBrokerId().intValue()));
-        return nlbs;
+    private static <T> CompletableFuture<Map<String, T>> mergeIndexes(List<CompletableFuture<Map<String, T>>> indexes) {
+        return CompletableFuture.allOf(indexes.toArray(new CompletableFuture[0])).thenApply(i -> {
+            Map<String, T> merged = new HashMap<>();
+            indexes.forEach(k -> merged.putAll(k.join()));
+            return merged;
+        });
     }
 
-    List<String> getNLBArns(List<String> nlbs) throws ExecutionException, InterruptedException {
-        List<String> nlbArns = new ArrayList<>();
+    private CompletableFuture<Map<String, LoadBalancer>> describeLoadBalancers(List<String> names, String marker) {
         DescribeLoadBalancersRequest describeLoadBalancersRequest = new DescribeLoadBalancersRequest()
-                .withNames(nlbs);
-      lbClient.describeLoadBalancersAsync(describeLoadBalancersRequest).get().getLoadBalancers().forEach(i -> nlbArns.add(i.getLoadBalancerArn()));
-      return nlbArns;
+                .withNames(names)
+                .withMarker(marker);
+        AsyncResult<DescribeLoadBalancersRequest, DescribeLoadBalancersResult> result = new AsyncResult<>();
+        lbClient.describeLoadBalancersAsync(describeLoadBalancersRequest, result);
+        return result.thenCompose(i -> {
+            Map<String, LoadBalancer> loadBalancers = new HashMap<>();
+            i.getLoadBalancers().forEach(k -> loadBalancers.put(k.getLoadBalancerName(), k));
+            if (i.getNextMarker() == null) {
+                return CompletableFuture.completedFuture(loadBalancers);
+            }
+            return describeLoadBalancers(names, i.getNextMarker()).thenApply(k -> {
+                loadBalancers.putAll(k);
+                return loadBalancers;
+            });
+        });
     }
 
+    private CompletableFuture<Map<String, TargetGroup>> describeTargetGroups(List<String> names, String marker) {
+        DescribeTargetGroupsRequest describeTargetGroupsRequest = new DescribeTargetGroupsRequest()
+                .withNames(names)
+                .withMarker(marker);
+        AsyncResult<DescribeTargetGroupsRequest, DescribeTargetGroupsResult> result = new AsyncResult<>();
+        lbClient.describeTargetGroupsAsync(describeTargetGroupsRequest, result);
+        return result.thenCompose(i -> {
+            Map<String, TargetGroup> targetGroups = new HashMap<>();
+            i.getTargetGroups().forEach(k -> targetGroups.put(k.getTargetGroupName(), k));
+            if (i.getNextMarker() == null) {
+                return CompletableFuture.completedFuture(targetGroups);
+            }
+            return describeTargetGroups(names, i.getNextMarker()).thenApply(k -> {
+                targetGroups.putAll(k);
+                return targetGroups;
+            });
+        });
+    }
 
-    private void registerTargets(String targetGroupArn, Collection<TargetDescription> targetDescriptionCollection) throws ExecutionException, InterruptedException {
+    CompletableFuture<List<TargetDescription>> getTargets(String targetGroupArn) {
+        DescribeTargetHealthRequest describeTargetHealthRequest = new DescribeTargetHealthRequest()
+                .withTargetGroupArn(targetGroupArn);
+        AsyncResult<DescribeTargetHealthRequest, DescribeTargetHealthResult> result = new AsyncResult<>();
+        lbClient.describeTargetHealthAsync(describeTargetHealthRequest, result);
+        return result.thenApply(i -> i.getTargetHealthDescriptions().stream().map(TargetHealthDescription::getTarget).collect(Collectors.toList()));
+    }
+
+    /**
+     * Points a broker's target group at its new IP: the new target is registered before the old ones are deregistered.
+     */
+    CompletableFuture<Void> retarget(String targetGroupArn, String brokerIP, Integer targetPort, List<TargetDescription> staleTargets) {
+        CompletableFuture<RegisterTargetsResult> registered = registerTargets(targetGroupArn, Collections.singletonList(getTargetDescription(brokerIP, targetPort)));
+        if (staleTargets.isEmpty()) {
+            return registered.thenApply(i -> null);
+        }
+        return registered.thenCompose(i -> {
+            DeregisterTargetsRequest deregisterTargetsRequest = new DeregisterTargetsRequest()
+                    .withTargetGroupArn(targetGroupArn)
+                    .withTargets(staleTargets);
+            AsyncResult<DeregisterTargetsRequest, DeregisterTargetsResult> result = new AsyncResult<>();
+            lbClient.deregisterTargetsAsync(deregisterTargetsRequest, result);
+            return result.thenApply(k -> null);
+        });
+    }
+
+    private CompletableFuture<RegisterTargetsResult> registerTargets(String targetGroupArn, Collection<TargetDescription> targetDescriptionCollection) {
         RegisterTargetsRequest registerTargetsRequest = new RegisterTargetsRequest()
                 .withTargetGroupArn(targetGroupArn)
                 .withTargets(targetDescriptionCollection);
-        lbClient.registerTargetsAsync(registerTargetsRequest).get();
+        AsyncResult<RegisterTargetsRequest, RegisterTargetsResult> result = new AsyncResult<>();
+        lbClient.registerTargetsAsync(registerTargetsRequest, result);
+        return result;
     }
 
     private TargetDescription getTargetDescription(String IpAddress, Integer targetPort){
         return new TargetDescription().withId(IpAddress).withPort(targetPort);
     }
 
-    private void createLBListener(String lbArn, Integer lbPort, String targetGroupArn) throws ExecutionException, InterruptedException {
+    private CompletableFuture<String> createLBListener(String lbArn, Integer lbPort, String targetGroupArn) {
         CreateListenerRequest createListenerRequest = new CreateListenerRequest()
                 .withLoadBalancerArn(lbArn)
                 .withPort(lbPort)
@@ -159,51 +378,193 @@ class NLB {
                 .withDefaultActions(new Action()
                         .withType(ActionTypeEnum.Forward)
                         .withTargetGroupArn(targetGroupArn));
-        lbClient.createListenerAsync(createListenerRequest).get();
+        AsyncResult<CreateListenerRequest, CreateListenerResult> result = new AsyncResult<>();
+        lbClient.createListenerAsync(createListenerRequest, result);
+        return result.whenComplete((i, e) -> cache.invalidate(MetadataCache.LISTENERS, lbArn))
+                .thenApply(i -> i.getListeners().listIterator().next().getListenerArn());
     }
 
-    private String createNLB(String lbName, List<String> subnetList) throws ExecutionException, InterruptedException {
+    private CompletableFuture<String> createNLB(String lbName, List<String> subnetList) {
         CreateLoadBalancerRequest createLoadBalancerRequest = new CreateLoadBalancerRequest()
                 .withName(lbName)
                 .withType(LoadBalancerTypeEnum.Network)
                 .withSubnets(subnetList)
                 .withScheme(LoadBalancerSchemeEnum.Internal);
         logger.info("Starting Creation of NLB {} \n", lbName);
-        Future<CreateLoadBalancerResult> futureCreateLoadBalancerResult = lbClient.createLoadBalancerAsync(createLoadBalancerRequest);
+        AsyncResult<CreateLoadBalancerRequest, CreateLoadBalancerResult> result = new AsyncResult<>();
+        lbClient.createLoadBalancerAsync(createLoadBalancerRequest, result);
+        return result.thenApply(i -> {
+            logger.info("NLB {} created. \n", lbName);
+            String lbArn = i.getLoadBalancers().listIterator().next().getLoadBalancerArn();
+            cache.put(MetadataCache.NLB_ARN, lbName, lbArn);
+            return lbArn;
+        });
+    }
+
+    /**
+     * Runs the NLB -> attributes -> target group -> listener -> targets chain for a single broker.
+     * The target groups, one per port mapping, are created alongside the NLB since they do not depend on it, and each
+     * listener as soon as the NLB and its target group exist. Each step is journaled, so a
+     * resumed run only runs the steps an earlier run did not finish. Cross-zone load balancing is only enabled for
+     * NLBs in more than one subnet: a zonal NLB has a single target in its own zone.
+     */
+    private CompletableFuture<String> createBrokerNLB(BrokerTopology.Broker broker, List<String> subnetList, List<PortMapping> portMappings, String vpcId) {
+        String lbName = broker.getNlbName();
+        String brokerIP = broker.getIp();
+        String resource = RunJournal.broker(broker.getId());
+
+        CompletableFuture<String> lbArnFuture = journal.step(resource, "create_nlb", lbName, () -> createNLB(lbName, subnetList)
+                .thenCompose(lbArn -> modifyLBAttributes(lbArn, getLoadBalancerAttributeCollection(subnetList.size() > 1)).thenApply(i -> lbArn)));
+        List<CompletableFuture<String>> listeners = new ArrayList<>();
+        broker.getTargetGroupNames(portMappings).forEach((tgName, portMapping) -> {
+            CompletableFuture<String> targetGroupArnFuture = journal.step(resource, "create_target_group", tgName, () -> createTargetGroup(vpcId, portMapping.getTargetPort(), tgName)
+                    .thenCompose(targetGroupArn -> registerTargets(targetGroupArn, Collections.singletonList(getTargetDescription(brokerIP, portMapping.getTargetPort()))).thenApply(i -> targetGroupArn)));
+            listeners.add(lbArnFuture.thenCombine(targetGroupArnFuture, (lbArn, targetGroupArn) -> journal.step(resource, "create_listener", lbArn + ":" + portMapping.getListenerPort(),
+                    () -> createLBListener(lbArn, portMapping.getListenerPort(), targetGroupArn)))
+                    .thenCompose(Function.identity()));
+        });
 
-        while (!futureCreateLoadBalancerResult.isDone()){
-           logger.info("NLB {} is not done creating yet.Sleeping for 2 seconds.. \n", lbName);
-            TimeUnit.SECONDS.sleep(2);
+        return CompletableFuture.allOf(listeners.toArray(new CompletableFuture[0])).thenCompose(i -> lbArnFuture);
+    }
+
+    /**
+     * Creates the NLB resources for all brokers concurrently, with at most maxConcurrency broker chains in flight.
+     * A failure for one broker is logged and does not stop the others; failed brokers are left out of the returned map.
+     * NLBs are placed in all of the cluster's subnets or, if zonal, each only in its broker's own client subnet. Each NLB
+     * gets a listener and a target group per port mapping.
+     */
+    Map<String, Integer> createNLBSet(BrokerTopology brokers, boolean zonal, List<PortMapping> portMappings, String vpcId, int maxConcurrency) throws InterruptedException {
+
+        Map<String, Integer> lbArnsBrokerIdMap = new ConcurrentHashMap<>();
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+        List<CompletableFuture<Void>> pipelines = new ArrayList<>();
+
+        for (BrokerTopology.Broker broker : brokers.getBrokers()) {
+            int brokerId = broker.getId();
+            long waitStart = System.nanoTime();
+            permits.acquire();
+            metrics.recordWait("nlb_concurrency_limit", waitStart);
+            CompletableFuture<String> pipeline;
+            try {
+                List<String> brokerSubnets = zonal ? Collections.singletonList(broker.getSubnet()) : brokers.getSubnets();
+                pipeline = createBrokerNLB(broker, brokerSubnets, portMappings, vpcId);
+            } catch (RuntimeException e) {
+                pipeline = Util.failedFuture(e);
+            }
+            pipelines.add(metrics.timeBroker("create_nlb", brokerId, pipeline).handle((lbArn, e) -> {
+                permits.release();
+                if (e == null) {
+                    lbArnsBrokerIdMap.put(lbArn, brokerId);
+                } else {
+                    failedBrokers.put(brokerId, e);
+                    logger.error("Could not create NLB resources for broker {} \n", brokerId);
+                    logger.error(Util.stackTrace(e));
+                }
+                return null;
+            }));
         }
 
-        logger.info("NLB {} created. \n", lbName);
-        return futureCreateLoadBalancerResult.get().getLoadBalancers().listIterator().next().getLoadBalancerArn();
+        CompletableFuture.allOf(pipelines.toArray(new CompletableFuture[0])).join();
+        if (!failedBrokers.isEmpty()) {
+            logger.error("NLB creation failed for brokers {} \n", failedBrokers.keySet());
+        }
+        return lbArnsBrokerIdMap;
     }
 
-    Map<String, Integer> createNLBSet(Map<Double, String> brokerIPMap, List<String> subnetList, Integer targetPort, Integer lbListenerPort, String vpcId) throws ExecutionException, InterruptedException {
+    /**
+     * Short, stable ID of a cluster for resource names, which are limited to 32 characters: the first 8 hex digits
+     * of the cluster UUID (arn:aws:kafka:region:account:cluster/name/uuid).
+     */
+    private static String getClusterId(String clusterArn) {
+        String[] arnParts = clusterArn.split("/");
+        return arnParts[arnParts.length - 1].replace("-", "").substring(0, 8);
+    }
 
-        Map<String, Integer> lbArnsBrokerIdMap = new HashMap<>();
+    static String getSharedNLBName(String clusterArn) {
+        return "NLB-MSKShared-" + getClusterId(clusterArn);
+    }
 
-        for (Map.Entry<Double, String> i : brokerIPMap.entrySet()) {
-            int brokerId = i.getKey().intValue();
-            String lbName = "NLB-MSKBroker-" + i.getValue().replace(".", "-") + "-" + brokerId;
-            String tgName = "TG-MSKBroker-"  + i.getValue().replace(".", "-") + "-" +  brokerId;
-            String lbArn = createNLB(lbName, subnetList);
+    static String getSharedTargetGroupName(String clusterArn, int brokerId) {
+        return "TG-MSKShared-" + getClusterId(clusterArn) + "-" + brokerId;
+    }
 
-            lbArnsBrokerIdMap.put(lbArn, brokerId);
-            modifyLBAttributes(lbArn, getLoadBalancerAttributeCollection());
-            String targetGroupArn = createTargetGroup(vpcId, targetPort, tgName);
-            createLBListener(lbArn, lbListenerPort, targetGroupArn);
-            registerTargets(targetGroupArn, Collections.singletonList(getTargetDescription(i.getValue(), targetPort)));
+    /**
+     * Listener port of a broker on the shared NLB. Broker IDs start at 1, so the first broker keeps lbListenerPort.
+     * Throws if the port would be above 65535.
+     */
+    static int getSharedListenerPort(int lbListenerPort, int brokerId) {
+        int listenerPort = lbListenerPort + brokerId - 1;
+        if (listenerPort > 65535) {
+            throw new RuntimeException(String.format("Broker %d would get listener port %d on the shared NLB, above 65535. Use a listener port of at most %d. \n",
+                    brokerId, listenerPort, 65535 - brokerId + 1));
         }
-        return lbArnsBrokerIdMap;
+        return listenerPort;
+    }
+
+    /**
+     * Creates the cluster's shared NLB, or returns the existing one since CreateLoadBalancer is idempotent for the same settings.
+     */
+    CompletableFuture<String> createSharedNLB(String clusterArn, List<String> subnetList) {
+        String lbName = getSharedNLBName(clusterArn);
+        return journal.step("shared", "create_nlb", lbName, () -> createNLB(lbName, subnetList)
+                .thenCompose(lbArn -> modifyLBAttributes(lbArn, getLoadBalancerAttributeCollection(true)).thenApply(i -> lbArn)));
+    }
+
+    /**
+     * Adds a target group and a listener on its own port to the shared NLB for each broker, at most maxConcurrency
+     * brokers at a time. The target groups are created while the NLB is still being created. Failed brokers are
+     * logged and left out of the returned broker ID to listener port map.
+     */
+    Map<Integer, Integer> createSharedListeners(CompletableFuture<String> lbArnFuture, BrokerTopology brokers, String clusterArn, Integer targetPort, Integer lbListenerPort, String vpcId, int maxConcurrency) throws InterruptedException {
+
+        Map<Integer, Integer> brokerListenerPorts = new ConcurrentHashMap<>();
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+        List<CompletableFuture<Void>> pipelines = new ArrayList<>();
+
+        for (BrokerTopology.Broker broker : brokers.getBrokers()) {
+            int brokerId = broker.getId();
+            int listenerPort = getSharedListenerPort(lbListenerPort, brokerId);
+            long waitStart = System.nanoTime();
+            permits.acquire();
+            metrics.recordWait("nlb_concurrency_limit", waitStart);
+            String resource = RunJournal.broker(brokerId);
+            String tgName = getSharedTargetGroupName(clusterArn, brokerId);
+            CompletableFuture<String> pipeline;
+            try {
+                CompletableFuture<String> targetGroupArnFuture = journal.step(resource, "create_target_group", tgName + ":" + broker.getIp(), () -> createTargetGroup(vpcId, targetPort, tgName)
+                        .thenCompose(targetGroupArn -> registerTargets(targetGroupArn, Collections.singletonList(getTargetDescription(broker.getIp(), targetPort))).thenApply(k -> targetGroupArn)));
+                pipeline = lbArnFuture.thenCombine(targetGroupArnFuture, (lbArn, targetGroupArn) -> journal.step(resource, "create_listener", lbArn + ":" + listenerPort, () -> createLBListener(lbArn, listenerPort, targetGroupArn)))
+                        .thenCompose(Function.identity());
+            } catch (RuntimeException e) {
+                pipeline = Util.failedFuture(e);
+            }
+            pipelines.add(metrics.timeBroker("create_listener", brokerId, pipeline).handle((listener, e) -> {
+                permits.release();
+                if (e == null) {
+                    brokerListenerPorts.put(brokerId, listenerPort);
+                } else {
+                    failedBrokers.put(brokerId, e);
+                    logger.error("Could not create listener on port {} for broker {} \n", listenerPort, brokerId);
+                    logger.error(Util.stackTrace(e));
+                }
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(pipelines.toArray(new CompletableFuture[0])).join();
+        if (!failedBrokers.isEmpty()) {
+            logger.error("Listener creation failed for brokers {} \n", failedBrokers.keySet());
+        }
+        return brokerListenerPorts;
     }
 
-    private Collection<LoadBalancerAttribute> getLoadBalancerAttributeCollection(){
+    private Collection<LoadBalancerAttribute> getLoadBalancerAttributeCollection(boolean crossZone){
         return Stream.of(
                 new LoadBalancerAttribute()
                         .withKey("load_balancing.cross_zone.enabled")
-                        .withValue("true")).collect(Collectors.toCollection(ArrayList::new));
+                        .withValue(String.valueOf(crossZone))).collect(Collectors.toCollection(ArrayList::new));
 
     }
 
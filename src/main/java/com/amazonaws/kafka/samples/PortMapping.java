@@ -0,0 +1,97 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A port a broker's NLB listens on and the broker port its target group forwards to, e.g. 9096:9096 for SASL/SCRAM
+ * or 9098:9098 for IAM. Each broker NLB gets a listener and a target group per mapping.
+ */
+final class PortMapping {
+
+    private final int targetPort;
+    private final int listenerPort;
+
+    PortMapping(int targetPort, int listenerPort) {
+        this.targetPort = targetPort;
+        this.listenerPort = listenerPort;
+    }
+
+    int getTargetPort() {
+        return targetPort;
+    }
+
+    int getListenerPort() {
+        return listenerPort;
+    }
+
+    /**
+     * Parses targetPort:listenerPort, or a single port used for both.
+     */
+    static PortMapping parse(String mapping) {
+        String[] ports = mapping.trim().split(":", -1);
+        if (ports.length == 1 || ports.length == 2) {
+            try {
+                PortMapping portMapping = new PortMapping(Integer.parseInt(ports[0]), Integer.parseInt(ports[ports.length - 1]));
+                if (isPort(portMapping.targetPort) && isPort(portMapping.listenerPort)) {
+                    return portMapping;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+        }
+        throw new RuntimeException(String.format("Invalid port mapping %s. Use targetPort:listenerPort, e.g. 9096:9096. \n", mapping));
+    }
+
+    /**
+     * Parses the mappings in order. A listener port can only be used once on an NLB.
+     */
+    static List<PortMapping> parseAll(Collection<String> mappings) {
+        List<PortMapping> portMappings = new ArrayList<>();
+        Set<Integer> listenerPorts = new HashSet<>();
+        for (String mapping : mappings) {
+            PortMapping portMapping = parse(mapping);
+            if (!listenerPorts.add(portMapping.listenerPort)) {
+                throw new RuntimeException(String.format("Listener port %d is mapped more than once \n", portMapping.listenerPort));
+            }
+            portMappings.add(portMapping);
+        }
+        return portMappings;
+    }
+
+    private static boolean isPort(int port) {
+        return port > 0 && port <= 65535;
+    }
+
+    /**
+     * The mappings as stored in a row's Port_Mappings attribute: a list, in order, of maps with Target_Port and Listener_Port.
+     */
+    static AttributeValue toAttributeValue(List<PortMapping> portMappings) {
+        List<AttributeValue> values = new ArrayList<>();
+        portMappings.forEach(i -> {
+            Map<String, AttributeValue> value = new HashMap<>();
+            value.put("Target_Port", new AttributeValue().withN(Integer.toString(i.targetPort)));
+            value.put("Listener_Port", new AttributeValue().withN(Integer.toString(i.listenerPort)));
+            values.add(new AttributeValue().withM(value));
+        });
+        return new AttributeValue().withL(values);
+    }
+
+    static List<PortMapping> fromAttributeValue(AttributeValue attributeValue) {
+        List<PortMapping> portMappings = new ArrayList<>();
+        attributeValue.getL().forEach(i -> portMappings.add(new PortMapping(Integer.parseInt(i.getM().get("Target_Port").getN()),
+                Integer.parseInt(i.getM().get("Listener_Port").getN()))));
+        return portMappings;
+    }
+
+    @Override
+    public String toString() {
+        return targetPort + ":" + listenerPort;
+    }
+}
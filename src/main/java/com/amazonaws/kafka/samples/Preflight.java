@@ -0,0 +1,243 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.elasticloadbalancingv2.model.AvailabilityZone;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancer;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancerSchemeEnum;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancerTypeEnum;
+import com.amazonaws.services.elasticloadbalancingv2.model.ProtocolEnum;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Plans a create run before anything is created. Each cluster's plan is derived from its broker topology: the NLBs,
+ * target groups, listeners and endpoint services the run needs, which of them already exist and can be reused, and
+ * which names are taken by resources the run could not reuse. The plans of all clusters are then checked together
+ * against the account's Elastic Load Balancing quotas and its existing resources, so a run that cannot finish fails
+ * in seconds, before its first NLB, rather than part way through.
+ */
+class Preflight {
+
+    // Elastic Load Balancing names are limited to 32 characters.
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final int MAX_ITEMS_PER_TRANSACTION = 24;
+    private static final int MAX_NODES_PER_PAGE = 100;
+    // Typical time for a new NLB to become active, which the endpoint services wait for.
+    private static final long NLB_PROVISIONING_SECONDS = 180L;
+    private static final Logger logger = LogManager.getLogger(Preflight.class);
+
+    /**
+     * What one cluster's run would create and reuse, the API calls it would make and the problems that would stop it.
+     */
+    static class Plan {
+        final String clusterArn;
+        final int brokers;
+        final int newNlbs;
+        final int reusedNlbs;
+        final int newTargetGroups;
+        final int reusedTargetGroups;
+        final int newListeners;
+        final int listenersPerNlb;
+        final int newEndpointServices;
+        final Map<String, Integer> apiCalls;
+        final List<String> problems;
+
+        private Plan(String clusterArn, int brokers, int newNlbs, int reusedNlbs, int newTargetGroups, int reusedTargetGroups, int newListeners,
+                     int listenersPerNlb, int newEndpointServices, Map<String, Integer> apiCalls, List<String> problems) {
+            this.clusterArn = clusterArn;
+            this.brokers = brokers;
+            this.newNlbs = newNlbs;
+            this.reusedNlbs = reusedNlbs;
+            this.newTargetGroups = newTargetGroups;
+            this.reusedTargetGroups = reusedTargetGroups;
+            this.newListeners = newListeners;
+            this.listenersPerNlb = listenersPerNlb;
+            this.newEndpointServices = newEndpointServices;
+            this.apiCalls = apiCalls;
+            this.problems = problems;
+        }
+    }
+
+    private final NLB nlb;
+    private final ServiceEndpoint serviceEndpoint;
+
+    Preflight(NLB nlb, ServiceEndpoint serviceEndpoint) {
+        this.nlb = nlb;
+        this.serviceEndpoint = serviceEndpoint;
+    }
+
+    /**
+     * Plans one cluster. An NLB or target group that already exists under a planned name is reused when the run would
+     * create it the same way, as the create calls are idempotent for the same settings; otherwise the name collides.
+     */
+    Plan plan(Fleet.Cluster cluster, String tableName, boolean shared, boolean zonal, List<PortMapping> portMappings, boolean allowPrincipals)
+            throws ExecutionException, InterruptedException {
+        BrokerTopology brokers = cluster.msk.getTopology(cluster.clusterArn);
+        List<String> problems = new ArrayList<>();
+        if (brokers.isEmpty()) {
+            problems.add(String.format("Cluster %s has no brokers", cluster.clusterArn));
+            return new Plan(cluster.clusterArn, 0, 0, 0, 0, 0, 0, 0, 0, Collections.emptyMap(), problems);
+        }
+        String vpcId = cluster.serviceEndpoint.getVPCId(brokers.getSubnets().get(0));
+
+        Map<String, List<String>> nlbSubnets = new LinkedHashMap<>();
+        // Target group names with the broker port each forwards to.
+        Map<String, Integer> targetGroupPorts = new LinkedHashMap<>();
+        if (shared) {
+            nlbSubnets.put(NLB.getSharedNLBName(cluster.clusterArn), brokers.getSubnets());
+            brokers.getBrokerIds().forEach(i -> {
+                targetGroupPorts.put(NLB.getSharedTargetGroupName(cluster.clusterArn, i), portMappings.get(0).getTargetPort());
+                try {
+                    NLB.getSharedListenerPort(portMappings.get(0).getListenerPort(), i);
+                } catch (RuntimeException e) {
+                    problems.add(String.format("Cluster %s: %s", cluster.clusterArn, e.getMessage().trim()));
+                }
+            });
+        } else {
+            brokers.getBrokers().forEach(i -> {
+                nlbSubnets.put(i.getNlbName(), zonal ? Collections.singletonList(i.getSubnet()) : brokers.getSubnets());
+                i.getTargetGroupNames(portMappings).forEach((k, v) -> targetGroupPorts.put(k, v.getTargetPort()));
+            });
+        }
+        nlbSubnets.keySet().stream().filter(i -> i.length() > MAX_NAME_LENGTH)
+                .forEach(i -> problems.add(String.format("NLB name %s is longer than %d characters", i, MAX_NAME_LENGTH)));
+        targetGroupPorts.keySet().stream().filter(i -> i.length() > MAX_NAME_LENGTH)
+                .forEach(i -> problems.add(String.format("Target group name %s is longer than %d characters", i, MAX_NAME_LENGTH)));
+
+        Map<String, LoadBalancer> existingNlbs = nlb.getLoadBalancers(nlbSubnets.keySet());
+        existingNlbs.forEach((k, v) -> {
+            Set<String> subnets = v.getAvailabilityZones().stream().map(AvailabilityZone::getSubnetId).collect(Collectors.toSet());
+            if (!vpcId.equals(v.getVpcId())) {
+                problems.add(String.format("NLB %s already exists in VPC %s, not in the cluster's VPC %s", k, v.getVpcId(), vpcId));
+            } else if (!LoadBalancerTypeEnum.Network.toString().equals(v.getType()) || !LoadBalancerSchemeEnum.Internal.toString().equals(v.getScheme())) {
+                problems.add(String.format("Load balancer %s already exists as an %s %s load balancer", k, v.getScheme(), v.getType()));
+            } else if (!subnets.equals(new HashSet<>(nlbSubnets.get(k)))) {
+                problems.add(String.format("NLB %s already exists in subnets %s, not in %s", k, subnets, nlbSubnets.get(k)));
+            }
+        });
+        Map<String, TargetGroup> existingTargetGroups = nlb.getTargetGroups(targetGroupPorts.keySet());
+        existingTargetGroups.forEach((k, v) -> {
+            if (!vpcId.equals(v.getVpcId())) {
+                problems.add(String.format("Target group %s already exists in VPC %s, not in the cluster's VPC %s", k, v.getVpcId(), vpcId));
+            } else if (!ProtocolEnum.TCP.toString().equals(v.getProtocol()) || !targetGroupPorts.get(k).equals(v.getPort())) {
+                problems.add(String.format("Target group %s already exists for %s port %s, not TCP port %d", k, v.getProtocol(), v.getPort(), targetGroupPorts.get(k)));
+            }
+        });
+
+        int newNlbs = nlbSubnets.size() - existingNlbs.size();
+        int newTargetGroups = targetGroupPorts.size() - existingTargetGroups.size();
+        int newEndpointServices = countNewEndpointServices(cluster, tableName, shared, brokers.size());
+        // A listener is created with its target group; a new broker NLB needs one per port mapping.
+        int newListeners = shared ? newTargetGroups : Math.max(newNlbs * portMappings.size(), newTargetGroups);
+
+        Map<String, Integer> apiCalls = new LinkedHashMap<>();
+        apiCalls.put("msk", (brokers.size() + MAX_NODES_PER_PAGE - 1) / MAX_NODES_PER_PAGE);
+        // CreateLoadBalancer and ModifyLoadBalancerAttributes per NLB; CreateTargetGroup and RegisterTargets per target group;
+        // CreateListener per listener.
+        apiCalls.put("elasticloadbalancing", 2 * newNlbs + 2 * newTargetGroups + newListeners);
+        // CreateVpcEndpointServiceConfiguration, and ModifyVpcEndpointServicePermissions when principals are allowed.
+        apiCalls.put("ec2", 1 + newEndpointServices * (allowPrincipals ? 2 : 1));
+        int transactions = (brokers.size() + MAX_ITEMS_PER_TRANSACTION - 1) / MAX_ITEMS_PER_TRANSACTION;
+        apiCalls.put("dynamodb", 1 + 2 * transactions);
+
+        return new Plan(cluster.clusterArn, brokers.size(), newNlbs, existingNlbs.size(), newTargetGroups, existingTargetGroups.size(), newListeners,
+                shared ? brokers.size() : portMappings.size(), newEndpointServices, apiCalls, problems);
+    }
+
+    /**
+     * Endpoint services are reused from the table when their service still exists. A shared NLB has one service for
+     * all brokers. A table that does not exist yet has no records, as it is only created after the preflight.
+     */
+    private int countNewEndpointServices(Fleet.Cluster cluster, String tableName, boolean shared, int brokers) {
+        Collection<EndpointServiceRecord> records;
+        try {
+            records = cluster.endpointServicesInfo.getClusterRecords(tableName, cluster.clusterArn).values();
+        } catch (ResourceNotFoundException e) {
+            logger.info("Table {} does not exist yet. Counting every endpoint service as new. \n", tableName);
+            records = Collections.emptyList();
+        }
+        List<EndpointServiceRecord> serviceRecords = records.stream()
+                .filter(i -> i.getServiceEndpointDNS() != null && i.isShared() == shared)
+                .collect(Collectors.toList());
+        Set<String> availableServiceIds = cluster.serviceEndpoint.getAvailableServiceIds(serviceRecords.stream().map(EndpointServiceRecord::getServiceId).collect(Collectors.toSet()));
+        long reused = serviceRecords.stream().filter(i -> availableServiceIds.contains(i.getServiceId())).count();
+        if (shared) {
+            return reused > 0 ? 0 : 1;
+        }
+        return (int) Math.max(0, brokers - reused);
+    }
+
+    /**
+     * Logs the plans and their totals, and throws once with every problem found: those of the plans and any quota the
+     * new resources would exceed. Endpoint services are only counted, as their quota cannot be read through the EC2 API.
+     */
+    void check(List<Plan> plans) {
+        List<String> problems = new ArrayList<>();
+        Map<String, Integer> apiCalls = new LinkedHashMap<>();
+        int newNlbs = 0;
+        int newTargetGroups = 0;
+        int newEndpointServices = 0;
+        int listenersPerNlb = 0;
+        for (Plan plan : plans) {
+            logger.info("Cluster {}: {} brokers, NLBs {} new {} reused, target groups {} new {} reused, {} new listeners, {} new endpoint services \n",
+                    plan.clusterArn, plan.brokers, plan.newNlbs, plan.reusedNlbs, plan.newTargetGroups, plan.reusedTargetGroups, plan.newListeners, plan.newEndpointServices);
+            plan.problems.forEach(i -> problems.add(plan.clusterArn + ": " + i));
+            plan.apiCalls.forEach((k, v) -> apiCalls.merge(k, v, Integer::sum));
+            newNlbs += plan.newNlbs;
+            newTargetGroups += plan.newTargetGroups;
+            newEndpointServices += plan.newEndpointServices;
+            listenersPerNlb = Math.max(listenersPerNlb, plan.listenersPerNlb);
+        }
+
+        Map<String, Long> limits = nlb.getAccountLimits();
+        checkQuota(problems, limits, "network-load-balancers", "NLBs", nlb.countNetworkLoadBalancers(), newNlbs);
+        checkQuota(problems, limits, "target-groups", "target groups", nlb.countTargetGroups(), newTargetGroups);
+        Long listenerLimit = limits.get("listeners-per-network-load-balancer");
+        if (listenerLimit != null && listenersPerNlb > listenerLimit) {
+            problems.add(String.format("An NLB would need %d listeners, above the quota of %d listeners per NLB", listenersPerNlb, listenerLimit));
+        }
+        logger.info("Endpoint services: {} existing, {} new \n", serviceEndpoint.countEndpointServices(), newEndpointServices);
+
+        long seconds = 0L;
+        seconds = Math.max(seconds, getSeconds(apiCalls, "msk", PrivateLinkCrossAccount.mskRequestRate));
+        seconds = Math.max(seconds, getSeconds(apiCalls, "elasticloadbalancing", PrivateLinkCrossAccount.lbRequestRate));
+        seconds = Math.max(seconds, getSeconds(apiCalls, "ec2", PrivateLinkCrossAccount.ec2RequestRate));
+        seconds = Math.max(seconds, getSeconds(apiCalls, "dynamodb", PrivateLinkCrossAccount.ddbRequestRate));
+        if (newNlbs > 0) {
+            seconds += NLB_PROVISIONING_SECONDS;
+        }
+        logger.info("Predicted API calls, without waiter polls: {}. Estimated duration: {} seconds \n", apiCalls, seconds);
+
+        if (!problems.isEmpty()) {
+            problems.forEach(i -> logger.error("Preflight: {} \n", i));
+            throw new RuntimeException(String.format("Preflight found %d problems, nothing was created: %s \n", problems.size(), problems));
+        }
+    }
+
+    private static void checkQuota(List<String> problems, Map<String, Long> limits, String limitName, String resources, int existing, int planned) {
+        Long limit = limits.get(limitName);
+        logger.info("{}: {} existing, {} new, quota {} \n", resources, existing, planned, limit);
+        if (limit != null && existing + planned > limit) {
+            problems.add(String.format("%d existing and %d new %s exceed the quota of %d", existing, planned, resources, limit));
+        }
+    }
+
+    private static long getSeconds(Map<String, Integer> apiCalls, String service, Double requestRate) {
+        Integer calls = apiCalls.get(service);
+        if (calls == null || requestRate == null || requestRate <= 0) {
+            return 0L;
+        }
+        return (long) Math.ceil(calls / requestRate);
+    }
+}
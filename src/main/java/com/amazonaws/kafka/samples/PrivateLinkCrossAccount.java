@@ -1,17 +1,25 @@
 package com.amazonaws.kafka.samples;
 
-import com.amazonaws.services.ec2.AmazonEC2Async;
-import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingAsync;
-import com.amazonaws.services.kafka.AWSKafkaAsync;
-import com.amazonaws.services.kafka.model.ListNodesResult;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 public class PrivateLinkCrossAccount {
 
@@ -24,11 +32,23 @@ public class PrivateLinkCrossAccount {
     @Parameter(names = {"--region", "-reg"})
     static String region = "us-east-1";
 
-    @Parameter(names = {"--mskClusterArn", "-mca"}, required = true)
-    static String mskClusterArn;
+    @Parameter(names = {"--mskClusterArn", "-mca"})
+    private static List<String> mskClusterArn = new ArrayList<>();
 
-    @Parameter(names = {"--allowedPrincipal", "-alp"}, required = true)
-    private static String allowedPrincipal;
+    @Parameter(names = {"--clusterManifest", "-cm"})
+    private static String clusterManifest;
+
+    @Parameter(names = {"--maxClusterConcurrency", "-mcc"})
+    private static Integer maxClusterConcurrency = 4;
+
+    @Parameter(names = {"--allowedPrincipal", "-alp"})
+    private static List<String> allowedPrincipal = new ArrayList<>();
+
+    @Parameter(names = {"--allowedPrincipalsFile", "-apf"})
+    private static String allowedPrincipalsFile;
+
+    @Parameter(names = {"--syncPermissions", "-sp"})
+    private static boolean syncPermissions = false;
 
     @Parameter(names = {"--targetPort", "-tgp"})
     private static Integer targetPort = 9094;
@@ -36,42 +56,347 @@ public class PrivateLinkCrossAccount {
     @Parameter(names = {"--lbListenerPort", "-llp"})
     private static Integer lbListenerPort = 9094;
 
+    @Parameter(names = {"--portMapping", "-pm"})
+    private static List<String> portMapping = new ArrayList<>();
+
     @Parameter(names = {"--deleteResources", "-del"})
     private static boolean deleteResources = false;
 
+    @Parameter(names = {"--reconcile", "-rec"})
+    private static boolean reconcile = false;
+
+    @Parameter(names = {"--consumer", "-con"})
+    private static boolean consumer = false;
+
+    @Parameter(names = {"--stackName"})
+    private static String stackName = "MSKClient";
+
+    @Parameter(names = {"--tableRoleArn"})
+    static String tableRoleArn;
+
+    @Parameter(names = {"--hostedZoneId"})
+    private static String hostedZoneId;
+
+    @Parameter(names = {"--cursorFile"})
+    private static String cursorFile;
+
+    @Parameter(names = {"--probe"})
+    private static boolean probe = false;
+
+    @Parameter(names = {"--probeBootstrapServers"})
+    private static String probeBootstrapServers;
+
+    @Parameter(names = {"--probeConfig"})
+    private static String probeConfig;
+
+    @Parameter(names = {"--probeTopic"})
+    private static String probeTopic = "privatelink-probe";
+
+    @Parameter(names = {"--probeRecords"})
+    private static Integer probeRecords = 1000;
+
+    @Parameter(names = {"--probeRecordSize"})
+    private static Integer probeRecordSize = 1024;
+
+    @Parameter(names = {"--probeTimeout"})
+    private static Integer probeTimeout = 120;
+
+    @Parameter(names = {"--probeMaxP99Millis"})
+    private static Long probeMaxP99Millis = 0L;
+
+    @Parameter(names = {"--watch", "-w"})
+    private static boolean watch = false;
+
+    @Parameter(names = {"--pollInterval"})
+    private static Integer pollInterval = 30;
+
+    @Parameter(names = {"--fastPollInterval"})
+    private static Integer fastPollInterval = 5;
+
+    @Parameter(names = {"--resyncInterval"})
+    private static Integer resyncInterval = 900;
+
+    @Parameter(names = {"--watchClusterOperations"})
+    private static boolean watchClusterOperations = false;
+
+    @Parameter(names = {"--healthPort"})
+    private static Integer healthPort = 8080;
+
+    @Parameter(names = {"--topology", "-top"})
+    private static String topology = "perBroker";
+
+    @Parameter(names = {"--plan"})
+    private static boolean planOnly = false;
+
+    @Parameter(names = {"--skipPreflight"})
+    private static boolean skipPreflight = false;
 
-    private static void initialize() {
+    @Parameter(names = {"--maxConcurrency", "-mc"})
+    private static Integer maxConcurrency = 10;
+
+    @Parameter(names = {"--mskRequestRate"})
+    static Double mskRequestRate = 5.0;
+
+    @Parameter(names = {"--mskMaxInFlight"})
+    static Integer mskMaxInFlight = 5;
+
+    @Parameter(names = {"--ec2RequestRate"})
+    static Double ec2RequestRate = 20.0;
+
+    @Parameter(names = {"--ec2MaxInFlight"})
+    static Integer ec2MaxInFlight = 20;
+
+    @Parameter(names = {"--lbRequestRate"})
+    static Double lbRequestRate = 10.0;
+
+    @Parameter(names = {"--lbMaxInFlight"})
+    static Integer lbMaxInFlight = 20;
+
+    @Parameter(names = {"--ddbRequestRate"})
+    static Double ddbRequestRate = 50.0;
+
+    @Parameter(names = {"--ddbMaxInFlight"})
+    static Integer ddbMaxInFlight = 25;
+
+    @Parameter(names = {"--route53RequestRate"})
+    static Double route53RequestRate = 5.0;
+
+    @Parameter(names = {"--route53MaxInFlight"})
+    static Integer route53MaxInFlight = 5;
+
+    @Parameter(names = {"--maxErrorRetry"})
+    static Integer maxErrorRetry = 10;
+
+    @Parameter(names = {"--executorThreads"})
+    static Integer executorThreads = 80;
+
+    @Parameter(names = {"--maxConnections"})
+    static Integer maxConnections = 50;
+
+    @Parameter(names = {"--connectionTTL"})
+    static Long connectionTTL = -1L;
+
+    @Parameter(names = {"--tcpKeepAlive"})
+    static boolean tcpKeepAlive = false;
+
+    @Parameter(names = {"--billingMode", "-bm"})
+    private static String billingMode = BillingMode.PAY_PER_REQUEST.toString();
+
+    @Parameter(names = {"--cacheTTL"})
+    private static Integer cacheTTL = 300;
+
+    @Parameter(names = {"--cacheSnapshot"})
+    private static String cacheSnapshot;
+
+    @Parameter(names = {"--journalFile", "-jf"})
+    private static String journalFile = "PrivateLinkCrossAccount-journal.log";
+
+    @Parameter(names = {"--resume"})
+    private static boolean resume = false;
+
+    @Parameter(names = {"--reportFile", "-rf"})
+    private static String reportFile = "PrivateLinkCrossAccount-report.json";
+
+    @Parameter(names = {"--prometheusFile", "-pf"})
+    private static String prometheusFile;
+
+    private static void initialize(ManageEndpointServicesInfo endpointServicesInfo) {
         long readCapacityUnits = 3L;
-        long writeCapacityUnits = 3L;
-        ManageEndpointServicesInfo.deleteTable(tableName);
-        ManageEndpointServicesInfo.createTable(tableName, readCapacityUnits, writeCapacityUnits);
+        // Transactional writes take two write units per item, on the table and on the change sequence index, which gets the same capacity.
+        long writeCapacityUnits = 10L;
+        endpointServicesInfo.createTableIfNotExists(tableName, BillingMode.fromValue(billingMode), readCapacityUnits, writeCapacityUnits);
     }
 
-    private static void cleanup(MSK msk, NLB nlb, ServiceEndpoint serviceEndpoint) throws ExecutionException, InterruptedException {
+    private static void cleanup(Fleet.Cluster cluster, List<PortMapping> portMappings) throws ExecutionException, InterruptedException {
         logger.info("Getting Amazon MSK nodes .. \n");
-        ListNodesResult mskNodes = msk.getNodes();
-        List<String> nlbs = nlb.getNLBs(mskNodes);
-        logger.info("Deleting Endpoint services .. \n");
-        serviceEndpoint.deleteServiceEndpoint(ManageEndpointServicesInfo.queryRecords(tableName, nlbs));
-        logger.info("Deleting Listeners .. \n");
-        List<String> nlbArns = nlb.getNLBArns(nlbs);
-        nlb.deleteListeners(nlb.getNLBListenerArns(nlbArns));
-        logger.info("Deleting Target Groups .. \n");
-        nlb.deleteTargetGroups(nlb.getTargetGroupArns(nlb.getTargetGroups(mskNodes)));
-        logger.info("Deleting NLBs .. \n");
-        nlb.deleteNLBs(nlbArns);
-    }
-
-    private static void createResources(MSK msk, NLB nlb, ServiceEndpoint serviceEndpoint) throws ExecutionException, InterruptedException {
+        BrokerTopology brokers = cluster.msk.getTopology(cluster.clusterArn);
+        logger.info("Reading endpoint services .. \n");
+        Map<Integer, EndpointServiceRecord> records = cluster.endpointServicesInfo.getClusterRecords(tableName, cluster.clusterArn);
+        // Brokers without a row may still have an NLB and target groups from an interrupted run.
+        brokers.getBrokers().forEach(i -> records.putIfAbsent(i.getId(), new EndpointServiceRecord(i.getId(), null, i.getNlbName(), null, portMappings)));
+        logger.info("Deleting Endpoint services, Listeners, NLBs and Target Groups .. \n");
+        long phaseStart = System.nanoTime();
+        new Teardown(cluster.nlb, cluster.serviceEndpoint, cluster.endpointServicesInfo, cluster.metrics).deleteBrokers(tableName, cluster.clusterArn, records, maxConcurrency);
+        cluster.metrics.recordPhase("teardown", phaseStart);
+    }
+
+    private static void createSharedResources(Fleet.Cluster cluster, Set<String> allowedPrincipals, PortMapping portMapping) throws InterruptedException {
         logger.info("Getting Amazon MSK nodes .. \n");
-        ListNodesResult mskNodes = msk.getNodes();
-        logger.info("Getting Amazon MSK subnets .. \n");
-        List<String> subnetList = msk.getSubnetList(mskNodes);
+        BrokerTopology brokers = cluster.msk.getTopology(cluster.clusterArn);
+        long phaseStart = System.nanoTime();
+        new SharedTopology(cluster.nlb, cluster.serviceEndpoint).addBrokers(cluster.clusterArn, tableName, allowedPrincipals, brokers,
+                cluster.serviceEndpoint.getVPCId(brokers.getSubnets().get(0)), cluster.endpointServicesInfo.getClusterRecords(tableName, cluster.clusterArn),
+                portMapping.getTargetPort(), portMapping.getListenerPort(), maxConcurrency);
+        cluster.metrics.recordPhase("create_shared_nlb", phaseStart);
+    }
+
+    private static void createResources(Fleet.Cluster cluster, Set<String> allowedPrincipals, List<PortMapping> portMappings) throws ExecutionException, InterruptedException {
+        logger.info("Getting Amazon MSK nodes .. \n");
+        BrokerTopology brokers = cluster.msk.getTopology(cluster.clusterArn);
         logger.info("Creating NLBs .. \n");
-        Map<String, Integer> lbArnsBrokerIdMap = nlb.createNLBSet(msk.getBrokerIPMap(mskNodes), subnetList, targetPort, lbListenerPort, serviceEndpoint.getVPCId(subnetList.get(0)));
+        long phaseStart = System.nanoTime();
+        Map<String, Integer> lbArnsBrokerIdMap = cluster.nlb.createNLBSet(brokers, isZonalTopology(), portMappings, cluster.serviceEndpoint.getVPCId(brokers.getSubnets().get(0)), maxConcurrency);
+        cluster.metrics.recordPhase("create_nlbs", phaseStart);
         logger.info("Creating Endpoint services .. \n");
-        Map<Integer, String> brokerEndpointMap = msk.getBrokerEndpointMap(mskNodes);
-        serviceEndpoint.createVpcEndpointServices(lbArnsBrokerIdMap, allowedPrincipal, tableName, brokerEndpointMap);
+        phaseStart = System.nanoTime();
+        cluster.serviceEndpoint.createVpcEndpointServices(lbArnsBrokerIdMap, allowedPrincipals, tableName, cluster.clusterArn, brokers.getBrokerEndpointMap(),
+                isZonalTopology() ? cluster.serviceEndpoint.getBrokerZoneIdMap(brokers.getBrokerSubnetMap()) : null, portMappings);
+        cluster.metrics.recordPhase("create_endpoint_services", phaseStart);
+        if (lbArnsBrokerIdMap.size() < brokers.size()) {
+            throw new RuntimeException(String.format("Could not create NLBs for %d of %d brokers \n", brokers.size() - lbArnsBrokerIdMap.size(), brokers.size()));
+        }
+    }
+
+    /**
+     * Plans every cluster and checks the plans together, so a run that would hit a quota or a taken name stops before
+     * creating anything. Returns false if the run should stop after the plan.
+     */
+    private static boolean runPreflight(Fleet fleet, List<String> clusterArns, Preflight preflight, Set<String> allowedPrincipals, List<PortMapping> portMappings,
+                                        RunMetrics metrics) throws Exception {
+        if (skipPreflight && !planOnly) {
+            return true;
+        }
+        logger.info("Planning resources .. \n");
+        long phaseStart = System.nanoTime();
+        List<Preflight.Plan> plans = Collections.synchronizedList(new ArrayList<>());
+        fleet.run(clusterArns, maxClusterConcurrency, i -> plans.add(preflight.plan(i, tableName, isSharedTopology(), isZonalTopology(), portMappings, !allowedPrincipals.isEmpty())));
+        preflight.check(plans);
+        metrics.recordPhase("preflight", phaseStart);
+        return !planOnly;
+    }
+
+    private static void createConsumerResources(Clients clients, Fleet.Cluster cluster) {
+        final VpcEndpointWaiter vpcEndpointWaiter = new VpcEndpointWaiter(clients.getEC2Client());
+        try {
+            new ConsumerEndpoints(clients.getEC2Client(), clients.getRoute53Client(), clients.getCloudFormationClient(), vpcEndpointWaiter, cluster.endpointServicesInfo, cluster.metrics)
+                    .createEndpoints(stackName, tableName, cluster.clusterArn, hostedZoneId, region, cursorFile);
+        } finally {
+            vpcEndpointWaiter.shutdown();
+        }
+    }
+
+    /**
+     * Probes the data path to the cluster's brokers, through probeBootstrapServers or else through each broker's
+     * endpoint from the table, on its listener port or the listener port of its first port mapping.
+     */
+    private static void runProbe(Clients clients, Fleet.Cluster cluster, List<PortMapping> portMappings) throws InterruptedException, ExecutionException, TimeoutException {
+        String bootstrapServers = probeBootstrapServers;
+        if (bootstrapServers == null) {
+            bootstrapServers = cluster.endpointServicesInfo.getClusterRecords(tableName, cluster.clusterArn).values().stream()
+                    .filter(i -> i.getBrokerEndpoint() != null)
+                    .map(i -> i.getBrokerEndpoint() + ":" + (i.isShared() ? i.getListenerPort() : i.getPortMappings(portMappings.get(0)).get(0).getListenerPort()))
+                    .collect(Collectors.joining(","));
+        }
+        if (bootstrapServers.isEmpty()) {
+            throw new RuntimeException(String.format("No broker endpoints of cluster %s found in table %s \n", cluster.clusterArn, tableName));
+        }
+        new DataPathProbe(clients, cluster.metrics).run(bootstrapServers, DataPathProbe.loadClientConfig(probeConfig), probeTopic, probeRecords, probeRecordSize,
+                TimeUnit.SECONDS.toMillis(probeTimeout), probeMaxP99Millis);
+    }
+
+    private static void syncPermissions(Fleet.Cluster cluster, Set<String> allowedPrincipals) {
+        logger.info("Reading endpoint services .. \n");
+        Set<String> serviceIds = cluster.serviceEndpoint.getAvailableServiceIds(cluster.endpointServicesInfo.getClusterRecords(tableName, cluster.clusterArn).values().stream()
+                .filter(i -> i.getServiceEndpointDNS() != null)
+                .map(EndpointServiceRecord::getServiceId)
+                .collect(Collectors.toSet()));
+        logger.info("Updating permissions of {} Endpoint services .. \n", serviceIds.size());
+        long phaseStart = System.nanoTime();
+        int changed = cluster.serviceEndpoint.syncPermissions(serviceIds, allowedPrincipals);
+        cluster.metrics.recordPhase("sync_permissions", phaseStart);
+        logger.info("Permissions changed on {} of {} Endpoint services \n", changed, serviceIds.size());
+    }
+
+    private static void runController(Fleet.Cluster cluster, Set<String> allowedPrincipals, List<PortMapping> portMappings, CountDownLatch finished) throws IOException, InterruptedException {
+        final Controller controller = new Controller(cluster.msk, cluster.nlb, cluster.serviceEndpoint, cluster.endpointServicesInfo, cluster.metrics);
+        // On SIGTERM the controller finishes its current poll and the report is written before the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            controller.stop();
+            try {
+                finished.await(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        controller.run(cluster.clusterArn, tableName, allowedPrincipals, portMappings, maxConcurrency, isSharedTopology(), isZonalTopology(),
+                TimeUnit.SECONDS.toMillis(pollInterval), TimeUnit.SECONDS.toMillis(fastPollInterval), TimeUnit.SECONDS.toMillis(resyncInterval), watchClusterOperations, healthPort);
+    }
+
+    /**
+     * The clusters given with --mskClusterArn (repeated or comma separated) and those in clusterManifest, one per line.
+     * Blank lines and lines starting with # are skipped.
+     */
+    private static List<String> getClusterArns() {
+        Set<String> clusterArns = new LinkedHashSet<>(mskClusterArn);
+        if (clusterManifest != null) {
+            try {
+                Files.readAllLines(Paths.get(clusterManifest)).stream()
+                        .map(String::trim)
+                        .filter(i -> !i.isEmpty() && !i.startsWith("#"))
+                        .forEach(clusterArns::add);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Could not read cluster ARNs from %s \n", clusterManifest));
+            }
+        }
+        return new ArrayList<>(clusterArns);
+    }
+
+    /**
+     * The principals given with --allowedPrincipal (repeated or comma separated) and those in allowedPrincipalsFile,
+     * one per line. Blank lines and lines starting with # are skipped.
+     */
+    private static Set<String> getAllowedPrincipals() {
+        Set<String> allowedPrincipals = new LinkedHashSet<>(allowedPrincipal);
+        if (allowedPrincipalsFile != null) {
+            try {
+                Files.readAllLines(Paths.get(allowedPrincipalsFile)).stream()
+                        .map(String::trim)
+                        .filter(i -> !i.isEmpty() && !i.startsWith("#"))
+                        .forEach(allowedPrincipals::add);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Could not read allowed principals from %s \n", allowedPrincipalsFile));
+            }
+        }
+        return allowedPrincipals;
+    }
+
+    /**
+     * The port mappings given with --portMapping (repeated or comma separated), in order, or else the single mapping of
+     * targetPort to lbListenerPort.
+     */
+    private static List<PortMapping> getPortMappings() {
+        if (portMapping.isEmpty()) {
+            return Collections.singletonList(new PortMapping(targetPort, lbListenerPort));
+        }
+        return PortMapping.parseAll(portMapping);
+    }
+
+    private static boolean isSharedTopology() {
+        if (!"perBroker".equals(topology) && !"shared".equals(topology) && !"zonal".equals(topology)) {
+            throw new RuntimeException(String.format("Unknown topology %s. Use perBroker, shared or zonal. \n", topology));
+        }
+        return "shared".equals(topology);
+    }
+
+    /**
+     * An NLB per broker, like perBroker, but placed only in the broker's own subnet with cross-zone load balancing off.
+     */
+    private static boolean isZonalTopology() {
+        return "zonal".equals(topology);
+    }
+
+    private static void writeReports(RunMetrics metrics) {
+        try {
+            if (reportFile != null && !reportFile.isEmpty()) {
+                metrics.writeJson(reportFile);
+            }
+            if (prometheusFile != null) {
+                metrics.writePrometheus(prometheusFile);
+            }
+        } catch (IOException e) {
+            logger.error("Could not write the run report \n");
+            logger.error(Util.stackTrace(e));
+        }
     }
 
     public static void main(String[] args) {
@@ -85,38 +410,109 @@ public class PrivateLinkCrossAccount {
             jc.usage();
             return;
         }
+        final Set<String> allowedPrincipals = getAllowedPrincipals();
+        if (allowedPrincipals.isEmpty() && !consumer && !deleteResources && !probe) {
+            throw new ParameterException("The following option is required: [--allowedPrincipal | -alp] or [--allowedPrincipalsFile | -apf]");
+        }
+        final List<String> clusterArns = getClusterArns();
+        if (clusterArns.isEmpty()) {
+            throw new ParameterException("The following option is required: [--mskClusterArn | -mca] or [--clusterManifest | -cm]");
+        }
+        if (clusterArns.size() > 1 && (watch || consumer || probeBootstrapServers != null)) {
+            throw new ParameterException("--watch, --consumer and --probeBootstrapServers take a single cluster");
+        }
+        int maxInFlight = mskMaxInFlight + ec2MaxInFlight + lbMaxInFlight + ddbMaxInFlight + route53MaxInFlight;
+        if (maxInFlight > executorThreads) {
+            throw new ParameterException(String.format("--executorThreads (%d) must be at least the sum of the --*MaxInFlight limits (%d)", executorThreads, maxInFlight));
+        }
+        final List<PortMapping> portMappings = getPortMappings();
+        if (portMappings.size() > 1 && isSharedTopology()) {
+            throw new ParameterException("--portMapping takes a single mapping with the shared topology");
+        }
 
-        final AWSKafkaAsync mskClient = Clients.createMSKClient();
-        final AmazonEC2Async ec2Client = Clients.createEC2Client();
-        final AmazonElasticLoadBalancingAsync lbClient = Clients.createLoadBalancingClient();
-        final MSK msk = new MSK(mskClient);
-        final NLB nlb = new NLB(lbClient);
-        final ServiceEndpoint serviceEndpoint = new ServiceEndpoint(ec2Client, lbClient);
+        final RunMetrics metrics = new RunMetrics();
+        final Clients clients = new Clients(metrics);
+        final MetadataCache cache = new MetadataCache(TimeUnit.SECONDS.toMillis(cacheTTL), cacheSnapshot);
+        final LoadBalancerWaiter lbWaiter = new LoadBalancerWaiter(clients.getLoadBalancingClient(), cache);
+        final ManageEndpointServicesInfo endpointServicesInfo = new ManageEndpointServicesInfo(clients.getDynamoDBClient(), metrics);
+        // Only runs that create resources are journaled, so deleting, probing or planning leaves the journal of the last one.
+        final boolean journaled = !consumer && !probe && !deleteResources && !syncPermissions && !planOnly;
+        final RunJournal journal = new RunJournal(journaled ? journalFile : null, resume);
+        final Fleet fleet = new Fleet(clients, cache, journal, lbWaiter, metrics);
+        final Preflight preflight = new Preflight(new NLB(clients.getLoadBalancingClient(), metrics, cache, journal),
+                new ServiceEndpoint(clients.getEC2Client(), lbWaiter, endpointServicesInfo, metrics, cache, journal));
+        final CountDownLatch finished = new CountDownLatch(1);
         int exitStatus = 0;
 
         long startTime = System.nanoTime();
         logger.info("Start time: {} \n", TimeUnit.NANOSECONDS.toMillis(startTime));
 
         try {
-            if (deleteResources) {
-                cleanup(msk, nlb, serviceEndpoint);
-            } else {
+            if (consumer) {
+                metrics.setMode("consumer");
+                fleet.run(clusterArns, maxClusterConcurrency, i -> {
+                    createConsumerResources(clients, i);
+                    if (probe) {
+                        runProbe(clients, i, portMappings);
+                    }
+                });
+            } else if (probe) {
+                metrics.setMode("probe");
+                fleet.run(clusterArns, maxClusterConcurrency, i -> runProbe(clients, i, portMappings));
+            } else if (deleteResources) {
+                metrics.setMode("delete");
+                fleet.run(clusterArns, maxClusterConcurrency, i -> cleanup(i, portMappings));
+            } else if (syncPermissions) {
+                metrics.setMode("sync_permissions");
+                fleet.run(clusterArns, maxClusterConcurrency, i -> syncPermissions(i, allowedPrincipals));
+            } else if (reconcile) {
+                metrics.setMode("reconcile");
                 logger.info("Initializing DynamoDB table .. \n");
-                initialize();
-                createResources(msk, nlb, serviceEndpoint);
+                initialize(endpointServicesInfo);
+                fleet.run(clusterArns, maxClusterConcurrency, i -> new Reconciler(i.msk, i.nlb, i.serviceEndpoint, i.endpointServicesInfo, i.metrics)
+                        .reconcile(i.clusterArn, tableName, allowedPrincipals, portMappings, maxConcurrency, isSharedTopology(), isZonalTopology()));
+            } else if (watch) {
+                metrics.setMode("watch");
+                logger.info("Initializing DynamoDB table .. \n");
+                initialize(endpointServicesInfo);
+                fleet.run(clusterArns, maxClusterConcurrency, i -> runController(i, allowedPrincipals, portMappings, finished));
+            } else if (isSharedTopology()) {
+                metrics.setMode("create_shared");
+                // The table is only created or migrated once the preflight passed, so --plan changes nothing.
+                if (runPreflight(fleet, clusterArns, preflight, allowedPrincipals, portMappings, metrics)) {
+                    logger.info("Initializing DynamoDB table .. \n");
+                    initialize(endpointServicesInfo);
+                    fleet.run(clusterArns, maxClusterConcurrency, i -> createSharedResources(i, allowedPrincipals, portMappings.get(0)));
+                }
+            } else {
+                if (runPreflight(fleet, clusterArns, preflight, allowedPrincipals, portMappings, metrics)) {
+                    logger.info("Initializing DynamoDB table .. \n");
+                    initialize(endpointServicesInfo);
+                    fleet.run(clusterArns, maxClusterConcurrency, i -> createResources(i, allowedPrincipals, portMappings));
+                }
             }
+            metrics.setStatus("succeeded");
         } catch (Exception e) {
             logger.error(Util.stackTrace(e));
+            metrics.setStatus("failed");
             exitStatus = 1;
         } finally {
-            mskClient.shutdown();
-            ec2Client.shutdown();
-            lbClient.shutdown();
+            lbWaiter.shutdown();
+            clients.close();
+            cache.save();
+            journal.close();
         }
         long endTime = System.nanoTime();
         logger.info("End Timestamp {}\n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
         long executionTime = endTime - startTime;
         logger.info("Execution time in milliseconds: {} \n", TimeUnit.NANOSECONDS.toMillis(executionTime));
+        logger.info("API calls: {}, retries: {}, throttled: {} \n", metrics.getApiCalls(), metrics.getRetries(), metrics.getThrottles());
+        logger.info("Metadata cache hits: {}, misses: {} \n", cache.getHits(), cache.getMisses());
+        if (resume) {
+            logger.info("Steps skipped as done in an earlier run: {} \n", journal.getSkipped());
+        }
+        writeReports(metrics);
+        finished.countDown();
         System.exit(exitStatus);
 
     }
@@ -0,0 +1,161 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Brings the NLBs and endpoint services of a cluster in line with its current brokers and allowed principals. Desired state comes from the
+ * MSK node list, actual state from the endpoint services table and the ELB/EC2 describe APIs. Only the difference is
+ * applied: new brokers get a full NLB and endpoint service (or a listener on the shared NLB), brokers whose IP changed
+ * get their target swapped, and brokers that left the cluster have their resources removed. A broker NLB with several
+ * port mappings has the target of each of its target groups swapped. A broker with its own NLB whose endpoint service or
+ * a target group is gone has what is left of its row's resources removed before it is created again, so nothing is orphaned
+ * when its IP, and so its NLB name, changed.
+ */
+class Reconciler {
+
+    private static final Logger logger = LogManager.getLogger(Reconciler.class);
+
+    private final MSK msk;
+    private final NLB nlb;
+    private final ServiceEndpoint serviceEndpoint;
+    private final ManageEndpointServicesInfo endpointServicesInfo;
+    private final RunMetrics metrics;
+
+    Reconciler(MSK msk, NLB nlb, ServiceEndpoint serviceEndpoint, ManageEndpointServicesInfo endpointServicesInfo, RunMetrics metrics) {
+        this.msk = msk;
+        this.nlb = nlb;
+        this.serviceEndpoint = serviceEndpoint;
+        this.endpointServicesInfo = endpointServicesInfo;
+        this.metrics = metrics;
+    }
+
+    void reconcile(String clusterArn, String tableName, Collection<String> allowedPrincipals, List<PortMapping> portMappings, int maxConcurrency, boolean sharedTopology,
+                   boolean zonalTopology) throws ExecutionException, InterruptedException {
+        logger.info("Getting Amazon MSK nodes .. \n");
+        BrokerTopology topology = msk.getTopology(clusterArn);
+        Map<Integer, String> desired = topology.getBrokerIPMap();
+
+        logger.info("Reading existing endpoint services .. \n");
+        Map<Integer, EndpointServiceRecord> records = endpointServicesInfo.getClusterRecords(tableName, clusterArn);
+        Set<String> availableServiceIds = serviceEndpoint.getAvailableServiceIds(records.values().stream().map(EndpointServiceRecord::getServiceId).collect(Collectors.toList()));
+        Map<String, String> targetGroupArnIndex = nlb.getTargetGroupArnIndex(records.values().stream().flatMap(i -> i.getTargetGroupNames().stream()).collect(Collectors.toList()));
+
+        Set<Integer> toCreate = new TreeSet<>();
+        Map<Integer, EndpointServiceRecord> toDelete = new HashMap<>();
+        Map<Integer, Map<String, Integer>> toRetarget = new HashMap<>();
+
+        for (int brokerId : topology.getBrokerIds()) {
+            EndpointServiceRecord record = records.get(brokerId);
+            if (record == null || !availableServiceIds.contains(record.getServiceId()) || !targetGroupArnIndex.keySet().containsAll(record.getTargetGroupNames())) {
+                toCreate.add(brokerId);
+            } else {
+                Map<String, Integer> targetGroupPorts = new HashMap<>();
+                record.getTargetGroups(portMappings.get(0)).forEach((k, v) -> targetGroupPorts.put(targetGroupArnIndex.get(k), v.getTargetPort()));
+                toRetarget.put(brokerId, targetGroupPorts);
+            }
+        }
+        records.forEach((k, v) -> {
+            if (!desired.containsKey(k)) {
+                toDelete.put(k, v);
+            }
+        });
+
+        long retargetStart = System.nanoTime();
+        int retargeted = retargetChanged(toRetarget, desired);
+        metrics.recordPhase("retarget", retargetStart);
+
+        // Endpoint services that are kept get the current principals; new ones are created with them.
+        long permissionsStart = System.nanoTime();
+        int permissionsChanged = serviceEndpoint.syncPermissions(records.entrySet().stream()
+                .filter(i -> desired.containsKey(i.getKey()) && availableServiceIds.contains(i.getValue().getServiceId()))
+                .map(i -> i.getValue().getServiceId())
+                .collect(Collectors.toSet()), allowedPrincipals);
+        metrics.recordPhase("sync_permissions", permissionsStart);
+
+        if (!toCreate.isEmpty() && sharedTopology) {
+            logger.info("Adding brokers {} to the shared NLB .. \n", toCreate);
+            long phaseStart = System.nanoTime();
+            new SharedTopology(nlb, serviceEndpoint).addBrokers(clusterArn, tableName, allowedPrincipals, topology.subset(toCreate), serviceEndpoint.getVPCId(topology.getSubnets().get(0)),
+                    records, portMappings.get(0).getTargetPort(), portMappings.get(0).getListenerPort(), maxConcurrency);
+            metrics.recordPhase("create_shared_nlb", phaseStart);
+        } else if (!toCreate.isEmpty()) {
+            Map<Integer, EndpointServiceRecord> toReplace = new HashMap<>();
+            toCreate.stream().filter(records::containsKey).filter(i -> !records.get(i).isShared()).forEach(i -> toReplace.put(i, records.get(i)));
+            if (!toReplace.isEmpty()) {
+                logger.info("Deleting what is left of the resources of brokers {} before creating them again .. \n", toReplace.keySet());
+                long phaseStart = System.nanoTime();
+                new Teardown(nlb, serviceEndpoint, endpointServicesInfo, metrics).deleteBrokers(tableName, clusterArn, toReplace, maxConcurrency);
+                metrics.recordPhase("teardown_replaced", phaseStart);
+            }
+            logger.info("Creating NLBs for brokers {} .. \n", toCreate);
+            BrokerTopology brokers = topology.subset(toCreate);
+            long phaseStart = System.nanoTime();
+            Map<String, Integer> lbArnsBrokerIdMap = nlb.createNLBSet(brokers, zonalTopology, portMappings, serviceEndpoint.getVPCId(topology.getSubnets().get(0)), maxConcurrency);
+            metrics.recordPhase("create_nlbs", phaseStart);
+            logger.info("Creating Endpoint services .. \n");
+            phaseStart = System.nanoTime();
+            serviceEndpoint.createVpcEndpointServices(lbArnsBrokerIdMap, allowedPrincipals, tableName, clusterArn, brokers.getBrokerEndpointMap(),
+                    zonalTopology ? serviceEndpoint.getBrokerZoneIdMap(brokers.getBrokerSubnetMap()) : null, portMappings);
+            metrics.recordPhase("create_endpoint_services", phaseStart);
+            if (lbArnsBrokerIdMap.size() < toCreate.size()) {
+                throw new RuntimeException(String.format("Could not create NLBs for %d of %d brokers \n", toCreate.size() - lbArnsBrokerIdMap.size(), toCreate.size()));
+            }
+        }
+
+        if (!toDelete.isEmpty()) {
+            logger.info("Deleting resources of removed brokers {} .. \n", toDelete.keySet());
+            long phaseStart = System.nanoTime();
+            new Teardown(nlb, serviceEndpoint, endpointServicesInfo, metrics).deleteBrokers(tableName, clusterArn, toDelete, maxConcurrency);
+            metrics.recordPhase("teardown", phaseStart);
+        }
+
+        logger.info("Reconciled cluster: {} created, {} retargeted, {} deleted, {} unchanged, {} endpoint services with changed permissions \n",
+                toCreate.size(), retargeted, toDelete.size(), toRetarget.size() - retargeted, permissionsChanged);
+    }
+
+    /**
+     * Compares the registered targets of each existing broker's target groups, by target group ARN with the broker port
+     * they forward to, with its current IP and swaps the ones that changed.
+     */
+    private int retargetChanged(Map<Integer, Map<String, Integer>> brokerTargetGroups, Map<Integer, String> desired) {
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        Set<Integer> retargeted = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+
+        brokerTargetGroups.forEach((brokerId, targetGroups) -> checks.add(metrics.timeBroker("retarget", brokerId, CompletableFuture.allOf(targetGroups.entrySet().stream()
+                .map(i -> retargetChanged(brokerId, i.getKey(), desired.get(brokerId), i.getValue(), retargeted))
+                .toArray(CompletableFuture[]::new)))
+                .exceptionally(e -> {
+                    failedBrokers.put(brokerId, e);
+                    logger.error("Could not update targets for broker {} \n", brokerId);
+                    logger.error(Util.stackTrace(e));
+                    return null;
+                })));
+
+        CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).join();
+        if (!failedBrokers.isEmpty()) {
+            throw new RuntimeException(String.format("Could not update targets for brokers %s \n", failedBrokers.keySet()));
+        }
+        return retargeted.size();
+    }
+
+    private CompletableFuture<Void> retargetChanged(int brokerId, String targetGroupArn, String brokerIP, Integer targetPort, Set<Integer> retargeted) {
+        return nlb.getTargets(targetGroupArn).thenCompose(targets -> {
+            boolean registered = targets.stream().anyMatch(k -> k.getId().equals(brokerIP) && k.getPort().equals(targetPort));
+            List<TargetDescription> staleTargets = targets.stream().filter(k -> !(k.getId().equals(brokerIP) && k.getPort().equals(targetPort))).collect(Collectors.toList());
+            if (registered && staleTargets.isEmpty()) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            logger.info("Broker {} moved to {}. Replacing targets {} \n", brokerId, brokerIP, staleTargets);
+            retargeted.add(brokerId);
+            return nlb.retarget(targetGroupArn, brokerIP, targetPort, staleTargets);
+        });
+    }
+}
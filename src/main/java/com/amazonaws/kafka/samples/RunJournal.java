@@ -0,0 +1,222 @@
+package com.amazonaws.kafka.samples;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Append-only journal of the provisioning steps of each broker, one JSON line per event. A step is written as started
+ * before its API call and as done, with the resource it created, once the call succeeds, so after a crash the journal
+ * tells which resources exist. A step is identified by its resource (a broker), its name and its input, e.g. the NLB
+ * name, so a broker whose IP changed does not get the resources of its old IP. With resume, the journal of the earlier
+ * run is read first: steps that are done are skipped once and their resources reused, and steps that were only started
+ * run again with the idempotency token journaled when they started. Any other attempt gets a new token, so a resource
+ * that was deleted is created again rather than returned. Without resume, the journal of the earlier run is moved aside
+ * to the same name with .1 appended. A journal without a file only runs the steps.
+ */
+class RunJournal {
+
+    private static final Logger logger = LogManager.getLogger(RunJournal.class);
+    private static final String STARTED = "started";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    private final ObjectMapper objectMapper;
+    private final Writer writer;
+    private final Map<String, String> results;
+    private final Map<String, String> tokens;
+    private final AtomicInteger skipped;
+    private final String clusterArn;
+
+    RunJournal(String fileName, boolean resume) {
+        this.objectMapper = new ObjectMapper();
+        this.results = new ConcurrentHashMap<>();
+        this.tokens = new ConcurrentHashMap<>();
+        this.skipped = new AtomicInteger();
+        this.clusterArn = "";
+        if (fileName == null) {
+            this.writer = null;
+            return;
+        }
+        Path path = Paths.get(fileName);
+        try {
+            if (resume && Files.exists(path)) {
+                replay(path);
+            } else if (resume) {
+                logger.info("No journal {} to resume from. Starting from scratch. \n", fileName);
+            }
+            if (!resume && Files.exists(path) && Files.size(path) > 0) {
+                // Kept aside rather than overwritten, so a run started without --resume by mistake can still be resumed from it.
+                Path previous = Paths.get(fileName + ".1");
+                Files.move(path, previous, StandardCopyOption.REPLACE_EXISTING);
+                logger.info("Moved the journal of the previous run to {} \n", previous);
+            }
+            this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not open journal %s \n", fileName));
+        }
+    }
+
+    private RunJournal(RunJournal journal, String clusterArn) {
+        this.objectMapper = journal.objectMapper;
+        this.writer = journal.writer;
+        this.results = journal.results;
+        this.tokens = journal.tokens;
+        this.skipped = journal.skipped;
+        this.clusterArn = clusterArn;
+    }
+
+    /**
+     * The journal of one cluster, writing to the same file.
+     */
+    RunJournal forCluster(String clusterArn) {
+        return new RunJournal(this, clusterArn);
+    }
+
+    static String broker(int brokerId) {
+        return "broker-" + brokerId;
+    }
+
+    private void replay(Path path) throws IOException {
+        int lines = 0;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JsonNode event;
+            try {
+                event = objectMapper.readTree(line);
+            } catch (IOException e) {
+                // The last line may be cut short by the crash.
+                logger.error("Skipping unreadable journal line: {} \n", line);
+                continue;
+            }
+            String key = key(event.path("cluster").asText(), event.path("resource").asText(), event.path("step").asText(), event.path("input").asText());
+            String type = event.path("event").asText();
+            if (DONE.equals(type)) {
+                results.put(key, event.path("result").asText());
+                tokens.remove(key);
+            } else if (STARTED.equals(type) && event.hasNonNull("token")) {
+                results.remove(key);
+                tokens.put(key, event.path("token").asText());
+            } else {
+                results.remove(key);
+                tokens.remove(key);
+            }
+            lines++;
+        }
+        logger.info("Resuming from journal {}: {} events, {} steps done \n", path, lines, results.size());
+    }
+
+    private static String key(String clusterArn, String resource, String step, String input) {
+        return clusterArn + "|" + resource + "|" + step + "|" + input;
+    }
+
+    /**
+     * The idempotency token of the running attempt of a step. It is the token journaled when the step started in an
+     * earlier run if that run crashed before the step was done, so the step is not applied twice, and a new one otherwise.
+     */
+    String token(String resource, String step, String input) {
+        String token = tokens.get(key(clusterArn, resource, step, input));
+        return token != null ? token : UUID.randomUUID().toString();
+    }
+
+    /**
+     * Runs a step of a resource unless an earlier run finished it, and journals it. The action's result, usually the ARN
+     * or name of what it created, is what a resumed run gets back instead of running the step again.
+     */
+    CompletableFuture<String> step(String resource, String step, String input, Supplier<CompletableFuture<String>> action) {
+        if (writer == null) {
+            return action.get();
+        }
+        // Skipped only once, so a resource that is deleted later in the run, e.g. by --watch, is created again.
+        String key = key(clusterArn, resource, step, input);
+        String done = results.remove(key);
+        if (done != null) {
+            logger.info("Skipping {} of {}, done in an earlier run: {} \n", step, resource, done);
+            skipped.incrementAndGet();
+            return CompletableFuture.completedFuture(done);
+        }
+        // A step left started by a crashed run keeps its token; any other attempt gets a new one.
+        String token = tokens.computeIfAbsent(key, i -> UUID.randomUUID().toString());
+        append(resource, step, input, STARTED, token, null, null);
+        CompletableFuture<String> result;
+        try {
+            result = action.get();
+        } catch (RuntimeException e) {
+            result = Util.failedFuture(e);
+        }
+        return result.whenComplete((i, e) -> {
+            tokens.remove(key, token);
+            if (e == null) {
+                append(resource, step, input, DONE, null, i, null);
+            } else {
+                append(resource, step, input, FAILED, null, null, String.valueOf(Util.unwrap(e).getMessage()));
+            }
+        });
+    }
+
+    private void append(String resource, String step, String input, String event, String token, String result, String error) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("time", Instant.now().toString());
+        line.put("cluster", clusterArn);
+        line.put("resource", resource);
+        line.put("step", step);
+        line.put("input", input);
+        line.put("event", event);
+        if (token != null) {
+            line.put("token", token);
+        }
+        if (result != null) {
+            line.put("result", result);
+        }
+        if (error != null) {
+            line.put("error", error);
+        }
+        try {
+            String json = objectMapper.writeValueAsString(line);
+            synchronized (writer) {
+                writer.write(json);
+                writer.write('\n');
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not write to the journal: %s \n", e.getMessage()));
+        }
+    }
+
+    int getSkipped() {
+        return skipped.get();
+    }
+
+    void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            synchronized (writer) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            logger.error("Could not close the journal \n");
+            logger.error(Util.stackTrace(e));
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Collects the timings of one run: phases, per-broker steps, time spent waiting, and per-operation API call counts,
+ * retries and throttles. API calls are counted by the request handler from {@link #apiCallHandler()}, which is
+ * installed on every SDK client. The result is written as a JSON run report and, optionally, in the Prometheus text format.
+ * A fleet run keeps the phases, broker steps and waits of each cluster apart, in the metrics from {@link #forCluster(String)}.
+ * A data path probe adds Kafka latencies and throughput per broker.
+ */
+class RunMetrics {
+
+    private static final Logger logger = LogManager.getLogger(RunMetrics.class);
+    private static final String PREFIX = "privatelink_";
+    private static final HandlerContextKey<Long> START = new HandlerContextKey<>("RunMetricsStart");
+    private static final HandlerContextKey<Integer> ATTEMPTS = new HandlerContextKey<>("RunMetricsAttempts");
+
+    private final Instant startTime = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> brokerSteps = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Long>> brokerStepMillis = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, String>> brokerStepErrors = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> waits = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, LatencyHistogram>> probeLatencies = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Double>> probeThroughput = new ConcurrentHashMap<>();
+    private final Map<String, ApiOperation> apiCalls = new ConcurrentHashMap<>();
+    private final ApiCallHandler apiCallHandler = new ApiCallHandler();
+    private final Map<String, RunMetrics> clusters = new ConcurrentHashMap<>();
+    private final boolean countsApiCalls;
+    private volatile String mode = "create";
+    private volatile String status = "running";
+    private volatile String error;
+    private volatile long endNanos;
+
+    RunMetrics() {
+        this(true);
+    }
+
+    private RunMetrics(boolean countsApiCalls) {
+        this.countsApiCalls = countsApiCalls;
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the outcome of the run. Any status other than running also stops the run's duration.
+     */
+    void setStatus(String status) {
+        this.status = status;
+        this.endNanos = "running".equals(status) ? 0L : System.nanoTime();
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    String getStatus() {
+        return status;
+    }
+
+    private long getDurationMillis() {
+        long end = endNanos;
+        return end == 0L ? millisSince(startNanos) : TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    /**
+     * The metrics of one cluster of a fleet run. API calls are only counted for the whole run, since the clients are shared.
+     */
+    RunMetrics forCluster(String clusterArn) {
+        return clusters.computeIfAbsent(clusterArn, i -> {
+            RunMetrics clusterMetrics = new RunMetrics(false);
+            clusterMetrics.setMode(mode);
+            return clusterMetrics;
+        });
+    }
+
+    /**
+     * Records a phase that started at startNanos (from System.nanoTime) and has just finished.
+     */
+    void recordPhase(String phase, long startNanos) {
+        phases.computeIfAbsent(phase, i -> new LatencyHistogram()).record(millisSince(startNanos));
+    }
+
+    void recordWait(String reason, long startNanos) {
+        waits.computeIfAbsent(reason, i -> new LatencyHistogram()).record(millisSince(startNanos));
+    }
+
+    /**
+     * Records how long the future takes to complete as a wait for the given reason.
+     */
+    <T> CompletableFuture<T> timeWait(String reason, CompletableFuture<T> future) {
+        long start = System.nanoTime();
+        return future.whenComplete((i, e) -> recordWait(reason, start));
+    }
+
+    /**
+     * Records how long the future takes to complete as the given step of one broker, along with the error if it fails.
+     */
+    <T> CompletableFuture<T> timeBroker(String step, int brokerId, CompletableFuture<T> future) {
+        long start = System.nanoTime();
+        return future.whenComplete((i, e) -> {
+            long millis = millisSince(start);
+            brokerSteps.computeIfAbsent(step, k -> new LatencyHistogram()).record(millis);
+            brokerStepMillis.computeIfAbsent(step, k -> new ConcurrentHashMap<>()).put(brokerId, millis);
+            if (e != null) {
+                brokerStepErrors.computeIfAbsent(step, k -> new ConcurrentHashMap<>()).put(brokerId, String.valueOf(Util.unwrap(e).getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Records one Kafka latency, e.g. of a produce acknowledgement, measured through the endpoint of a broker.
+     */
+    void recordProbeLatency(String kind, int brokerId, long millis) {
+        probeLatencies.computeIfAbsent(kind, i -> new ConcurrentHashMap<>()).computeIfAbsent(brokerId, i -> new LatencyHistogram()).record(millis);
+    }
+
+    void recordProbeThroughput(String direction, int brokerId, double bytesPerSecond) {
+        probeThroughput.computeIfAbsent(direction, i -> new ConcurrentHashMap<>()).put(brokerId, bytesPerSecond);
+    }
+
+    Map<Integer, Long> getProbePercentiles(String kind, double quantile) {
+        Map<Integer, Long> percentiles = new TreeMap<>();
+        probeLatencies.getOrDefault(kind, new ConcurrentHashMap<>()).forEach((k, v) -> percentiles.put(k, v.percentile(quantile)));
+        return percentiles;
+    }
+
+    RequestHandler2 apiCallHandler() {
+        return apiCallHandler;
+    }
+
+    long getApiCalls() {
+        return apiCalls.values().stream().mapToLong(i -> i.calls.get()).sum();
+    }
+
+    long getRetries() {
+        return apiCalls.values().stream().mapToLong(i -> i.retries.get()).sum();
+    }
+
+    long getThrottles() {
+        return apiCalls.values().stream().mapToLong(i -> i.throttles.get()).sum();
+    }
+
+    private static Map<String, Object> histograms(Map<String, LatencyHistogram> histograms) {
+        Map<String, Object> report = new TreeMap<>();
+        histograms.forEach((k, v) -> report.put(k, v.toReport()));
+        return report;
+    }
+
+    Map<String, Object> toReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("mode", mode);
+        report.put("status", status);
+        report.put("startTime", startTime.toString());
+        report.put("durationMillis", getDurationMillis());
+        if (error != null) {
+            report.put("error", error);
+        }
+
+        if (countsApiCalls) {
+            Map<String, Object> totals = new LinkedHashMap<>();
+            totals.put("apiCalls", getApiCalls());
+            totals.put("retries", getRetries());
+            totals.put("throttles", getThrottles());
+            report.put("totals", totals);
+        }
+
+        report.put("phases", histograms(phases));
+
+        Map<String, Object> brokers = new TreeMap<>();
+        brokerSteps.forEach((step, histogram) -> {
+            Map<String, Object> stepReport = new LinkedHashMap<>();
+            stepReport.put("latency", histogram.toReport());
+            stepReport.put("millisByBroker", new TreeMap<>(brokerStepMillis.getOrDefault(step, new ConcurrentHashMap<>())));
+            stepReport.put("errorsByBroker", new TreeMap<>(brokerStepErrors.getOrDefault(step, new ConcurrentHashMap<>())));
+            brokers.put(step, stepReport);
+        });
+        report.put("brokers", brokers);
+
+        report.put("waits", histograms(waits));
+
+        if (!probeLatencies.isEmpty() || !probeThroughput.isEmpty()) {
+            Map<String, Object> probe = new LinkedHashMap<>();
+            Map<String, Object> latency = new TreeMap<>();
+            probeLatencies.forEach((kind, brokerHistograms) -> {
+                Map<Integer, Object> byBroker = new TreeMap<>();
+                brokerHistograms.forEach((k, v) -> byBroker.put(k, v.toReport()));
+                latency.put(kind, byBroker);
+            });
+            probe.put("latency", latency);
+            Map<String, Object> throughput = new TreeMap<>();
+            probeThroughput.forEach((k, v) -> throughput.put(k, new TreeMap<>(v)));
+            probe.put("throughputBytesPerSecond", throughput);
+            report.put("probe", probe);
+        }
+
+        if (!clusters.isEmpty()) {
+            Map<String, Object> clusterReports = new TreeMap<>();
+            clusters.forEach((k, v) -> clusterReports.put(k, v.toReport()));
+            report.put("clusters", clusterReports);
+        }
+        if (!countsApiCalls) {
+            return report;
+        }
+
+        Map<String, Object> operations = new TreeMap<>();
+        apiCalls.forEach((k, v) -> {
+            Map<String, Object> operationReport = new LinkedHashMap<>();
+            operationReport.put("calls", v.calls.get());
+            operationReport.put("failures", v.failures.get());
+            operationReport.put("retries", v.retries.get());
+            operationReport.put("throttles", v.throttles.get());
+            operationReport.put("latency", v.latency.toReport());
+            operations.put(k, operationReport);
+        });
+        report.put("apiCalls", operations);
+        return report;
+    }
+
+    void writeJson(String fileName) throws IOException {
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(new File(fileName), toReport());
+        logger.info("Run report written to {} \n", fileName);
+    }
+
+    void writePrometheus(String fileName) throws IOException {
+        Files.write(Paths.get(fileName), toPrometheus().getBytes(StandardCharsets.UTF_8));
+        logger.info("Prometheus metrics written to {} \n", fileName);
+    }
+
+    String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        appendHistograms(text, "phase_duration_seconds", "phase", phases);
+        appendHistograms(text, "broker_step_duration_seconds", "step", brokerSteps);
+        appendHistograms(text, "wait_duration_seconds", "reason", waits);
+        Map<String, LatencyHistogram> apiLatency = new TreeMap<>();
+        apiCalls.forEach((k, v) -> apiLatency.put(k, v.latency));
+        appendHistograms(text, "api_call_duration_seconds", "operation", apiLatency);
+        appendCounters(text, "api_calls_total", i -> i.calls.get());
+        appendCounters(text, "api_call_failures_total", i -> i.failures.get());
+        appendCounters(text, "api_call_retries_total", i -> i.retries.get());
+        appendCounters(text, "api_call_throttles_total", i -> i.throttles.get());
+        if (!probeLatencies.isEmpty()) {
+            text.append("# TYPE ").append(PREFIX).append("probe_latency_seconds histogram\n");
+            new TreeMap<>(probeLatencies).forEach((kind, brokerHistograms) -> new TreeMap<>(brokerHistograms).forEach((k, v) ->
+                    appendHistogram(text, "probe_latency_seconds", "kind=\"" + kind + "\",broker=\"" + k + "\"", v)));
+        }
+        if (!probeThroughput.isEmpty()) {
+            text.append("# TYPE ").append(PREFIX).append("probe_throughput_bytes_per_second gauge\n");
+            new TreeMap<>(probeThroughput).forEach((direction, byBroker) -> new TreeMap<>(byBroker).forEach((k, v) -> text.append(PREFIX)
+                    .append("probe_throughput_bytes_per_second{direction=\"").append(direction).append("\",broker=\"").append(k).append("\"} ").append(v).append('\n')));
+        }
+        text.append("# TYPE ").append(PREFIX).append("run_duration_seconds gauge\n")
+                .append(PREFIX).append("run_duration_seconds{mode=\"").append(mode).append("\",status=\"").append(status).append("\"} ")
+                .append(getDurationMillis() / 1000.0).append('\n');
+        if (!clusters.isEmpty()) {
+            text.append("# TYPE ").append(PREFIX).append("cluster_run_duration_seconds gauge\n");
+            new TreeMap<>(clusters).forEach((k, v) -> text.append(PREFIX).append("cluster_run_duration_seconds{cluster=\"").append(k).append("\",status=\"")
+                    .append(v.status).append("\"} ").append(v.getDurationMillis() / 1000.0).append('\n'));
+        }
+        return text.toString();
+    }
+
+    private static void appendHistograms(StringBuilder text, String name, String label, Map<String, LatencyHistogram> histograms) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        text.append("# TYPE ").append(PREFIX).append(name).append(" histogram\n");
+        new TreeMap<>(histograms).forEach((k, v) -> appendHistogram(text, name, label + "=\"" + k + "\"", v));
+    }
+
+    private static void appendHistogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        long[] cumulative = histogram.getCumulativeCounts();
+        for (int i = 0; i < cumulative.length; i++) {
+            String le = i < LatencyHistogram.BUCKET_BOUNDS_MILLIS.length ? String.valueOf(LatencyHistogram.BUCKET_BOUNDS_MILLIS[i] / 1000.0) : "+Inf";
+            text.append(PREFIX).append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative[i]).append('\n');
+        }
+        text.append(PREFIX).append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumMillis() / 1000.0).append('\n');
+        text.append(PREFIX).append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private void appendCounters(StringBuilder text, String name, ToLongFunction<ApiOperation> value) {
+        if (apiCalls.isEmpty()) {
+            return;
+        }
+        text.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        new TreeMap<>(apiCalls).forEach((k, v) -> text.append(PREFIX).append(name).append("{operation=\"").append(k).append("\"} ").append(value.applyAsLong(v)).append('\n'));
+    }
+
+    private static class ApiOperation {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong throttles = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Counts every API call once, with its attempts beyond the first as retries. The latency covers all attempts,
+     * including the time the call waited in the client side rate limiter.
+     */
+    private class ApiCallHandler extends RequestHandler2 {
+
+        private ApiOperation operation(Request<?> request) {
+            String requestName = request.getOriginalRequest().getClass().getSimpleName();
+            String operationName = request.getServiceName() + ":" + (requestName.endsWith("Request") ? requestName.substring(0, requestName.length() - "Request".length()) : requestName);
+            return apiCalls.computeIfAbsent(operationName, i -> new ApiOperation());
+        }
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            request.addHandlerContext(START, System.nanoTime());
+            request.addHandlerContext(ATTEMPTS, 0);
+        }
+
+        @Override
+        public void beforeAttempt(HandlerBeforeAttemptContext context) {
+            Request<?> request = context.getRequest();
+            Integer attempts = request.getHandlerContext(ATTEMPTS);
+            request.addHandlerContext(ATTEMPTS, attempts == null ? 1 : attempts + 1);
+        }
+
+        @Override
+        public void afterAttempt(HandlerAfterAttemptContext context) {
+            Exception exception = context.getException();
+            if (exception instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) exception)) {
+                operation(context.getRequest()).throttles.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response) {
+            complete(request, false);
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e) {
+            complete(request, true);
+        }
+
+        private void complete(Request<?> request, boolean failed) {
+            ApiOperation operation = operation(request);
+            operation.calls.incrementAndGet();
+            if (failed) {
+                operation.failures.incrementAndGet();
+            }
+            Integer attempts = request.getHandlerContext(ATTEMPTS);
+            if (attempts != null && attempts > 1) {
+                operation.retries.addAndGet(attempts - 1);
+            }
+            Long start = request.getHandlerContext(START);
+            if (start != null) {
+                operation.latency.record(millisSince(start));
+            }
+        }
+    }
+}
@@ -2,91 +2,374 @@ package com.amazonaws.kafka.samples;
 
 import com.amazonaws.services.ec2.AmazonEC2Async;
 import com.amazonaws.services.ec2.model.*;
-import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancingAsync;
-import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
 import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancerStateEnum;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 class ServiceEndpoint {
 
+    private static final int MAX_FILTER_VALUES = 200;
+    private static final int MAX_WAIT_ATTEMPTS = 40;
     private final AmazonEC2Async ec2Client;
-    private final AmazonElasticLoadBalancingAsync lbClient;
+    private final LoadBalancerWaiter lbWaiter;
+    private final ManageEndpointServicesInfo endpointServicesInfo;
+    private final RunMetrics metrics;
+    private final MetadataCache cache;
+    private final RunJournal journal;
     private static final Logger logger = LogManager.getLogger(ServiceEndpoint.class);
 
-    ServiceEndpoint(AmazonEC2Async ec2Client, AmazonElasticLoadBalancingAsync lbClient){
+    ServiceEndpoint(AmazonEC2Async ec2Client, LoadBalancerWaiter lbWaiter, ManageEndpointServicesInfo endpointServicesInfo, RunMetrics metrics, MetadataCache cache, RunJournal journal){
         this.ec2Client = ec2Client;
-        this.lbClient = lbClient;
+        this.lbWaiter = lbWaiter;
+        this.endpointServicesInfo = endpointServicesInfo;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.journal = journal;
     }
 
     String getVPCId(String subnetId){
-        Filter filter = new Filter()
-                .withName("subnet-id")
-                .withValues(subnetId);
-        DescribeSubnetsRequest describeSubnetsRequest = new DescribeSubnetsRequest().withFilters(filter);
-        return ec2Client.describeSubnets(describeSubnetsRequest).getSubnets().listIterator().next().getVpcId();
+        return cache.get(MetadataCache.VPC_ID, subnetId, () -> {
+            Filter filter = new Filter()
+                    .withName("subnet-id")
+                    .withValues(subnetId);
+            DescribeSubnetsRequest describeSubnetsRequest = new DescribeSubnetsRequest().withFilters(filter);
+            return ec2Client.describeSubnets(describeSubnetsRequest).getSubnets().listIterator().next().getVpcId();
+        });
     }
 
-    private LoadBalancerStateEnum checkLBStatus(String lbArn) throws ExecutionException, InterruptedException {
-        DescribeLoadBalancersRequest describeLoadBalancersRequest = new DescribeLoadBalancersRequest()
-                .withLoadBalancerArns(lbArn);
-        return LoadBalancerStateEnum.fromValue(lbClient.describeLoadBalancersAsync(describeLoadBalancersRequest).get().getLoadBalancers().listIterator().next().getState().getCode());
+    /**
+     * The Availability Zone ID of each broker's subnet. Zone IDs, unlike zone names, are the same in every account, so
+     * the client account can match them against its own subnets.
+     */
+    Map<Integer, String> getBrokerZoneIdMap(Map<Integer, String> brokerSubnetMap) {
+        Map<String, String> subnetZoneIds = new HashMap<>();
+        Set<String> uncached = new HashSet<>();
+        new HashSet<>(brokerSubnetMap.values()).forEach(i -> {
+            String zoneId = cache.get(MetadataCache.ZONE_ID, i);
+            if (zoneId != null) {
+                subnetZoneIds.put(i, zoneId);
+            } else {
+                uncached.add(i);
+            }
+        });
+        if (!uncached.isEmpty()) {
+            DescribeSubnetsRequest describeSubnetsRequest = new DescribeSubnetsRequest().withFilters(new Filter().withName("subnet-id").withValues(uncached));
+            ec2Client.describeSubnets(describeSubnetsRequest).getSubnets().forEach(i -> {
+                subnetZoneIds.put(i.getSubnetId(), i.getAvailabilityZoneId());
+                cache.put(MetadataCache.ZONE_ID, i.getSubnetId(), i.getAvailabilityZoneId());
+                cache.put(MetadataCache.VPC_ID, i.getSubnetId(), i.getVpcId());
+            });
+        }
+        Map<Integer, String> brokerZoneIdMap = new HashMap<>();
+        brokerSubnetMap.forEach((k, v) -> {
+            String zoneId = subnetZoneIds.get(v);
+            if (zoneId == null) {
+                throw new RuntimeException(String.format("Could not find the Availability Zone of subnet %s \n", v));
+            }
+            brokerZoneIdMap.put(k, zoneId);
+        });
+        return brokerZoneIdMap;
+    }
+
+    private CompletableFuture<Boolean> whiteListEndpointAccounts(Collection<String> allowedPrincipals, String serviceId) {
+        return modifyPermissions(serviceId, allowedPrincipals, Collections.emptyList());
     }
 
-    private boolean whiteListEndpointAccounts(String allowedPrincipal, String serviceId) throws ExecutionException, InterruptedException {
+    /**
+     * Adds and removes principals of an endpoint service with a single call, whatever the number of principals.
+     */
+    private CompletableFuture<Boolean> modifyPermissions(String serviceId, Collection<String> addPrincipals, Collection<String> removePrincipals) {
         ModifyVpcEndpointServicePermissionsRequest modifyVpcEndpointServicePermissionsRequest = new ModifyVpcEndpointServicePermissionsRequest()
-                .withAddAllowedPrincipals(allowedPrincipal)
                 .withServiceId(serviceId);
-        return ec2Client.modifyVpcEndpointServicePermissionsAsync(modifyVpcEndpointServicePermissionsRequest).get().getReturnValue();
+        if (!addPrincipals.isEmpty()) {
+            modifyVpcEndpointServicePermissionsRequest.withAddAllowedPrincipals(addPrincipals);
+        }
+        if (!removePrincipals.isEmpty()) {
+            modifyVpcEndpointServicePermissionsRequest.withRemoveAllowedPrincipals(removePrincipals);
+        }
+        AsyncResult<ModifyVpcEndpointServicePermissionsRequest, ModifyVpcEndpointServicePermissionsResult> result = new AsyncResult<>();
+        ec2Client.modifyVpcEndpointServicePermissionsAsync(modifyVpcEndpointServicePermissionsRequest, result);
+        return result.thenApply(ModifyVpcEndpointServicePermissionsResult::getReturnValue);
     }
 
-    void deleteServiceEndpoint(List<String> endpointServiceIds) throws ExecutionException, InterruptedException {
-        DeleteVpcEndpointServiceConfigurationsRequest deleteVpcEndpointServiceConfigurationsRequest = new DeleteVpcEndpointServiceConfigurationsRequest()
-                .withServiceIds(endpointServiceIds);
-        ec2Client.deleteVpcEndpointServiceConfigurationsAsync(deleteVpcEndpointServiceConfigurationsRequest).get();
+    private CompletableFuture<Set<String>> getAllowedPrincipals(String serviceId, Set<String> allowedPrincipals, String nextToken) {
+        DescribeVpcEndpointServicePermissionsRequest describeVpcEndpointServicePermissionsRequest = new DescribeVpcEndpointServicePermissionsRequest()
+                .withServiceId(serviceId)
+                .withNextToken(nextToken);
+        AsyncResult<DescribeVpcEndpointServicePermissionsRequest, DescribeVpcEndpointServicePermissionsResult> result = new AsyncResult<>();
+        ec2Client.describeVpcEndpointServicePermissionsAsync(describeVpcEndpointServicePermissionsRequest, result);
+        return result.thenCompose(i -> {
+            i.getAllowedPrincipals().forEach(k -> allowedPrincipals.add(k.getPrincipal()));
+            if (i.getNextToken() != null) {
+                return getAllowedPrincipals(serviceId, allowedPrincipals, i.getNextToken());
+            }
+            return CompletableFuture.completedFuture(allowedPrincipals);
+        });
     }
 
+    /**
+     * Makes allowedPrincipals the exact set of principals allowed on each endpoint service. All services are compared
+     * at the same time and only the ones that differ get a modify call, carrying all additions and removals for that
+     * service. Returns the number of services that were changed.
+     */
+    int syncPermissions(Collection<String> endpointServiceIds, Collection<String> allowedPrincipals) {
+        Set<String> desired = new HashSet<>(allowedPrincipals);
+        Map<String, Throwable> failedServices = new ConcurrentHashMap<>();
+        Set<String> changedServices = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
 
-    void createVpcEndpointServices(Map<String, Integer> lbArnsBrokerIdMap, String allowedPrincipal, String tableName, Map<Integer, String> brokerEndpointMap) throws ExecutionException, InterruptedException {
-        for (Map.Entry<String, Integer> i : lbArnsBrokerIdMap.entrySet()) {
-            if (checkLBStatus(i.getKey()).equals(LoadBalancerStateEnum.Active)){
-                String serviceId = createVpcEndpointService(i, tableName, brokerEndpointMap.get(i.getValue()));
-                if (whiteListEndpointAccounts(allowedPrincipal, serviceId)){
-                    logger.info("Successfully whitelisted {} for Endpoint service {} \n", allowedPrincipal, serviceId);
-                }
-            } else {
-                if (checkLBStatus(i.getKey()).equals(LoadBalancerStateEnum.Provisioning)){
-                    do {
-                        logger.info("NLB {} still provisioning. Waiting for 5 seconds. \n", i);
-                        TimeUnit.SECONDS.sleep(5);
-                    } while (checkLBStatus(i.getKey()).equals(LoadBalancerStateEnum.Provisioning));
-                }
-                if (checkLBStatus(i.getKey()).equals(LoadBalancerStateEnum.Failed) || checkLBStatus(i.getKey()).equals(LoadBalancerStateEnum.Active_impaired)){
-                    logger.info("NLB {} is in {} state. Not creating the endpoint \n", i, checkLBStatus(i.getKey()));
-                } else {
-                    String serviceId = createVpcEndpointService(i, tableName, brokerEndpointMap.get(i.getValue()));
-                    if (whiteListEndpointAccounts(allowedPrincipal, serviceId)){
-                        logger.info("Successfully whitelisted {} for Endpoint service {} \n", allowedPrincipal, serviceId);
+        for (String serviceId : new HashSet<>(endpointServiceIds)) {
+            syncs.add(getAllowedPrincipals(serviceId, new HashSet<>(), null)
+                    .thenCompose(current -> {
+                        List<String> toAdd = desired.stream().filter(i -> !current.contains(i)).collect(Collectors.toList());
+                        List<String> toRemove = current.stream().filter(i -> !desired.contains(i)).collect(Collectors.toList());
+                        if (toAdd.isEmpty() && toRemove.isEmpty()) {
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        logger.info("Endpoint service {}: allowing {}, removing {} \n", serviceId, toAdd, toRemove);
+                        changedServices.add(serviceId);
+                        return modifyPermissions(serviceId, toAdd, toRemove).thenAccept(i -> {
+                            if (!i) {
+                                throw new RuntimeException(String.format("Permissions of Endpoint service %s were not modified \n", serviceId));
+                            }
+                        });
+                    })
+                    .exceptionally(e -> {
+                        failedServices.put(serviceId, e);
+                        logger.error("Could not update permissions of Endpoint service {} \n", serviceId);
+                        logger.error(Util.stackTrace(e));
+                        return null;
+                    }));
+        }
+
+        CompletableFuture.allOf(syncs.toArray(new CompletableFuture[0])).join();
+        if (!failedServices.isEmpty()) {
+            throw new RuntimeException(String.format("Could not update permissions of Endpoint services %s \n", failedServices.keySet()));
+        }
+        return changedServices.size();
+    }
+
+    /**
+     * Returns the subset of the given endpoint service IDs that exist and are not being deleted. Only the IDs without
+     * a cached state are described.
+     */
+    Set<String> getAvailableServiceIds(Collection<String> endpointServiceIds) {
+        Set<String> availableServiceIds = new HashSet<>();
+        List<String> serviceIds = new ArrayList<>();
+        for (String serviceId : new HashSet<>(endpointServiceIds)) {
+            String state = cache.get(MetadataCache.SERVICE_STATE, serviceId);
+            if (state == null) {
+                serviceIds.add(serviceId);
+            } else if (ServiceState.Available.toString().equals(state) || ServiceState.Pending.toString().equals(state)) {
+                availableServiceIds.add(serviceId);
+            }
+        }
+        for (int i = 0; i < serviceIds.size(); i += MAX_FILTER_VALUES) {
+            Filter filter = new Filter()
+                    .withName("service-id")
+                    .withValues(serviceIds.subList(i, Math.min(i + MAX_FILTER_VALUES, serviceIds.size())));
+            String nextToken = null;
+            do {
+                DescribeVpcEndpointServiceConfigurationsResult describeVpcEndpointServiceConfigurationsResult = ec2Client.describeVpcEndpointServiceConfigurations(new DescribeVpcEndpointServiceConfigurationsRequest()
+                        .withFilters(filter)
+                        .withNextToken(nextToken));
+                describeVpcEndpointServiceConfigurationsResult.getServiceConfigurations().forEach(k -> {
+                    cache.put(MetadataCache.SERVICE_STATE, k.getServiceId(), k.getServiceState());
+                    if (ServiceState.Available.toString().equals(k.getServiceState()) || ServiceState.Pending.toString().equals(k.getServiceState())) {
+                        availableServiceIds.add(k.getServiceId());
                     }
-                }
+                });
+                nextToken = describeVpcEndpointServiceConfigurationsResult.getNextToken();
+            } while (nextToken != null);
+        }
+        return availableServiceIds;
+    }
+
+    /**
+     * The number of endpoint services the account owns in the region.
+     */
+    int countEndpointServices() {
+        int count = 0;
+        String nextToken = null;
+        do {
+            DescribeVpcEndpointServiceConfigurationsResult describeVpcEndpointServiceConfigurationsResult = ec2Client.describeVpcEndpointServiceConfigurations(new DescribeVpcEndpointServiceConfigurationsRequest()
+                    .withMaxResults(1000)
+                    .withNextToken(nextToken));
+            count += describeVpcEndpointServiceConfigurationsResult.getServiceConfigurations().size();
+            nextToken = describeVpcEndpointServiceConfigurationsResult.getNextToken();
+        } while (nextToken != null);
+        return count;
+    }
+
+    CompletableFuture<Void> deleteServiceEndpoint(String endpointServiceId) {
+        DeleteVpcEndpointServiceConfigurationsRequest deleteVpcEndpointServiceConfigurationsRequest = new DeleteVpcEndpointServiceConfigurationsRequest()
+                .withServiceIds(endpointServiceId);
+        logger.info("Deleting Endpoint service {} \n", endpointServiceId);
+        AsyncResult<DeleteVpcEndpointServiceConfigurationsRequest, DeleteVpcEndpointServiceConfigurationsResult> result = new AsyncResult<>();
+        ec2Client.deleteVpcEndpointServiceConfigurationsAsync(deleteVpcEndpointServiceConfigurationsRequest, result);
+        return result.whenComplete((i, e) -> cache.invalidate(MetadataCache.SERVICE_STATE, endpointServiceId)).thenAccept(i -> i.getUnsuccessful().stream()
+                .filter(k -> !"InvalidVpcEndpointService.NotFound".equals(k.getError().getCode()))
+                .findFirst()
+                .ifPresent(k -> {
+                    throw new RuntimeException(String.format("Could not delete Endpoint service %s: %s \n", endpointServiceId, k.getError().getMessage()));
+                }));
+    }
+
+    /**
+     * Completes once the endpoint service is gone, so that its NLB can be deleted.
+     */
+    CompletableFuture<Void> waitForServiceDeletion(String endpointServiceId) {
+        return metrics.timeWait("endpoint_service_deletion", waitForServiceDeletion(endpointServiceId, 0));
+    }
+
+    private CompletableFuture<Void> waitForServiceDeletion(String endpointServiceId, int attempt) {
+        DescribeVpcEndpointServiceConfigurationsRequest describeVpcEndpointServiceConfigurationsRequest = new DescribeVpcEndpointServiceConfigurationsRequest()
+                .withFilters(new Filter().withName("service-id").withValues(endpointServiceId));
+        AsyncResult<DescribeVpcEndpointServiceConfigurationsRequest, DescribeVpcEndpointServiceConfigurationsResult> result = new AsyncResult<>();
+        ec2Client.describeVpcEndpointServiceConfigurationsAsync(describeVpcEndpointServiceConfigurationsRequest, result);
+        return result.thenCompose(i -> {
+            boolean deleted = i.getServiceConfigurations().stream().allMatch(k -> ServiceState.Deleted.toString().equals(k.getServiceState()));
+            if (deleted) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (i.getServiceConfigurations().stream().anyMatch(k -> ServiceState.Failed.toString().equals(k.getServiceState()))) {
+                throw new RuntimeException(String.format("Endpoint service %s is in failed state \n", endpointServiceId));
+            }
+            if (attempt + 1 >= MAX_WAIT_ATTEMPTS) {
+                throw new RuntimeException(String.format("Endpoint service %s was not deleted after %d checks \n", endpointServiceId, MAX_WAIT_ATTEMPTS));
             }
+            return Util.delay(Util.backoffWithJitter(attempt, 1000L, 15000L)).thenCompose(k -> waitForServiceDeletion(endpointServiceId, attempt + 1));
+        });
+    }
+
+    /**
+     * Creates the endpoint service for each NLB as soon as the waiter reports it Active, so the total wait follows the
+     * slowest NLB. Failures for one broker, including an NLB that settles in a state other than Active, do not stop the
+     * others and are reported once all brokers are done. With a
+     * brokerZoneIdMap, for zonal NLBs, each row also holds the Availability Zone ID its endpoint service is offered in.
+     * Rows of NLBs with more than one port mapping hold the mappings.
+     */
+    void createVpcEndpointServices(Map<String, Integer> lbArnsBrokerIdMap, Collection<String> allowedPrincipals, String tableName, String clusterArn, Map<Integer, String> brokerEndpointMap,
+                                   Map<Integer, String> brokerZoneIdMap, List<PortMapping> portMappings) {
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> endpointServices = new ArrayList<>();
+        EndpointServicesRecordWriter recordWriter = endpointServicesInfo.createRecordWriter(tableName);
+
+        for (Map.Entry<String, Integer> i : lbArnsBrokerIdMap.entrySet()) {
+            endpointServices.add(metrics.timeWait("nlb_provisioning", lbWaiter.waitUntilReady(i.getKey()))
+                    .thenCompose(state -> {
+                        if (!state.equals(LoadBalancerStateEnum.Active)) {
+                            throw new RuntimeException(String.format("NLB %s is in %s state. Not creating the endpoint \n", i.getKey(), state));
+                        }
+                        return metrics.timeBroker("create_endpoint_service", i.getValue(), createVpcEndpointService(i, recordWriter, clusterArn, brokerEndpointMap.get(i.getValue()),
+                                        brokerZoneIdMap != null ? brokerZoneIdMap.get(i.getValue()) : null, portMappings)
+                                .thenCompose(serviceId -> whiteListEndpointAccounts(allowedPrincipals, serviceId)
+                                        .thenAccept(whiteListed -> {
+                                            if (whiteListed) {
+                                                logger.info("Successfully whitelisted {} for Endpoint service {} \n", allowedPrincipals, serviceId);
+                                            }
+                                        })));
+                    })
+                    .exceptionally(e -> {
+                        failedBrokers.put(i.getValue(), e);
+                        logger.error("Could not create Endpoint service for NLB {} \n", i.getKey());
+                        logger.error(Util.stackTrace(e));
+                        return null;
+                    }));
+        }
+
+        CompletableFuture.allOf(endpointServices.toArray(new CompletableFuture[0])).join();
+        long start = System.nanoTime();
+        recordWriter.close().join();
+        metrics.recordWait("record_writes", start);
+        if (!failedBrokers.isEmpty()) {
+            throw new RuntimeException(String.format("Could not create Endpoint services for brokers %s \n", failedBrokers.keySet()));
         }
     }
 
-    private String createVpcEndpointService(Map.Entry<String, Integer> lbArnBrokerId, String tableName, String brokerEndpoint) throws ExecutionException, InterruptedException {
-        CreateVpcEndpointServiceConfigurationRequest createVpcEndpointServiceConfigurationRequest = new CreateVpcEndpointServiceConfigurationRequest()
-                .withAcceptanceRequired(false)
-                .withClientToken(new Random().ints(10000, 10999).toString())
-                .withNetworkLoadBalancerArns(lbArnBrokerId.getKey());
-        CreateVpcEndpointServiceConfigurationResult createVpcEndpointServiceConfigurationResult = ec2Client.createVpcEndpointServiceConfigurationAsync(createVpcEndpointServiceConfigurationRequest).get();
-        logger.info("NLBName: {} \n Service DNS name: {} \n", lbArnBrokerId.getKey().split("/")[2], createVpcEndpointServiceConfigurationResult.getServiceConfiguration().getServiceName());
-        ManageEndpointServicesInfo.loadRecord(lbArnBrokerId.getValue(), createVpcEndpointServiceConfigurationResult.getServiceConfiguration().getServiceName(), lbArnBrokerId.getKey().split("/")[2], tableName, brokerEndpoint);
+    /**
+     * Creates the endpoint service of an NLB as a journaled step and returns its service name. The client token is the
+     * step's journaled token, so resuming after a crash returns the endpoint service of the interrupted attempt instead of
+     * a second one, while creating it again after it was deleted gets a new endpoint service.
+     */
+    private CompletableFuture<String> createServiceConfiguration(String resource, String lbArn) {
+        return journal.step(resource, "create_endpoint_service", lbArn, () -> {
+            CreateVpcEndpointServiceConfigurationRequest createVpcEndpointServiceConfigurationRequest = new CreateVpcEndpointServiceConfigurationRequest()
+                    .withAcceptanceRequired(false)
+                    .withClientToken(journal.token(resource, "create_endpoint_service", lbArn))
+                    .withNetworkLoadBalancerArns(lbArn);
+            AsyncResult<CreateVpcEndpointServiceConfigurationRequest, CreateVpcEndpointServiceConfigurationResult> result = new AsyncResult<>();
+            ec2Client.createVpcEndpointServiceConfigurationAsync(createVpcEndpointServiceConfigurationRequest, result);
+            return result.thenApply(i -> {
+                cache.put(MetadataCache.SERVICE_STATE, i.getServiceConfiguration().getServiceId(), i.getServiceConfiguration().getServiceState());
+                return i.getServiceConfiguration().getServiceName();
+            });
+        });
+    }
+
+    /**
+     * The ID of an endpoint service from its name: com.amazonaws.vpce.region.vpce-svc-id has the ID vpce-svc-id.
+     */
+    private static String getServiceId(String serviceName) {
+        return serviceName.substring(serviceName.lastIndexOf('.') + 1);
+    }
+
+    private CompletableFuture<String> createVpcEndpointService(Map.Entry<String, Integer> lbArnBrokerId, EndpointServicesRecordWriter recordWriter, String clusterArn, String brokerEndpoint, String zoneId,
+                                                               List<PortMapping> portMappings) {
+        return createServiceConfiguration(RunJournal.broker(lbArnBrokerId.getValue()), lbArnBrokerId.getKey()).thenApply(serviceName -> {
+            logger.info("NLBName: {} \n Service DNS name: {} \n", lbArnBrokerId.getKey().split("/")[2], serviceName);
+            String nlbName = lbArnBrokerId.getKey().split("/")[2];
+            recordWriter.add(ManageEndpointServicesInfo.withPortMappings(zoneId != null
+                    ? ManageEndpointServicesInfo.getZonalRecord(clusterArn, lbArnBrokerId.getValue(), serviceName, nlbName, brokerEndpoint, zoneId)
+                    : ManageEndpointServicesInfo.getRecord(clusterArn, lbArnBrokerId.getValue(), serviceName, nlbName, brokerEndpoint), portMappings));
+            return getServiceId(serviceName);
+        });
+    }
+
+    /**
+     * Creates the endpoint service of a shared NLB once it is Active, unless serviceName names one that already exists,
+     * and writes a row for each broker with its listener port. All rows point at the same endpoint service.
+     */
+    void createSharedVpcEndpointService(String lbArn, String serviceName, Collection<String> allowedPrincipals, String tableName, String clusterArn, Map<Integer, Integer> brokerListenerPorts, Map<Integer, String> brokerEndpointMap) {
+        CompletableFuture<String> serviceNameFuture;
+        if (serviceName != null) {
+            serviceNameFuture = CompletableFuture.completedFuture(serviceName);
+        } else {
+            serviceNameFuture = metrics.timeWait("nlb_provisioning", lbWaiter.waitUntilReady(lbArn))
+                    .thenCompose(state -> {
+                        if (!state.equals(LoadBalancerStateEnum.Active)) {
+                            throw new RuntimeException(String.format("NLB %s is in %s state. Not creating the endpoint \n", lbArn, state));
+                        }
+                        return createServiceConfiguration("shared", lbArn);
+                    })
+                    .thenCompose(createdServiceName -> whiteListEndpointAccounts(allowedPrincipals, getServiceId(createdServiceName))
+                            .thenApply(whiteListed -> {
+                                if (whiteListed) {
+                                    logger.info("Successfully whitelisted {} for Endpoint service {} \n", allowedPrincipals, getServiceId(createdServiceName));
+                                }
+                                return createdServiceName;
+                            }));
+        }
 
-        return createVpcEndpointServiceConfigurationResult.getServiceConfiguration().getServiceId();
+        String sharedServiceName = serviceNameFuture.join();
+        String nlbName = lbArn.split("/")[2];
+        logger.info("NLBName: {} \n Service DNS name: {} \n", nlbName, sharedServiceName);
+        EndpointServicesRecordWriter recordWriter = endpointServicesInfo.createRecordWriter(tableName);
+        brokerListenerPorts.forEach((brokerId, listenerPort) -> recordWriter.add(ManageEndpointServicesInfo.getSharedRecord(clusterArn, brokerId, sharedServiceName, nlbName,
+                brokerEndpointMap.get(brokerId), NLB.getSharedTargetGroupName(clusterArn, brokerId), listenerPort)));
+        long start = System.nanoTime();
+        recordWriter.close().join();
+        metrics.recordWait("record_writes", start);
     }
 }
@@ -0,0 +1,56 @@
+package com.amazonaws.kafka.samples;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Puts all brokers of a cluster behind one NLB and one endpoint service. Each broker gets its own target group and a
+ * listener on its own port (lbListenerPort + brokerId - 1), so only one NLB has to be provisioned whatever the
+ * cluster size. Clients reach a broker through its port, so each broker's advertised listener has to use that port.
+ */
+class SharedTopology {
+
+    private static final Logger logger = LogManager.getLogger(SharedTopology.class);
+
+    private final NLB nlb;
+    private final ServiceEndpoint serviceEndpoint;
+
+    SharedTopology(NLB nlb, ServiceEndpoint serviceEndpoint) {
+        this.nlb = nlb;
+        this.serviceEndpoint = serviceEndpoint;
+    }
+
+    /**
+     * Adds the given brokers to the cluster's shared NLB, creating the NLB and its endpoint service if they do not exist yet.
+     * existingRecords are the cluster's rows, used to find an endpoint service that is already there.
+     */
+    void addBrokers(String clusterArn, String tableName, Collection<String> allowedPrincipals, BrokerTopology brokers, String vpcId,
+                    Map<Integer, EndpointServiceRecord> existingRecords, Integer targetPort, Integer lbListenerPort, int maxConcurrency) throws InterruptedException {
+        String serviceName = existingRecords.values().stream()
+                .filter(i -> i.isShared() && i.getServiceEndpointDNS() != null)
+                .filter(i -> !serviceEndpoint.getAvailableServiceIds(Collections.singletonList(i.getServiceId())).isEmpty())
+                .map(EndpointServiceRecord::getServiceEndpointDNS)
+                .findFirst()
+                .orElse(null);
+        // Checked before anything is created, so a broker ID too high for its port fails the run without leaving a half-built NLB.
+        brokers.getBrokerIds().forEach(i -> NLB.getSharedListenerPort(lbListenerPort, i));
+
+        logger.info("Creating shared NLB {} .. \n", NLB.getSharedNLBName(clusterArn));
+        CompletableFuture<String> lbArnFuture = nlb.createSharedNLB(clusterArn, brokers.getSubnets());
+        Map<Integer, Integer> brokerListenerPorts = nlb.createSharedListeners(lbArnFuture, brokers, clusterArn, targetPort, lbListenerPort, vpcId, maxConcurrency);
+
+        if (!brokerListenerPorts.isEmpty()) {
+            logger.info(serviceName == null ? "Creating Endpoint service .. \n" : "Adding brokers to Endpoint service " + serviceName + " .. \n");
+            serviceEndpoint.createSharedVpcEndpointService(lbArnFuture.join(), serviceName, allowedPrincipals, tableName, clusterArn, brokerListenerPorts, brokers.getBrokerEndpointMap());
+            brokerListenerPorts.forEach((brokerId, port) -> logger.info("Broker {} ({}) is reachable on port {}. Its advertised listener has to use this port. \n",
+                    brokerId, brokers.getBroker(brokerId).getEndpoint(), port));
+        }
+        if (brokerListenerPorts.size() < brokers.size()) {
+            throw new RuntimeException(String.format("Could not create listeners for %d of %d brokers \n", brokers.size() - brokerListenerPorts.size(), brokers.size()));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.elasticloadbalancingv2.model.Listener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes the resources of a set of brokers. Each broker is torn down in dependency order
+ * (endpoint service, listeners, NLB, target groups) and brokers are processed concurrently, at most maxConcurrency at a time.
+ * Resources that are already gone are skipped, so a rerun finishes a partial teardown. A failing broker does not stop the
+ * others; the brokers that could not be removed are reported once all are done. A broker behind a shared NLB only has its
+ * listener and target group removed; the shared NLB and its endpoint service go once no listener is left on it.
+ */
+class Teardown {
+
+    private static final Logger logger = LogManager.getLogger(Teardown.class);
+
+    private final NLB nlb;
+    private final ServiceEndpoint serviceEndpoint;
+    private final ManageEndpointServicesInfo endpointServicesInfo;
+    private final RunMetrics metrics;
+
+    Teardown(NLB nlb, ServiceEndpoint serviceEndpoint, ManageEndpointServicesInfo endpointServicesInfo, RunMetrics metrics) {
+        this.nlb = nlb;
+        this.serviceEndpoint = serviceEndpoint;
+        this.endpointServicesInfo = endpointServicesInfo;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Tears down the given brokers and removes the table rows of the ones that were fully deleted.
+     */
+    void deleteBrokers(String tableName, String clusterArn, Map<Integer, EndpointServiceRecord> records, int maxConcurrency) throws ExecutionException, InterruptedException {
+        long lookupStart = System.nanoTime();
+        Set<String> availableServiceIds = serviceEndpoint.getAvailableServiceIds(records.values().stream()
+                .filter(i -> i.getServiceEndpointDNS() != null)
+                .map(EndpointServiceRecord::getServiceId)
+                .collect(Collectors.toSet()));
+        Map<String, String> nlbArnIndex = nlb.getNLBArnIndex(records.values().stream().map(EndpointServiceRecord::getNlbName).collect(Collectors.toList()));
+        Map<String, String> targetGroupArnIndex = nlb.getTargetGroupArnIndex(records.values().stream().flatMap(i -> i.getTargetGroupNames().stream()).collect(Collectors.toList()));
+        Map<String, List<Listener>> nlbListenerIndex = nlb.getNLBListenerIndex(nlbArnIndex.values());
+        metrics.recordPhase("teardown_lookup", lookupStart);
+
+        Map<Integer, Throwable> failedBrokers = new ConcurrentHashMap<>();
+        Set<Integer> deletedBrokers = ConcurrentHashMap.newKeySet();
+        Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+        List<CompletableFuture<Void>> teardowns = new ArrayList<>();
+
+        for (EndpointServiceRecord record : records.values()) {
+            permits.acquire();
+            String serviceId = record.getServiceEndpointDNS() != null && availableServiceIds.contains(record.getServiceId()) ? record.getServiceId() : null;
+            CompletableFuture<Void> teardown;
+            try {
+                String nlbArn = nlbArnIndex.get(record.getNlbName());
+                List<Listener> listeners = nlbListenerIndex.getOrDefault(nlbArn, Collections.emptyList());
+                teardown = record.isShared()
+                        ? deleteSharedBroker(listeners.stream().filter(i -> i.getPort().equals(record.getListenerPort())).map(Listener::getListenerArn).findFirst().orElse(null), targetGroupArnIndex.get(record.getTargetGroupName()))
+                        : deleteBroker(serviceId, nlbArn, listeners.stream().map(Listener::getListenerArn).collect(Collectors.toList()), record.getTargetGroupNames().stream()
+                                .map(targetGroupArnIndex::get).filter(Objects::nonNull).collect(Collectors.toList()));
+            } catch (RuntimeException e) {
+                teardown = Util.failedFuture(e);
+            }
+            teardowns.add(metrics.timeBroker("delete_broker", record.getBrokerId(), teardown).handle((i, e) -> {
+                permits.release();
+                if (e == null) {
+                    deletedBrokers.add(record.getBrokerId());
+                } else {
+                    failedBrokers.put(record.getBrokerId(), e);
+                    logger.error("Could not delete resources of broker {} \n", record.getBrokerId());
+                    logger.error(Util.stackTrace(e));
+                }
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(teardowns.toArray(new CompletableFuture[0])).join();
+        deleteEmptySharedNLBs(records, availableServiceIds, nlbArnIndex, nlbListenerIndex, deletedBrokers, failedBrokers);
+        if (!deletedBrokers.isEmpty()) {
+            logger.info("Deleting DynamoDB records .. \n");
+            endpointServicesInfo.deleteRecords(tableName, clusterArn, deletedBrokers);
+        }
+        if (!failedBrokers.isEmpty()) {
+            throw new RuntimeException(String.format("Could not delete resources of brokers %s. Rerun to finish the teardown. \n", failedBrokers.keySet()));
+        }
+    }
+
+    private CompletableFuture<Void> deleteSharedBroker(String listenerArn, String targetGroupArn) {
+        CompletableFuture<Void> listenerDeleted = listenerArn == null ? CompletableFuture.completedFuture(null) : nlb.deleteListener(listenerArn);
+        return targetGroupArn == null
+                ? listenerDeleted
+                : listenerDeleted.thenCompose(i -> nlb.deleteTargetGroup(targetGroupArn));
+    }
+
+    /**
+     * Deletes the endpoint service and the NLB of each shared NLB whose listeners all belonged to brokers that were just
+     * removed. If that fails, those brokers are moved to the failed ones so their rows are kept for the rerun.
+     */
+    private void deleteEmptySharedNLBs(Map<Integer, EndpointServiceRecord> records, Set<String> availableServiceIds, Map<String, String> nlbArnIndex,
+                                       Map<String, List<Listener>> nlbListenerIndex, Set<Integer> deletedBrokers, Map<Integer, Throwable> failedBrokers) {
+        Map<String, List<EndpointServiceRecord>> sharedRecords = records.values().stream()
+                .filter(EndpointServiceRecord::isShared)
+                .collect(Collectors.groupingBy(EndpointServiceRecord::getNlbName));
+
+        sharedRecords.forEach((nlbName, nlbRecords) -> {
+            String nlbArn = nlbArnIndex.get(nlbName);
+            Set<Integer> deletedPorts = nlbRecords.stream()
+                    .filter(i -> deletedBrokers.contains(i.getBrokerId()))
+                    .map(EndpointServiceRecord::getListenerPort)
+                    .collect(Collectors.toSet());
+            boolean empty = nlbListenerIndex.getOrDefault(nlbArn, Collections.emptyList()).stream().allMatch(i -> deletedPorts.contains(i.getPort()));
+            if (!empty) {
+                return;
+            }
+            String serviceId = nlbRecords.stream()
+                    .filter(i -> i.getServiceEndpointDNS() != null && availableServiceIds.contains(i.getServiceId()))
+                    .map(EndpointServiceRecord::getServiceId)
+                    .findFirst()
+                    .orElse(null);
+            logger.info("No listeners left on shared NLB {}. Deleting it with its Endpoint service .. \n", nlbName);
+            try {
+                deleteBroker(serviceId, nlbArn, Collections.emptyList(), Collections.emptyList()).join();
+            } catch (RuntimeException e) {
+                logger.error("Could not delete shared NLB {} \n", nlbName);
+                logger.error(Util.stackTrace(e));
+                nlbRecords.stream().filter(i -> deletedBrokers.remove(i.getBrokerId())).forEach(i -> failedBrokers.put(i.getBrokerId(), e));
+            }
+        });
+    }
+
+    private CompletableFuture<Void> deleteBroker(String serviceId, String nlbArn, List<String> listenerArns, List<String> targetGroupArns) {
+        CompletableFuture<Void> serviceDeleted = serviceId == null
+                ? CompletableFuture.completedFuture(null)
+                : serviceEndpoint.deleteServiceEndpoint(serviceId).thenCompose(i -> serviceEndpoint.waitForServiceDeletion(serviceId));
+
+        CompletableFuture<Void> nlbDeleted = nlbArn == null
+                ? serviceDeleted
+                : serviceDeleted
+                    .thenCompose(i -> CompletableFuture.allOf(listenerArns.stream().map(nlb::deleteListener).toArray(CompletableFuture[]::new)))
+                    .thenCompose(i -> nlb.deleteNLB(nlbArn));
+
+        return nlbDeleted.thenCompose(i -> CompletableFuture.allOf(targetGroupArns.stream().map(nlb::deleteTargetGroup).toArray(CompletableFuture[]::new)));
+    }
+}
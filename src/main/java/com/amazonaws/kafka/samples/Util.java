@@ -8,9 +8,21 @@ import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 class Util {
     private static final Logger logger = LogManager.getLogger(Util.class);
+    private static final ScheduledExecutorService delayScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "retry-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     static String stackTrace(Throwable e) {
         StringWriter sw = new StringWriter();
@@ -28,4 +40,35 @@ class Util {
         }
         return reverseDNSName.substring(0, reverseDNSName.length() - 1);
     }
+
+    /**
+     * Exponential backoff capped at maxMillis, with the upper half of the interval randomised ("equal jitter").
+     */
+    static long backoffWithJitter(int attempt, long baseMillis, long maxMillis) {
+        long delay = Math.min(maxMillis, baseMillis << Math.min(attempt, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    static CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        delayScheduler.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Strips the CompletionException/ExecutionException wrappers that future chains put around the real cause.
+     */
+    static Throwable unwrap(Throwable e) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
 }
@@ -0,0 +1,81 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.ec2.AmazonEC2Async;
+import com.amazonaws.services.ec2.model.DescribeVpcEndpointsRequest;
+import com.amazonaws.services.ec2.model.DescribeVpcEndpointsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.State;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Waits for interface VPC endpoints to leave the pending states. Like {@link LoadBalancerWaiter}, all pending endpoints
+ * are checked together with batched DescribeVpcEndpoints calls and each caller's future completes as soon as its own
+ * endpoint settles.
+ */
+class VpcEndpointWaiter extends BatchedPoller<String> {
+
+    private static final int MAX_FILTER_VALUES = 200;
+    private static final Logger logger = LogManager.getLogger(VpcEndpointWaiter.class);
+
+    private final AmazonEC2Async ec2Client;
+
+    VpcEndpointWaiter(AmazonEC2Async ec2Client) {
+        this(ec2Client, 2000L, 30000L, 900000L);
+    }
+
+    VpcEndpointWaiter(AmazonEC2Async ec2Client, long initialDelayMillis, long maxDelayMillis, long maxWaitMillis) {
+        super("VPC endpoint", "vpc-endpoint-waiter", MAX_FILTER_VALUES, initialDelayMillis, initialDelayMillis, maxDelayMillis, maxWaitMillis);
+        this.ec2Client = ec2Client;
+    }
+
+    private static boolean isPending(String state) {
+        return State.Pending.toString().equalsIgnoreCase(state) || State.PendingAcceptance.toString().equalsIgnoreCase(state);
+    }
+
+    /**
+     * Returns a future that completes with the first state of the VPC endpoint other than pending or pendingAcceptance.
+     * The API reports states in lower camel case (available), so they are returned as strings rather than {@link State} values.
+     */
+    CompletableFuture<String> waitUntilReady(String vpcEndpointId) {
+        return waitFor(vpcEndpointId);
+    }
+
+    @Override
+    CompletableFuture<Void> describe(List<String> vpcEndpointIds) {
+        return describe(vpcEndpointIds, new HashSet<>(), null);
+    }
+
+    /**
+     * A vpc-endpoint-id filter, unlike VpcEndpointIds, does not fail the whole batch when one of the endpoints is gone.
+     * Endpoints missing from every page are reported as deleted.
+     */
+    private CompletableFuture<Void> describe(List<String> vpcEndpointIds, Set<String> seen, String nextToken) {
+        DescribeVpcEndpointsRequest describeVpcEndpointsRequest = new DescribeVpcEndpointsRequest()
+                .withFilters(new Filter().withName("vpc-endpoint-id").withValues(vpcEndpointIds))
+                .withNextToken(nextToken);
+        AsyncResult<DescribeVpcEndpointsRequest, DescribeVpcEndpointsResult> result = new AsyncResult<>();
+        ec2Client.describeVpcEndpointsAsync(describeVpcEndpointsRequest, result);
+        return result.thenCompose(describeVpcEndpointsResult -> {
+            describeVpcEndpointsResult.getVpcEndpoints().forEach(i -> {
+                seen.add(i.getVpcEndpointId());
+                if (!isPending(i.getState())) {
+                    logger.info("VPC endpoint {} is {}. \n", i.getVpcEndpointId(), i.getState());
+                    complete(i.getVpcEndpointId(), i.getState());
+                }
+            });
+            if (describeVpcEndpointsResult.getNextToken() != null) {
+                return describe(vpcEndpointIds, seen, describeVpcEndpointsResult.getNextToken());
+            }
+            vpcEndpointIds.stream().filter(i -> !seen.contains(i)).forEach(i -> {
+                logger.info("VPC endpoint {} does not exist. \n", i);
+                complete(i, State.Deleted.toString().toLowerCase());
+            });
+            return CompletableFuture.<Void>completedFuture(null);
+        });
+    }
+}
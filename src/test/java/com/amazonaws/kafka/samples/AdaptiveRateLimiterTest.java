@@ -0,0 +1,58 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveRateLimiterTest {
+
+    private static void succeed(AdaptiveRateLimiter limiter) {
+        limiter.afterAttempt(HandlerAfterAttemptContext.builder().build());
+    }
+
+    private static void fail(AdaptiveRateLimiter limiter, String errorCode) {
+        AmazonServiceException exception = new AmazonServiceException("Rate exceeded");
+        exception.setErrorCode(errorCode);
+        exception.setStatusCode(400);
+        limiter.afterAttempt(HandlerAfterAttemptContext.builder().withException(exception).build());
+    }
+
+    @Test
+    void throttledAttemptHalvesRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("elbv2", 10.0, 4, new RunMetrics());
+        fail(limiter, "Throttling");
+        assertEquals(5.0, limiter.getRate(), 1e-9);
+        fail(limiter, "Throttling");
+        assertEquals(2.5, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void rateDoesNotDropBelowMinimum() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("elbv2", 10.0, 4, new RunMetrics());
+        for (int i = 0; i < 10; i++) {
+            fail(limiter, "Throttling");
+        }
+        assertEquals(0.5, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void successfulAttemptsRaiseRateBackToMax() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("elbv2", 10.0, 4, new RunMetrics());
+        fail(limiter, "Throttling");
+        succeed(limiter);
+        assertEquals(5.2, limiter.getRate(), 1e-9);
+        for (int i = 0; i < 30; i++) {
+            succeed(limiter);
+        }
+        assertEquals(10.0, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    void otherErrorsKeepRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter("elbv2", 10.0, 4, new RunMetrics());
+        fail(limiter, "ValidationError");
+        assertEquals(10.0, limiter.getRate(), 1e-9);
+    }
+}
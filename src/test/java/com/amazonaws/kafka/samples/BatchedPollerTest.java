@@ -0,0 +1,75 @@
+package com.amazonaws.kafka.samples;
+
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchedPollerTest {
+
+    private static class TestPoller extends BatchedPoller<String> {
+
+        private final Function<List<String>, CompletableFuture<Void>> describer;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private TestPoller(long maxWaitMillis, Function<List<String>, CompletableFuture<Void>> describer) {
+            super("resource", "test-poller", 2, 0L, 10L, 20L, maxWaitMillis);
+            this.describer = describer;
+        }
+
+        @Override
+        CompletableFuture<Void> describe(List<String> ids) {
+            calls.incrementAndGet();
+            return describer.apply(ids);
+        }
+    }
+
+    @Test
+    void settledResourcesCompleteInBatches() throws Exception {
+        TestPoller[] poller = new TestPoller[1];
+        poller[0] = new TestPoller(60000L, ids -> {
+            ids.forEach(i -> poller[0].complete(i, "available"));
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture<String> first = poller[0].waitFor("a");
+        CompletableFuture<String> second = poller[0].waitFor("b");
+        CompletableFuture<String> third = poller[0].waitFor("c");
+        assertEquals("available", first.get(5, TimeUnit.SECONDS));
+        assertEquals("available", second.get(5, TimeUnit.SECONDS));
+        assertEquals("available", third.get(5, TimeUnit.SECONDS));
+        poller[0].shutdown();
+    }
+
+    @Test
+    void pollingGoesOnAfterSynchronousThrow() throws Exception {
+        TestPoller[] poller = new TestPoller[1];
+        AtomicInteger attempts = new AtomicInteger();
+        poller[0] = new TestPoller(60000L, ids -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("Rejected");
+            }
+            ids.forEach(i -> poller[0].complete(i, "available"));
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals("available", poller[0].waitFor("a").get(5, TimeUnit.SECONDS));
+        assertEquals(2, poller[0].calls.get());
+        poller[0].shutdown();
+    }
+
+    @Test
+    void resourceFailsAfterMaxWait() {
+        TestPoller poller = new TestPoller(200L, ids -> Util.failedFuture(new IllegalStateException("Throttling")));
+        CompletionException e = assertThrows(CompletionException.class, () -> poller.waitFor("a").join());
+        assertTrue(e.getCause().getMessage().contains("did not settle within 200 ms"));
+        assertTrue(e.getCause().getMessage().contains("Throttling"));
+        assertTrue(poller.calls.get() > 1);
+        poller.shutdown();
+    }
+}
@@ -0,0 +1,112 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.kafka.model.BrokerNodeInfo;
+import com.amazonaws.services.kafka.model.NodeInfo;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BrokerTopologyTest {
+
+    private static NodeInfo broker(int brokerId, String ip, String subnet) {
+        return new NodeInfo().withNodeType("BROKER").withBrokerNodeInfo(new BrokerNodeInfo()
+                .withBrokerId((double) brokerId)
+                .withClientVpcIpAddress(ip)
+                .withClientSubnet(subnet)
+                .withEndpoints(String.format("b-%d.test.abc123.c2.kafka.us-east-1.amazonaws.com", brokerId)));
+    }
+
+    @Test
+    void fromNodesKeepsBrokersInBrokerIdOrder() {
+        BrokerTopology topology = BrokerTopology.fromNodes(Arrays.asList(
+                broker(3, "10.0.2.13", "subnet-c"),
+                broker(1, "10.0.0.11", "subnet-a"),
+                broker(2, "10.0.1.12", "subnet-b")));
+
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(topology.getBrokerIds()));
+        assertEquals(Arrays.asList("subnet-a", "subnet-b", "subnet-c"), topology.getSubnets());
+        assertEquals("10.0.1.12", topology.getBrokerIPMap().get(2));
+        assertEquals("b-3.test.abc123.c2.kafka.us-east-1.amazonaws.com", topology.getBrokerEndpointMap().get(3));
+        assertEquals("subnet-a", topology.getBrokerSubnetMap().get(1));
+    }
+
+    @Test
+    void fromNodesLeavesOutNodesOtherThanBrokers() {
+        BrokerTopology topology = BrokerTopology.fromNodes(Arrays.asList(
+                broker(1, "10.0.0.11", "subnet-a"),
+                new NodeInfo().withNodeType("CONTROLLER"),
+                new NodeInfo().withNodeType("BROKER").withBrokerNodeInfo(new BrokerNodeInfo().withClientVpcIpAddress("10.0.1.12").withClientSubnet("subnet-b")),
+                broker(2, "10.0.1.12", "subnet-b")));
+
+        assertEquals(Arrays.asList(1, 2), new ArrayList<>(topology.getBrokerIds()));
+    }
+
+    @Test
+    void fromNodesListsEachSubnetOnce() {
+        BrokerTopology topology = BrokerTopology.fromNodes(Arrays.asList(
+                broker(1, "10.0.0.11", "subnet-a"),
+                broker(2, "10.0.1.12", "subnet-b"),
+                broker(3, "10.0.0.13", "subnet-a")));
+
+        assertEquals(Arrays.asList("subnet-a", "subnet-b"), topology.getSubnets());
+    }
+
+    @Test
+    void brokerWithoutEndpointsHasNoEndpoint() {
+        BrokerTopology topology = BrokerTopology.fromNodes(Arrays.asList(new NodeInfo().withNodeType("BROKER").withBrokerNodeInfo(new BrokerNodeInfo()
+                .withBrokerId(1.0)
+                .withClientVpcIpAddress("10.0.0.11")
+                .withClientSubnet("subnet-a"))));
+
+        assertTrue(topology.getBroker(1).getEndpoints().isEmpty());
+        assertNull(topology.getBroker(1).getEndpoint());
+    }
+
+    @Test
+    void subsetKeepsSubnetsOfWholeCluster() {
+        BrokerTopology topology = BrokerTopology.fromNodes(Arrays.asList(
+                broker(1, "10.0.0.11", "subnet-a"),
+                broker(2, "10.0.1.12", "subnet-b")));
+        BrokerTopology subset = topology.subset(Arrays.asList(2, 4));
+
+        assertEquals(Arrays.asList(2), new ArrayList<>(subset.getBrokerIds()));
+        assertEquals(Arrays.asList("subnet-a", "subnet-b"), subset.getSubnets());
+    }
+
+    @Test
+    void resourceNamesHoldIpAndBrokerId() {
+        BrokerTopology.Broker broker = BrokerTopology.fromNodes(Arrays.asList(broker(1, "10.0.0.11", "subnet-a"))).getBroker(1);
+
+        assertEquals("NLB-MSKBroker-10-0-0-11-1", broker.getNlbName());
+        assertEquals("TG-MSKBroker-10-0-0-11-1", broker.getTargetGroupName());
+    }
+
+    @Test
+    void resourceNamesFitElasticLoadBalancingLimit() {
+        BrokerTopology.Broker broker = BrokerTopology.fromNodes(Arrays.asList(broker(99, "10.255.255.255", "subnet-a"))).getBroker(99);
+
+        assertTrue(broker.getNlbName().length() <= 32);
+        assertTrue(broker.getTargetGroupName().length() <= 32);
+    }
+
+    @Test
+    void firstTargetGroupKeepsSinglePortName() {
+        Map<String, PortMapping> targetGroupNames = BrokerTopology.getTargetGroupNames("NLB-MSKBroker-10-0-0-11-1",
+                PortMapping.parseAll(Arrays.asList("9096:9096", "9098:19098")));
+        assertEquals(Arrays.asList("TG-MSKBroker-10-0-0-11-1", "TG-MSK-10-0-0-11-1-19098"), new ArrayList<>(targetGroupNames.keySet()));
+        assertEquals(19098, targetGroupNames.get("TG-MSK-10-0-0-11-1-19098").getListenerPort());
+    }
+
+    @Test
+    void targetGroupNamesFitElasticLoadBalancingLimit() {
+        Map<String, PortMapping> targetGroupNames = BrokerTopology.getTargetGroupNames("NLB-MSKBroker-10-255-255-255-99",
+                PortMapping.parseAll(Arrays.asList("9094", "9096:65535", "9098:10000")));
+        assertEquals(3, targetGroupNames.size());
+        targetGroupNames.keySet().forEach(i -> assertTrue(i.length() <= 32, i));
+    }
+}
@@ -0,0 +1,151 @@
+package com.amazonaws.kafka.samples;
+
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServer;
+import org.apache.kafka.clients.CommonClientConfigs;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.common.utils.Time;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import scala.Option;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the probe against two in-process brokers, each reached through a {@link TcpProxy} that stands in for its NLB.
+ * The brokers advertise the proxies' ports to clients, as MSK brokers advertise the ports of their endpoints, and talk
+ * to each other on a listener of their own.
+ */
+class DataPathProbeTest {
+
+    private static final int BROKERS = 2;
+    private static final long TIMEOUT_MILLIS = 30000L;
+
+    private Path directory;
+    private ServerCnxnFactory zooKeeper;
+    private final List<KafkaServer> brokers = new ArrayList<>();
+    private final List<TcpProxy> proxies = new ArrayList<>();
+    private final int[] externalPorts = new int[BROKERS];
+    private final int[] proxyPorts = new int[BROKERS];
+    private RunMetrics metrics;
+    private Clients clients;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @BeforeEach
+    void startCluster() throws Exception {
+        directory = Files.createTempDirectory("data-path-probe");
+        File zooKeeperDirectory = directory.resolve("zookeeper").toFile();
+        zooKeeper = ServerCnxnFactory.createFactory(new InetSocketAddress("localhost", 0), 16);
+        zooKeeper.startup(new ZooKeeperServer(zooKeeperDirectory, zooKeeperDirectory, 500));
+
+        int[] internalPorts = new int[BROKERS];
+        for (int i = 0; i < BROKERS; i++) {
+            internalPorts[i] = freePort();
+            externalPorts[i] = freePort();
+            proxyPorts[i] = freePort();
+            Properties properties = new Properties();
+            properties.put("broker.id", Integer.toString(i + 1));
+            properties.put("zookeeper.connect", "localhost:" + zooKeeper.getLocalPort());
+            properties.put("listeners", String.format("INTERNAL://localhost:%d,EXTERNAL://localhost:%d", internalPorts[i], externalPorts[i]));
+            properties.put("advertised.listeners", String.format("INTERNAL://localhost:%d,EXTERNAL://localhost:%d", internalPorts[i], proxyPorts[i]));
+            properties.put("listener.security.protocol.map", "INTERNAL:PLAINTEXT,EXTERNAL:PLAINTEXT");
+            properties.put("inter.broker.listener.name", "INTERNAL");
+            properties.put("log.dirs", directory.resolve("broker-" + (i + 1)).toString());
+            properties.put("offsets.topic.replication.factor", "1");
+            properties.put("group.initial.rebalance.delay.ms", "0");
+            properties.put("auto.create.topics.enable", "false");
+            properties.put("controlled.shutdown.enable", "false");
+            KafkaServer broker = new KafkaServer(new KafkaConfig(properties), Time.SYSTEM, Option.empty(), false);
+            broker.startup();
+            brokers.add(broker);
+        }
+        waitForBrokers(internalPorts[0]);
+
+        metrics = new RunMetrics();
+        clients = new Clients(metrics);
+    }
+
+    /**
+     * Waits until the first broker's metadata lists every broker, so the probe sees the whole cluster.
+     */
+    private static void waitForBrokers(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        try (AdminClient adminClient = AdminClient.create(Collections.singletonMap(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG, "localhost:" + port))) {
+            while (adminClient.describeCluster().nodes().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).size() < BROKERS) {
+                assertTrue(System.currentTimeMillis() < deadline, "Brokers did not all register");
+                Thread.sleep(100L);
+            }
+        }
+    }
+
+    @AfterEach
+    void stopCluster() throws IOException {
+        if (clients != null) {
+            clients.close();
+        }
+        for (TcpProxy proxy : proxies) {
+            proxy.close();
+        }
+        brokers.forEach(i -> {
+            i.shutdown();
+            i.awaitShutdown();
+        });
+        zooKeeper.shutdown();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(i -> i.toFile().delete());
+        }
+    }
+
+    /**
+     * Starts the proxy of each broker's endpoint, forwarding to the broker at the same index of targets.
+     */
+    private void startProxies(int... targets) throws IOException {
+        for (int i = 0; i < BROKERS; i++) {
+            proxies.add(new TcpProxy(proxyPorts[i], "localhost", externalPorts[targets[i]], 0L));
+        }
+    }
+
+    private void probe() throws Exception {
+        new DataPathProbe(clients, metrics).run("localhost:" + proxyPorts[0], Collections.emptyMap(), "privatelink-probe", 10, 128, TIMEOUT_MILLIS, 0L);
+    }
+
+    @Test
+    void probePassesWhenEveryEndpointReachesItsBroker() throws Exception {
+        startProxies(0, 1);
+        probe();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), metrics.getProbePercentiles("produce", 0.5).keySet());
+    }
+
+    @Test
+    void probeFailsForEndpointThatReachesAnotherBroker() throws Exception {
+        // Broker 2's endpoint forwards to broker 1, as an NLB whose target group holds the wrong broker's address would.
+        startProxies(0, 0);
+        RuntimeException e = assertThrows(RuntimeException.class, this::probe);
+        assertEquals(String.format("Brokers %s are not reachable through their endpoints \n", Collections.singleton(2)), e.getMessage());
+    }
+}
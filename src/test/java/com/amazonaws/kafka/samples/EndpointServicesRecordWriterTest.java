@@ -0,0 +1,351 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ItemResponse;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactGetItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactGetItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EndpointServicesRecordWriterTest {
+
+    private static final String CLUSTER_ARN = "arn:aws:kafka:us-east-1:123456789012:cluster/test/1";
+    private static final String OTHER_CLUSTER_ARN = "arn:aws:kafka:us-east-1:123456789012:cluster/test/2";
+    private static final String TABLE_NAME = "endpoint-services";
+
+    /**
+     * Keeps the table in memory, applies every put of a transaction without checking its condition and records the
+     * transactions, so the tests can check the versions, sequences and conditions the writer sends. Single item reads,
+     * counter adds and puts are applied too, for the writes made without a transaction.
+     */
+    private static class RecordingDynamoDB extends AbstractAmazonDynamoDBAsync {
+
+        private final Map<Map<String, AttributeValue>, Map<String, AttributeValue>> items = new HashMap<>();
+        private final List<TransactWriteItemsRequest> writes = new ArrayList<>();
+        private int cancelledWrites;
+
+        @Override
+        public synchronized Future<TransactGetItemsResult> transactGetItemsAsync(TransactGetItemsRequest request,
+                                                                               AsyncHandler<TransactGetItemsRequest, TransactGetItemsResult> asyncHandler) {
+            List<ItemResponse> responses = new ArrayList<>();
+            request.getTransactItems().forEach(i -> responses.add(new ItemResponse().withItem(items.get(i.getGet().getKey()))));
+            TransactGetItemsResult result = new TransactGetItemsResult().withResponses(responses);
+            asyncHandler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public synchronized Future<TransactWriteItemsResult> transactWriteItemsAsync(TransactWriteItemsRequest request,
+                                                                                   AsyncHandler<TransactWriteItemsRequest, TransactWriteItemsResult> asyncHandler) {
+            writes.add(request);
+            if (cancelledWrites > 0) {
+                cancelledWrites--;
+                TransactionCanceledException exception = new TransactionCanceledException("Transaction cancelled [ConditionalCheckFailed]");
+                asyncHandler.onError(exception);
+                return Util.failedFuture(exception);
+            }
+            request.getTransactItems().forEach(i -> items.put(key(i.getPut().getItem()), i.getPut().getItem()));
+            TransactWriteItemsResult result = new TransactWriteItemsResult();
+            asyncHandler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public synchronized Future<GetItemResult> getItemAsync(GetItemRequest request, AsyncHandler<GetItemRequest, GetItemResult> asyncHandler) {
+            GetItemResult result = new GetItemResult().withItem(items.get(request.getKey()));
+            asyncHandler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public synchronized Future<UpdateItemResult> updateItemAsync(UpdateItemRequest request, AsyncHandler<UpdateItemRequest, UpdateItemResult> asyncHandler) {
+            Map<String, AttributeValue> item = items.computeIfAbsent(request.getKey(), k -> new HashMap<>(request.getKey()));
+            long changeSequence = item.containsKey("Change_Sequence") ? Long.parseLong(item.get("Change_Sequence").getN()) : 0L;
+            item.put("Change_Sequence", new AttributeValue().withN(Long.toString(changeSequence + 1)));
+            UpdateItemResult result = new UpdateItemResult().withAttributes(Collections.singletonMap("Change_Sequence", item.get("Change_Sequence")));
+            asyncHandler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public synchronized Future<PutItemResult> putItemAsync(PutItemRequest request, AsyncHandler<PutItemRequest, PutItemResult> asyncHandler) {
+            put(request.getItem());
+            PutItemResult result = new PutItemResult();
+            asyncHandler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        void put(Map<String, AttributeValue> item) {
+            items.put(key(item), item);
+        }
+    }
+
+    private static Map<String, AttributeValue> key(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("Cluster_ARN", item.get("Cluster_ARN"));
+        key.put("Broker_ID", item.get("Broker_ID"));
+        return key;
+    }
+
+    private static Map<String, AttributeValue> record(int brokerId, String serviceName) {
+        return record(CLUSTER_ARN, brokerId, serviceName);
+    }
+
+    private static Map<String, AttributeValue> record(String clusterArn, int brokerId, String serviceName) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("Cluster_ARN", new AttributeValue().withS(clusterArn));
+        item.put("Broker_ID", new AttributeValue().withN(Integer.toString(brokerId)));
+        item.put("Service_Endpoint_DNS", new AttributeValue().withS(serviceName));
+        return item;
+    }
+
+    private static Map<String, AttributeValue> stored(Map<String, AttributeValue> content, long version, long changeSequence) {
+        Map<String, AttributeValue> item = new HashMap<>(content);
+        item.put("Version", new AttributeValue().withN(Long.toString(version)));
+        item.put("Updated_At", new AttributeValue().withS("2024-01-01T00:00:00Z"));
+        item.put("Change_Sequence", new AttributeValue().withN(Long.toString(changeSequence)));
+        item.put("Change_Feed", content.get("Cluster_ARN"));
+        return item;
+    }
+
+    private static Map<String, AttributeValue> tombstone(Map<String, AttributeValue> content, long version, long changeSequence) {
+        Map<String, AttributeValue> item = stored(content, version, changeSequence);
+        item.put("Deleted", new AttributeValue().withBOOL(true));
+        return item;
+    }
+
+    private static Map<String, AttributeValue> counter(long changeSequence) {
+        Map<String, AttributeValue> item = ManageEndpointServicesInfo.getChangeSequenceKey(CLUSTER_ARN);
+        item.put("Change_Sequence", new AttributeValue().withN(Long.toString(changeSequence)));
+        return item;
+    }
+
+    private static WriteRequest put(Map<String, AttributeValue> item) {
+        return new WriteRequest().withPutRequest(new PutRequest().withItem(item));
+    }
+
+    private static WriteRequest delete(Map<String, AttributeValue> item) {
+        return new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(key(item)));
+    }
+
+    private static List<Put> recordPuts(TransactWriteItemsRequest request) {
+        return request.getTransactItems().stream()
+                .map(TransactWriteItem::getPut)
+                .filter(i -> !i.getItem().get("Cluster_ARN").getS().startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    private static Put counterPut(TransactWriteItemsRequest request) {
+        return request.getTransactItems().stream()
+                .map(TransactWriteItem::getPut)
+                .filter(i -> i.getItem().get("Cluster_ARN").getS().startsWith("#"))
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Test
+    void newRecordIsWritten() {
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        assertEquals(item, EndpointServicesRecordWriter.getChangedItem(put(item), null));
+    }
+
+    @Test
+    void unchangedRewriteIsSkipped() {
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        assertNull(EndpointServicesRecordWriter.getChangedItem(put(item), stored(item, 3, 7)));
+    }
+
+    @Test
+    void preVersioningRowIsComparedByContent() {
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        assertNull(EndpointServicesRecordWriter.getChangedItem(put(item), new HashMap<>(item)));
+
+        Map<String, AttributeValue> changed = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-2");
+        assertEquals(changed, EndpointServicesRecordWriter.getChangedItem(put(changed), new HashMap<>(item)));
+    }
+
+    @Test
+    void putAfterTombstoneIsWritten() {
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        Map<String, AttributeValue> written = EndpointServicesRecordWriter.getChangedItem(put(item), tombstone(item, 2, 5));
+        assertEquals(item, written);
+        assertFalse(written.containsKey("Deleted"));
+    }
+
+    @Test
+    void deleteLeavesTombstoneWithStoredContent() {
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        Map<String, AttributeValue> written = EndpointServicesRecordWriter.getChangedItem(delete(item), stored(item, 2, 5));
+        Map<String, AttributeValue> expected = new HashMap<>(item);
+        expected.put("Deleted", new AttributeValue().withBOOL(true));
+        assertEquals(expected, written);
+    }
+
+    @Test
+    void deleteOfMissingOrDeletedRowIsSkipped() {
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        assertNull(EndpointServicesRecordWriter.getChangedItem(delete(item), null));
+        assertNull(EndpointServicesRecordWriter.getChangedItem(delete(item), tombstone(item, 2, 5)));
+    }
+
+    @Test
+    void firstWriteCreatesRecordsAndCounter() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME);
+        writer.add(record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1"));
+        writer.add(record(2, "com.amazonaws.vpce.us-east-1.vpce-svc-2"));
+        writer.close().join();
+
+        assertEquals(1, dynamoDB.writes.size());
+        List<Put> puts = recordPuts(dynamoDB.writes.get(0));
+        assertEquals(2, puts.size());
+        puts.forEach(i -> {
+            assertEquals("1", i.getItem().get("Version").getN());
+            assertEquals("attribute_not_exists(Version)", i.getConditionExpression());
+            assertEquals(CLUSTER_ARN, i.getItem().get("Change_Feed").getS());
+        });
+        assertEquals(new HashSet<>(Arrays.asList("1", "2")), puts.stream().map(i -> i.getItem().get("Change_Sequence").getN()).collect(Collectors.toSet()));
+        Put counter = counterPut(dynamoDB.writes.get(0));
+        assertEquals("2", counter.getItem().get("Change_Sequence").getN());
+        assertEquals("attribute_not_exists(Change_Sequence)", counter.getConditionExpression());
+    }
+
+    @Test
+    void changedRecordGetsNextVersionAndSequence() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.put(counter(5));
+        dynamoDB.put(stored(record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1"), 3, 5));
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME);
+        writer.add(record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-9"));
+        writer.close().join();
+
+        Put put = recordPuts(dynamoDB.writes.get(0)).get(0);
+        assertEquals("4", put.getItem().get("Version").getN());
+        assertEquals("6", put.getItem().get("Change_Sequence").getN());
+        assertEquals("Version = :version", put.getConditionExpression());
+        assertEquals("3", put.getExpressionAttributeValues().get(":version").getN());
+        Put counter = counterPut(dynamoDB.writes.get(0));
+        assertEquals("6", counter.getItem().get("Change_Sequence").getN());
+        assertEquals("Change_Sequence = :changeSequence", counter.getConditionExpression());
+        assertEquals("5", counter.getExpressionAttributeValues().get(":changeSequence").getN());
+    }
+
+    @Test
+    void unchangedRecordsWriteNothing() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        Map<String, AttributeValue> item = record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1");
+        dynamoDB.put(counter(5));
+        dynamoDB.put(stored(item, 3, 5));
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME);
+        writer.add(item);
+        writer.close().join();
+
+        assertTrue(dynamoDB.writes.isEmpty());
+    }
+
+    @Test
+    void batchesAllocateConsecutiveSequences() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME);
+        for (int i = 1; i <= 30; i++) {
+            writer.add(record(i, "com.amazonaws.vpce.us-east-1.vpce-svc-" + i));
+        }
+        writer.close().join();
+
+        assertEquals(2, dynamoDB.writes.size());
+        Set<Long> sequences = dynamoDB.writes.stream()
+                .flatMap(i -> recordPuts(i).stream())
+                .map(i -> Long.parseLong(i.getItem().get("Change_Sequence").getN()))
+                .collect(Collectors.toSet());
+        assertEquals(30, sequences.size());
+        assertEquals(1L, (long) sequences.stream().min(Long::compare).get());
+        assertEquals(30L, (long) sequences.stream().max(Long::compare).get());
+        assertEquals("30", counterPut(dynamoDB.writes.get(1)).getItem().get("Change_Sequence").getN());
+        assertEquals("24", counterPut(dynamoDB.writes.get(1)).getExpressionAttributeValues().get(":changeSequence").getN());
+    }
+
+    @Test
+    void cancelledTransactionIsReadAndRetried() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.cancelledWrites = 1;
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME);
+        writer.add(record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1"));
+        writer.close().join();
+
+        assertEquals(2, dynamoDB.writes.size());
+        assertEquals("1", dynamoDB.items.get(key(record(1, ""))).get("Version").getN());
+    }
+
+    @Test
+    void clustersHaveTheirOwnCounters() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.put(counter(5));
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME);
+        writer.add(record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1"));
+        writer.add(record(OTHER_CLUSTER_ARN, 1, "com.amazonaws.vpce.us-east-1.vpce-svc-2"));
+        writer.close().join();
+
+        assertEquals(2, dynamoDB.writes.size());
+        Put first = recordPuts(dynamoDB.writes.get(0)).get(0);
+        assertEquals("6", first.getItem().get("Change_Sequence").getN());
+        assertEquals(ManageEndpointServicesInfo.getChangeSequenceKey(CLUSTER_ARN).get("Cluster_ARN"), counterPut(dynamoDB.writes.get(0)).getItem().get("Cluster_ARN"));
+        Put second = recordPuts(dynamoDB.writes.get(1)).get(0);
+        assertEquals("1", second.getItem().get("Change_Sequence").getN());
+        assertEquals(OTHER_CLUSTER_ARN, second.getItem().get("Change_Feed").getS());
+        assertEquals(ManageEndpointServicesInfo.getChangeSequenceKey(OTHER_CLUSTER_ARN).get("Cluster_ARN"), counterPut(dynamoDB.writes.get(1)).getItem().get("Cluster_ARN"));
+    }
+
+    @Test
+    void recordsAreWrittenWithoutTransactionOnceRetriesRunOut() {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.cancelledWrites = 2;
+        dynamoDB.put(counter(5));
+        dynamoDB.put(stored(record(2, "com.amazonaws.vpce.us-east-1.vpce-svc-2"), 3, 5));
+        EndpointServicesRecordWriter writer = new EndpointServicesRecordWriter(dynamoDB, TABLE_NAME, 2);
+        writer.add(record(1, "com.amazonaws.vpce.us-east-1.vpce-svc-1"));
+        writer.add(record(2, "com.amazonaws.vpce.us-east-1.vpce-svc-9"));
+        writer.close().join();
+
+        assertEquals(2, dynamoDB.writes.size());
+        Map<String, AttributeValue> first = dynamoDB.items.get(key(record(1, "")));
+        assertEquals("1", first.get("Version").getN());
+        assertEquals("6", first.get("Change_Sequence").getN());
+        assertEquals(CLUSTER_ARN, first.get("Change_Feed").getS());
+        Map<String, AttributeValue> second = dynamoDB.items.get(key(record(2, "")));
+        assertEquals("4", second.get("Version").getN());
+        assertEquals("7", second.get("Change_Sequence").getN());
+        assertEquals("com.amazonaws.vpce.us-east-1.vpce-svc-9", second.get("Service_Endpoint_DNS").getS());
+        assertEquals("7", dynamoDB.items.get(ManageEndpointServicesInfo.getChangeSequenceKey(CLUSTER_ARN)).get("Change_Sequence").getN());
+    }
+}
@@ -0,0 +1,104 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared behaviour of the local AWS stand-ins: every call takes latencyMillis, a throttleRate share of the attempts
+ * is throttled and retried after a backoff (as the SDK would), and each operation is counted.
+ */
+class FakeAws {
+
+    final long latencyMillis;
+    final long provisioningMillis;
+    final double throttleRate;
+
+    private final Map<String, AtomicLong> apiCalls = new ConcurrentHashMap<>();
+    private final AtomicLong throttles = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(8, r -> {
+        Thread thread = new Thread(r, "fake-aws");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    FakeAws(long latencyMillis, long provisioningMillis, double throttleRate) {
+        this.latencyMillis = latencyMillis;
+        this.provisioningMillis = provisioningMillis;
+        this.throttleRate = throttleRate;
+    }
+
+    <REQUEST extends AmazonWebServiceRequest, RESULT> Future<RESULT> call(String operation, REQUEST request, AsyncHandler<REQUEST, RESULT> handler, Callable<RESULT> action) {
+        CompletableFuture<RESULT> future = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            try {
+                RESULT result = action.call();
+                if (handler != null) {
+                    handler.onSuccess(request, result);
+                }
+                future.complete(result);
+            } catch (Exception e) {
+                if (handler != null) {
+                    handler.onError(e);
+                }
+                future.completeExceptionally(e);
+            }
+        }, delay(operation), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    <RESULT> RESULT callSync(String operation, Callable<RESULT> action) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay(operation));
+            return action.call();
+        } catch (AmazonServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Latency of one call, including the backoff of any throttled attempts before it went through.
+     */
+    private long delay(String operation) {
+        apiCalls.computeIfAbsent(operation, i -> new AtomicLong()).incrementAndGet();
+        long delay = latencyMillis;
+        int attempt = 0;
+        while (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate && attempt < 10) {
+            throttles.incrementAndGet();
+            delay += latencyMillis + Util.backoffWithJitter(attempt++, 100L, 20000L);
+        }
+        return delay;
+    }
+
+    long totalApiCalls() {
+        return apiCalls.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    String report() {
+        Map<String, Long> counts = new TreeMap<>();
+        apiCalls.forEach((k, v) -> counts.put(k, v.get()));
+        return String.format("api calls: %d, throttled attempts: %d, by operation: %s", totalApiCalls(), throttles.get(), counts);
+    }
+
+    void resetCounters() {
+        apiCalls.clear();
+        throttles.set(0);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
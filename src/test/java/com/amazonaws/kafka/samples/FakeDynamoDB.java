@@ -0,0 +1,106 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory DynamoDB stand-in for the single endpoint services table, keyed on Cluster_ARN and Broker_ID. Transactions
+ * only understand the conditions the record writer uses: attribute_not_exists(a) and a = :value.
+ */
+class FakeDynamoDB extends AbstractAmazonDynamoDBAsync {
+
+    private final FakeAws aws;
+    private final Map<String, TableDescription> tables = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, Map<String, AttributeValue>>> items = new ConcurrentHashMap<>();
+
+    FakeDynamoDB(FakeAws aws) {
+        this.aws = aws;
+    }
+
+    @Override
+    public DescribeTableResult describeTable(DescribeTableRequest request) {
+        return aws.callSync("dynamodb:DescribeTable", () -> {
+            TableDescription tableDescription = tables.get(request.getTableName());
+            if (tableDescription == null) {
+                throw new ResourceNotFoundException(String.format("Requested resource not found: Table: %s not found", request.getTableName()));
+            }
+            return new DescribeTableResult().withTable(tableDescription);
+        });
+    }
+
+    @Override
+    public CreateTableResult createTable(CreateTableRequest request) {
+        return aws.callSync("dynamodb:CreateTable", () -> {
+            TableDescription tableDescription = new TableDescription()
+                    .withTableName(request.getTableName())
+                    .withKeySchema(request.getKeySchema())
+                    .withAttributeDefinitions(request.getAttributeDefinitions())
+                    .withGlobalSecondaryIndexes(request.getGlobalSecondaryIndexes().stream()
+                            .map(i -> new GlobalSecondaryIndexDescription().withIndexName(i.getIndexName()).withKeySchema(i.getKeySchema()).withIndexStatus(IndexStatus.ACTIVE))
+                            .collect(Collectors.toList()))
+                    .withTableStatus(TableStatus.ACTIVE);
+            if (tables.putIfAbsent(request.getTableName(), tableDescription) != null) {
+                throw new ResourceInUseException(String.format("Table already exists: %s", request.getTableName()));
+            }
+            return new CreateTableResult().withTableDescription(tableDescription);
+        });
+    }
+
+    @Override
+    public Future<TransactGetItemsResult> transactGetItemsAsync(TransactGetItemsRequest request, AsyncHandler<TransactGetItemsRequest, TransactGetItemsResult> asyncHandler) {
+        return aws.call("dynamodb:TransactGetItems", request, asyncHandler, () -> {
+            synchronized (items) {
+                List<ItemResponse> responses = new ArrayList<>();
+                request.getTransactItems().forEach(i -> responses.add(new ItemResponse().withItem(getItem(i.getGet().getKey()))));
+                return new TransactGetItemsResult().withResponses(responses);
+            }
+        });
+    }
+
+    @Override
+    public Future<TransactWriteItemsResult> transactWriteItemsAsync(TransactWriteItemsRequest request, AsyncHandler<TransactWriteItemsRequest, TransactWriteItemsResult> asyncHandler) {
+        return aws.call("dynamodb:TransactWriteItems", request, asyncHandler, () -> {
+            synchronized (items) {
+                for (TransactWriteItem i : request.getTransactItems()) {
+                    Put put = i.getPut();
+                    if (!matches(getItem(put.getItem()), put.getConditionExpression(), put.getExpressionAttributeValues())) {
+                        throw new TransactionCanceledException("Transaction cancelled, please refer cancellation reasons for specific reasons [ConditionalCheckFailed]");
+                    }
+                }
+                request.getTransactItems().forEach(i -> items.computeIfAbsent(i.getPut().getItem().get("Cluster_ARN").getS(), k -> new ConcurrentHashMap<>())
+                        .put(Integer.valueOf(i.getPut().getItem().get("Broker_ID").getN()), i.getPut().getItem()));
+                return new TransactWriteItemsResult();
+            }
+        });
+    }
+
+    private Map<String, AttributeValue> getItem(Map<String, AttributeValue> key) {
+        return items.getOrDefault(key.get("Cluster_ARN").getS(), Collections.emptyMap()).get(Integer.valueOf(key.get("Broker_ID").getN()));
+    }
+
+    private static boolean matches(Map<String, AttributeValue> item, String condition, Map<String, AttributeValue> values) {
+        if (condition.startsWith("attribute_not_exists(")) {
+            return item == null || !item.containsKey(condition.substring("attribute_not_exists(".length(), condition.length() - 1));
+        }
+        String[] comparison = condition.split(" = ");
+        return item != null && values.get(comparison[1]).equals(item.get(comparison[0]));
+    }
+
+    @Override
+    public QueryResult query(QueryRequest request) {
+        return aws.callSync("dynamodb:Query", () -> {
+            String clusterArn = request.getExpressionAttributeValues().values().iterator().next().getS();
+            List<Map<String, AttributeValue>> found = new ArrayList<>(items.getOrDefault(clusterArn, Collections.emptyMap()).values());
+            return new QueryResult().withItems(found).withCount(found.size());
+        });
+    }
+}
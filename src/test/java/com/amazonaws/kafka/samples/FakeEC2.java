@@ -0,0 +1,116 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.ec2.AbstractAmazonEC2Async;
+import com.amazonaws.services.ec2.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory EC2 stand-in covering subnets and VPC endpoint services.
+ */
+class FakeEC2 extends AbstractAmazonEC2Async {
+
+    private final FakeAws aws;
+    private final Map<String, ServiceConfiguration> serviceConfigurations = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> allowedPrincipals = new ConcurrentHashMap<>();
+
+    FakeEC2(FakeAws aws) {
+        this.aws = aws;
+    }
+
+    @Override
+    public DescribeSubnetsResult describeSubnets(DescribeSubnetsRequest request) {
+        return aws.callSync("ec2:DescribeSubnets", () -> {
+            List<Subnet> subnets = new ArrayList<>();
+            request.getFilters().stream().filter(i -> "subnet-id".equals(i.getName())).flatMap(i -> i.getValues().stream())
+                    .forEach(i -> subnets.add(new Subnet().withSubnetId(i).withVpcId("vpc-0fake")));
+            return new DescribeSubnetsResult().withSubnets(subnets);
+        });
+    }
+
+    @Override
+    public Future<CreateVpcEndpointServiceConfigurationResult> createVpcEndpointServiceConfigurationAsync(CreateVpcEndpointServiceConfigurationRequest request, AsyncHandler<CreateVpcEndpointServiceConfigurationRequest, CreateVpcEndpointServiceConfigurationResult> asyncHandler) {
+        return aws.call("ec2:CreateVpcEndpointServiceConfiguration", request, asyncHandler, () -> {
+            String serviceId = "vpce-svc-" + UUID.randomUUID().toString().replace("-", "").substring(0, 17);
+            ServiceConfiguration serviceConfiguration = new ServiceConfiguration()
+                    .withServiceId(serviceId)
+                    .withServiceName("com.amazonaws.vpce.us-east-1." + serviceId)
+                    .withServiceState(ServiceState.Available)
+                    .withAcceptanceRequired(request.getAcceptanceRequired())
+                    .withNetworkLoadBalancerArns(request.getNetworkLoadBalancerArns());
+            serviceConfigurations.put(serviceId, serviceConfiguration);
+            allowedPrincipals.put(serviceId, new ArrayList<>());
+            return new CreateVpcEndpointServiceConfigurationResult().withServiceConfiguration(serviceConfiguration).withClientToken(request.getClientToken());
+        });
+    }
+
+    @Override
+    public Future<ModifyVpcEndpointServicePermissionsResult> modifyVpcEndpointServicePermissionsAsync(ModifyVpcEndpointServicePermissionsRequest request, AsyncHandler<ModifyVpcEndpointServicePermissionsRequest, ModifyVpcEndpointServicePermissionsResult> asyncHandler) {
+        return aws.call("ec2:ModifyVpcEndpointServicePermissions", request, asyncHandler, () -> {
+            List<String> principals = allowedPrincipals.get(request.getServiceId());
+            if (principals == null) {
+                throw new AmazonEC2Exception(String.format("The VpcEndpointService Id '%s' does not exist", request.getServiceId()));
+            }
+            synchronized (principals) {
+                principals.addAll(request.getAddAllowedPrincipals());
+                principals.removeAll(request.getRemoveAllowedPrincipals());
+            }
+            return new ModifyVpcEndpointServicePermissionsResult().withReturnValue(true);
+        });
+    }
+
+    @Override
+    public Future<DescribeVpcEndpointServicePermissionsResult> describeVpcEndpointServicePermissionsAsync(DescribeVpcEndpointServicePermissionsRequest request, AsyncHandler<DescribeVpcEndpointServicePermissionsRequest, DescribeVpcEndpointServicePermissionsResult> asyncHandler) {
+        return aws.call("ec2:DescribeVpcEndpointServicePermissions", request, asyncHandler, () -> {
+            List<String> principals = allowedPrincipals.get(request.getServiceId());
+            if (principals == null) {
+                throw new AmazonEC2Exception(String.format("The VpcEndpointService Id '%s' does not exist", request.getServiceId()));
+            }
+            List<AllowedPrincipal> found = new ArrayList<>();
+            synchronized (principals) {
+                principals.forEach(i -> found.add(new AllowedPrincipal().withPrincipal(i).withPrincipalType(PrincipalType.Account)));
+            }
+            return new DescribeVpcEndpointServicePermissionsResult().withAllowedPrincipals(found);
+        });
+    }
+
+    private DescribeVpcEndpointServiceConfigurationsResult describe(DescribeVpcEndpointServiceConfigurationsRequest request) {
+        List<ServiceConfiguration> found = new ArrayList<>();
+        request.getFilters().stream().filter(i -> "service-id".equals(i.getName())).flatMap(i -> i.getValues().stream())
+                .map(serviceConfigurations::get)
+                .filter(i -> i != null)
+                .forEach(found::add);
+        return new DescribeVpcEndpointServiceConfigurationsResult().withServiceConfigurations(found);
+    }
+
+    @Override
+    public DescribeVpcEndpointServiceConfigurationsResult describeVpcEndpointServiceConfigurations(DescribeVpcEndpointServiceConfigurationsRequest request) {
+        return aws.callSync("ec2:DescribeVpcEndpointServiceConfigurations", () -> describe(request));
+    }
+
+    @Override
+    public Future<DescribeVpcEndpointServiceConfigurationsResult> describeVpcEndpointServiceConfigurationsAsync(DescribeVpcEndpointServiceConfigurationsRequest request, AsyncHandler<DescribeVpcEndpointServiceConfigurationsRequest, DescribeVpcEndpointServiceConfigurationsResult> asyncHandler) {
+        return aws.call("ec2:DescribeVpcEndpointServiceConfigurations", request, asyncHandler, () -> describe(request));
+    }
+
+    @Override
+    public Future<DeleteVpcEndpointServiceConfigurationsResult> deleteVpcEndpointServiceConfigurationsAsync(DeleteVpcEndpointServiceConfigurationsRequest request, AsyncHandler<DeleteVpcEndpointServiceConfigurationsRequest, DeleteVpcEndpointServiceConfigurationsResult> asyncHandler) {
+        return aws.call("ec2:DeleteVpcEndpointServiceConfigurations", request, asyncHandler, () -> {
+            List<UnsuccessfulItem> unsuccessful = new ArrayList<>();
+            for (String serviceId : request.getServiceIds()) {
+                if (serviceConfigurations.remove(serviceId) == null) {
+                    unsuccessful.add(new UnsuccessfulItem().withResourceId(serviceId)
+                            .withError(new UnsuccessfulItemError().withCode("InvalidVpcEndpointService.NotFound").withMessage(String.format("The VpcEndpointService Id '%s' does not exist", serviceId))));
+                }
+                allowedPrincipals.remove(serviceId);
+            }
+            return new DeleteVpcEndpointServiceConfigurationsResult().withUnsuccessful(unsuccessful);
+        });
+    }
+}
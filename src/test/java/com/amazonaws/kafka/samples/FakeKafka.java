@@ -0,0 +1,58 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.kafka.AbstractAWSKafkaAsync;
+import com.amazonaws.services.kafka.model.BrokerNodeInfo;
+import com.amazonaws.services.kafka.model.ListNodesRequest;
+import com.amazonaws.services.kafka.model.ListNodesResult;
+import com.amazonaws.services.kafka.model.NodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * MSK stand-in describing a cluster of the given number of brokers spread over three client subnets. Nodes are listed
+ * in pages of at most MaxResults, as ListNodes does. The cluster can be resized, and a broker moved to another IP, between calls.
+ */
+class FakeKafka extends AbstractAWSKafkaAsync {
+
+    private static final int DEFAULT_MAX_RESULTS = 10;
+
+    private final FakeAws aws;
+    private final Map<Integer, String> movedBrokers = new ConcurrentHashMap<>();
+    private volatile int brokers;
+
+    FakeKafka(FakeAws aws, int brokers) {
+        this.aws = aws;
+        this.brokers = brokers;
+    }
+
+    void setBrokers(int brokers) {
+        this.brokers = brokers;
+    }
+
+    void moveBroker(int brokerId, String ip) {
+        movedBrokers.put(brokerId, ip);
+    }
+
+    @Override
+    public Future<ListNodesResult> listNodesAsync(ListNodesRequest request, AsyncHandler<ListNodesRequest, ListNodesResult> asyncHandler) {
+        return aws.call("kafka:ListNodes", request, asyncHandler, () -> {
+            int first = request.getNextToken() != null ? Integer.parseInt(request.getNextToken()) : 1;
+            int last = Math.min(brokers, first + (request.getMaxResults() != null ? request.getMaxResults() : DEFAULT_MAX_RESULTS) - 1);
+            List<NodeInfo> nodeInfoList = new ArrayList<>();
+            for (int i = first; i <= last; i++) {
+                String ip = movedBrokers.getOrDefault(i, String.format("10.0.%d.%d", (i - 1) % 3, 10 + i));
+                nodeInfoList.add(new NodeInfo().withNodeType("BROKER").withBrokerNodeInfo(new BrokerNodeInfo()
+                        .withBrokerId((double) i)
+                        .withClientSubnet("subnet-0fake" + (i - 1) % 3)
+                        .withClientVpcIpAddress(ip)
+                        .withEndpoints(String.format("b-%d.fake.abc123.c2.kafka.us-east-1.amazonaws.com", i))));
+            }
+            return new ListNodesResult().withNodeInfoList(nodeInfoList).withNextToken(last < brokers ? Integer.toString(last + 1) : null);
+        });
+    }
+}
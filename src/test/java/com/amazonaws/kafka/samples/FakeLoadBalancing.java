@@ -0,0 +1,194 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.elasticloadbalancingv2.AbstractAmazonElasticLoadBalancingAsync;
+import com.amazonaws.services.elasticloadbalancingv2.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory ELBv2 stand-in. NLBs stay Provisioning for provisioningMillis after they are created.
+ */
+class FakeLoadBalancing extends AbstractAmazonElasticLoadBalancingAsync {
+
+    private static final String ARN_PREFIX = "arn:aws:elasticloadbalancing:us-east-1:123456789012:";
+
+    private final FakeAws aws;
+    private final Map<String, LoadBalancer> loadBalancers = new ConcurrentHashMap<>();
+    private final Map<String, Long> createdAt = new ConcurrentHashMap<>();
+    private final Map<String, TargetGroup> targetGroups = new ConcurrentHashMap<>();
+    private final Map<String, Set<TargetDescription>> targets = new ConcurrentHashMap<>();
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
+
+    FakeLoadBalancing(FakeAws aws) {
+        this.aws = aws;
+    }
+
+    private LoadBalancer withState(LoadBalancer loadBalancer) {
+        boolean provisioned = System.currentTimeMillis() - createdAt.get(loadBalancer.getLoadBalancerArn()) >= aws.provisioningMillis;
+        return loadBalancer.clone().withState(new LoadBalancerState().withCode(provisioned ? LoadBalancerStateEnum.Active : LoadBalancerStateEnum.Provisioning));
+    }
+
+    private LoadBalancer findLoadBalancer(String arn) {
+        LoadBalancer loadBalancer = loadBalancers.get(arn);
+        if (loadBalancer == null) {
+            throw new LoadBalancerNotFoundException(String.format("Load balancer '%s' not found", arn));
+        }
+        return loadBalancer;
+    }
+
+    private TargetGroup findTargetGroup(String arn) {
+        TargetGroup targetGroup = targetGroups.get(arn);
+        if (targetGroup == null) {
+            throw new TargetGroupNotFoundException(String.format("Target group '%s' not found", arn));
+        }
+        return targetGroup;
+    }
+
+    @Override
+    public Future<CreateLoadBalancerResult> createLoadBalancerAsync(CreateLoadBalancerRequest request, AsyncHandler<CreateLoadBalancerRequest, CreateLoadBalancerResult> asyncHandler) {
+        return aws.call("elbv2:CreateLoadBalancer", request, asyncHandler, () -> {
+            LoadBalancer loadBalancer = loadBalancers.values().stream().filter(i -> i.getLoadBalancerName().equals(request.getName())).findFirst().orElseGet(() -> {
+                String arn = ARN_PREFIX + "loadbalancer/net/" + request.getName() + "/" + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+                LoadBalancer created = new LoadBalancer().withLoadBalancerArn(arn).withLoadBalancerName(request.getName()).withType(request.getType()).withScheme(request.getScheme());
+                createdAt.put(arn, System.currentTimeMillis());
+                loadBalancers.put(arn, created);
+                return created;
+            });
+            return new CreateLoadBalancerResult().withLoadBalancers(withState(loadBalancer));
+        });
+    }
+
+    @Override
+    public Future<ModifyLoadBalancerAttributesResult> modifyLoadBalancerAttributesAsync(ModifyLoadBalancerAttributesRequest request, AsyncHandler<ModifyLoadBalancerAttributesRequest, ModifyLoadBalancerAttributesResult> asyncHandler) {
+        return aws.call("elbv2:ModifyLoadBalancerAttributes", request, asyncHandler, () -> {
+            findLoadBalancer(request.getLoadBalancerArn());
+            return new ModifyLoadBalancerAttributesResult().withAttributes(request.getAttributes());
+        });
+    }
+
+    @Override
+    public Future<DescribeLoadBalancersResult> describeLoadBalancersAsync(DescribeLoadBalancersRequest request, AsyncHandler<DescribeLoadBalancersRequest, DescribeLoadBalancersResult> asyncHandler) {
+        return aws.call("elbv2:DescribeLoadBalancers", request, asyncHandler, () -> {
+            List<LoadBalancer> found = new ArrayList<>();
+            request.getLoadBalancerArns().forEach(i -> found.add(withState(findLoadBalancer(i))));
+            for (String name : request.getNames()) {
+                found.add(withState(loadBalancers.values().stream().filter(i -> i.getLoadBalancerName().equals(name)).findFirst()
+                        .orElseThrow(() -> new LoadBalancerNotFoundException(String.format("Load balancers '[%s]' not found", name)))));
+            }
+            return new DescribeLoadBalancersResult().withLoadBalancers(found);
+        });
+    }
+
+    @Override
+    public Future<DeleteLoadBalancerResult> deleteLoadBalancerAsync(DeleteLoadBalancerRequest request, AsyncHandler<DeleteLoadBalancerRequest, DeleteLoadBalancerResult> asyncHandler) {
+        return aws.call("elbv2:DeleteLoadBalancer", request, asyncHandler, () -> {
+            loadBalancers.remove(request.getLoadBalancerArn());
+            listeners.values().removeIf(i -> i.getLoadBalancerArn().equals(request.getLoadBalancerArn()));
+            return new DeleteLoadBalancerResult();
+        });
+    }
+
+    @Override
+    public Future<CreateTargetGroupResult> createTargetGroupAsync(CreateTargetGroupRequest request, AsyncHandler<CreateTargetGroupRequest, CreateTargetGroupResult> asyncHandler) {
+        return aws.call("elbv2:CreateTargetGroup", request, asyncHandler, () -> {
+            TargetGroup targetGroup = targetGroups.values().stream().filter(i -> i.getTargetGroupName().equals(request.getName())).findFirst().orElseGet(() -> {
+                String arn = ARN_PREFIX + "targetgroup/" + request.getName() + "/" + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+                TargetGroup created = new TargetGroup().withTargetGroupArn(arn).withTargetGroupName(request.getName()).withPort(request.getPort()).withProtocol(request.getProtocol()).withVpcId(request.getVpcId());
+                targets.put(arn, ConcurrentHashMap.newKeySet());
+                targetGroups.put(arn, created);
+                return created;
+            });
+            return new CreateTargetGroupResult().withTargetGroups(targetGroup);
+        });
+    }
+
+    @Override
+    public Future<DescribeTargetGroupsResult> describeTargetGroupsAsync(DescribeTargetGroupsRequest request, AsyncHandler<DescribeTargetGroupsRequest, DescribeTargetGroupsResult> asyncHandler) {
+        return aws.call("elbv2:DescribeTargetGroups", request, asyncHandler, () -> {
+            List<TargetGroup> found = new ArrayList<>();
+            for (String name : request.getNames()) {
+                found.add(targetGroups.values().stream().filter(i -> i.getTargetGroupName().equals(name)).findFirst()
+                        .orElseThrow(() -> new TargetGroupNotFoundException(String.format("One or more target groups not found: %s", name))));
+            }
+            return new DescribeTargetGroupsResult().withTargetGroups(found);
+        });
+    }
+
+    @Override
+    public Future<DeleteTargetGroupResult> deleteTargetGroupAsync(DeleteTargetGroupRequest request, AsyncHandler<DeleteTargetGroupRequest, DeleteTargetGroupResult> asyncHandler) {
+        return aws.call("elbv2:DeleteTargetGroup", request, asyncHandler, () -> {
+            boolean inUse = listeners.values().stream().flatMap(i -> i.getDefaultActions().stream()).anyMatch(i -> request.getTargetGroupArn().equals(i.getTargetGroupArn()));
+            if (inUse) {
+                throw new ResourceInUseException(String.format("Target group '%s' is currently in use by a listener or a rule", request.getTargetGroupArn()));
+            }
+            targetGroups.remove(request.getTargetGroupArn());
+            targets.remove(request.getTargetGroupArn());
+            return new DeleteTargetGroupResult();
+        });
+    }
+
+    @Override
+    public Future<RegisterTargetsResult> registerTargetsAsync(RegisterTargetsRequest request, AsyncHandler<RegisterTargetsRequest, RegisterTargetsResult> asyncHandler) {
+        return aws.call("elbv2:RegisterTargets", request, asyncHandler, () -> {
+            findTargetGroup(request.getTargetGroupArn());
+            targets.get(request.getTargetGroupArn()).addAll(request.getTargets());
+            return new RegisterTargetsResult();
+        });
+    }
+
+    @Override
+    public Future<DeregisterTargetsResult> deregisterTargetsAsync(DeregisterTargetsRequest request, AsyncHandler<DeregisterTargetsRequest, DeregisterTargetsResult> asyncHandler) {
+        return aws.call("elbv2:DeregisterTargets", request, asyncHandler, () -> {
+            findTargetGroup(request.getTargetGroupArn());
+            targets.get(request.getTargetGroupArn()).removeAll(request.getTargets());
+            return new DeregisterTargetsResult();
+        });
+    }
+
+    @Override
+    public Future<DescribeTargetHealthResult> describeTargetHealthAsync(DescribeTargetHealthRequest request, AsyncHandler<DescribeTargetHealthRequest, DescribeTargetHealthResult> asyncHandler) {
+        return aws.call("elbv2:DescribeTargetHealth", request, asyncHandler, () -> {
+            findTargetGroup(request.getTargetGroupArn());
+            return new DescribeTargetHealthResult().withTargetHealthDescriptions(targets.get(request.getTargetGroupArn()).stream()
+                    .map(i -> new TargetHealthDescription().withTarget(i).withTargetHealth(new TargetHealth().withState(TargetHealthStateEnum.Healthy)))
+                    .collect(Collectors.toList()));
+        });
+    }
+
+    @Override
+    public Future<CreateListenerResult> createListenerAsync(CreateListenerRequest request, AsyncHandler<CreateListenerRequest, CreateListenerResult> asyncHandler) {
+        return aws.call("elbv2:CreateListener", request, asyncHandler, () -> {
+            LoadBalancer loadBalancer = findLoadBalancer(request.getLoadBalancerArn());
+            String arn = ARN_PREFIX + "listener/net/" + loadBalancer.getLoadBalancerName() + "/" + UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+            Listener listener = new Listener().withListenerArn(arn).withLoadBalancerArn(request.getLoadBalancerArn()).withPort(request.getPort()).withProtocol(request.getProtocol()).withDefaultActions(request.getDefaultActions());
+            listeners.put(arn, listener);
+            return new CreateListenerResult().withListeners(listener);
+        });
+    }
+
+    @Override
+    public Future<DescribeListenersResult> describeListenersAsync(DescribeListenersRequest request, AsyncHandler<DescribeListenersRequest, DescribeListenersResult> asyncHandler) {
+        return aws.call("elbv2:DescribeListeners", request, asyncHandler, () -> {
+            findLoadBalancer(request.getLoadBalancerArn());
+            return new DescribeListenersResult().withListeners(listeners.values().stream().filter(i -> i.getLoadBalancerArn().equals(request.getLoadBalancerArn())).collect(Collectors.toList()));
+        });
+    }
+
+    @Override
+    public Future<DeleteListenerResult> deleteListenerAsync(DeleteListenerRequest request, AsyncHandler<DeleteListenerRequest, DeleteListenerResult> asyncHandler) {
+        return aws.call("elbv2:DeleteListener", request, asyncHandler, () -> {
+            if (listeners.remove(request.getListenerArn()) == null) {
+                throw new ListenerNotFoundException(String.format("Listener '%s' not found", request.getListenerArn()));
+            }
+            return new DeleteListenerResult();
+        });
+    }
+}
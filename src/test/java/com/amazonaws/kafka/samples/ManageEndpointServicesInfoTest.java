@@ -0,0 +1,55 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.junit.jupiter.api.Test;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ManageEndpointServicesInfoTest {
+
+    private static final Instant SETTLED = Instant.parse("2024-01-01T00:10:00Z");
+
+    private static EndpointServiceRecord change(int brokerId, long changeSequence, String updatedAt) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("Cluster_ARN", new AttributeValue().withS("arn:aws:kafka:us-east-1:123456789012:cluster/test/1"));
+        item.put("Broker_ID", new AttributeValue().withN(Integer.toString(brokerId)));
+        item.put("Change_Sequence", new AttributeValue().withN(Long.toString(changeSequence)));
+        if (updatedAt != null) {
+            item.put("Updated_At", new AttributeValue().withS(updatedAt));
+        }
+        return EndpointServiceRecord.fromItem(item);
+    }
+
+    @Test
+    void cursorStaysWithoutChanges() {
+        assertEquals(7L, ManageEndpointServicesInfo.getSettledCursor(Collections.emptyList(), 7L, SETTLED));
+    }
+
+    @Test
+    void cursorMovesToLastSettledChange() {
+        assertEquals(9L, ManageEndpointServicesInfo.getSettledCursor(Arrays.asList(
+                change(1, 8, "2024-01-01T00:05:00Z"),
+                change(2, 9, "2024-01-01T00:10:00Z")), 7L, SETTLED));
+    }
+
+    @Test
+    void cursorStopsAtFirstUnsettledChange() {
+        // The change after the unsettled one is old enough, but an earlier sequence may still be missing from the index.
+        assertEquals(8L, ManageEndpointServicesInfo.getSettledCursor(Arrays.asList(
+                change(1, 8, "2024-01-01T00:05:00Z"),
+                change(2, 9, "2024-01-01T00:10:01Z"),
+                change(3, 10, "2024-01-01T00:05:00Z")), 7L, SETTLED));
+    }
+
+    @Test
+    void cursorStopsAtChangeWithoutUpdateTime() {
+        assertEquals(7L, ManageEndpointServicesInfo.getSettledCursor(Arrays.asList(
+                change(1, 8, null),
+                change(2, 9, "2024-01-01T00:05:00Z")), 7L, SETTLED));
+    }
+}
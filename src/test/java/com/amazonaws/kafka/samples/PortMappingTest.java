@@ -0,0 +1,61 @@
+package com.amazonaws.kafka.samples;
+
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PortMappingTest {
+
+    private static String toString(List<PortMapping> portMappings) {
+        return portMappings.stream().map(PortMapping::toString).collect(Collectors.joining(","));
+    }
+
+    @Test
+    void parseReadsTargetAndListenerPort() {
+        PortMapping portMapping = PortMapping.parse(" 9096:19096 ");
+        assertEquals(9096, portMapping.getTargetPort());
+        assertEquals(19096, portMapping.getListenerPort());
+    }
+
+    @Test
+    void parseUsesSinglePortForBoth() {
+        PortMapping portMapping = PortMapping.parse("9098");
+        assertEquals(9098, portMapping.getTargetPort());
+        assertEquals(9098, portMapping.getListenerPort());
+    }
+
+    @Test
+    void parseRejectsInvalidMappings() {
+        for (String mapping : Arrays.asList("", "tls", "9096:", ":9096", "9096:9096:9096", "0:9096", "9096:65536", "-1", "9096:sasl")) {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> PortMapping.parse(mapping));
+            assertEquals(String.format("Invalid port mapping %s. Use targetPort:listenerPort, e.g. 9096:9096. \n", mapping), e.getMessage());
+        }
+    }
+
+    @Test
+    void parseAllKeepsOrder() {
+        assertEquals("9098:9098,9096:19096,9094:9094", toString(PortMapping.parseAll(Arrays.asList("9098", "9096:19096", "9094:9094"))));
+    }
+
+    @Test
+    void parseAllRejectsListenerPortMappedTwice() {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> PortMapping.parseAll(Arrays.asList("9096:9096", "9098:9096")));
+        assertEquals("Listener port 9096 is mapped more than once \n", e.getMessage());
+    }
+
+    @Test
+    void parseAllAllowsTargetPortMappedTwice() {
+        assertEquals("9096:9096,9096:19096", toString(PortMapping.parseAll(Arrays.asList("9096:9096", "9096:19096"))));
+    }
+
+    @Test
+    void attributeValueRoundTripKeepsOrder() {
+        List<PortMapping> portMappings = PortMapping.parseAll(Arrays.asList("9098:19098", "9096:9096", "9094:29094"));
+        assertEquals(toString(portMappings), toString(PortMapping.fromAttributeValue(PortMapping.toAttributeValue(portMappings))));
+        assertEquals("19098", PortMapping.toAttributeValue(portMappings).getL().get(0).getM().get("Listener_Port").getN());
+    }
+}
@@ -0,0 +1,155 @@
+package com.amazonaws.kafka.samples;
+
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.ec2.model.DeleteVpcEndpointServiceConfigurationsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reconciles a cluster held by the in-memory stand-ins, changes the cluster or its resources and checks that the next
+ * reconcile creates, replaces, retargets or deletes only what changed.
+ */
+class ReconcilerTest {
+
+    private static final String TABLE_NAME = "Broker_Endpoint_Services";
+    private static final String CLUSTER_ARN = "arn:aws:kafka:us-east-1:123456789012:cluster/fake/00000000-0000-0000-0000-000000000000-1";
+    private static final List<String> ALLOWED_PRINCIPALS = Collections.singletonList("arn:aws:iam::210987654321:root");
+    private static final List<PortMapping> PORT_MAPPINGS = PortMapping.parseAll(Collections.singletonList("9094"));
+
+    private FakeAws aws;
+    private FakeKafka kafka;
+    private FakeEC2 ec2;
+    private NLB nlb;
+    private LoadBalancerWaiter lbWaiter;
+    private ServiceEndpoint serviceEndpoint;
+    private ManageEndpointServicesInfo endpointServicesInfo;
+    private Reconciler reconciler;
+
+    @BeforeEach
+    void setUp() {
+        aws = new FakeAws(0L, 0L, 0.0);
+        RunMetrics metrics = new RunMetrics();
+        MetadataCache cache = new MetadataCache(0L, null);
+        RunJournal journal = new RunJournal(null, false);
+        FakeLoadBalancing lbClient = new FakeLoadBalancing(aws);
+        kafka = new FakeKafka(aws, 3);
+        ec2 = new FakeEC2(aws);
+        nlb = new NLB(lbClient, metrics, cache, journal);
+        lbWaiter = new LoadBalancerWaiter(lbClient, cache);
+        endpointServicesInfo = new ManageEndpointServicesInfo(new FakeDynamoDB(aws), metrics);
+        serviceEndpoint = new ServiceEndpoint(ec2, lbWaiter, endpointServicesInfo, metrics, cache, journal);
+        endpointServicesInfo.createTableIfNotExists(TABLE_NAME, BillingMode.PAY_PER_REQUEST, 0L, 0L);
+        reconciler = new Reconciler(new MSK(kafka, metrics, cache), nlb, serviceEndpoint, endpointServicesInfo, metrics);
+    }
+
+    @AfterEach
+    void tearDown() {
+        lbWaiter.shutdown();
+        aws.shutdown();
+    }
+
+    private Map<Integer, EndpointServiceRecord> reconcile() throws Exception {
+        reconciler.reconcile(CLUSTER_ARN, TABLE_NAME, ALLOWED_PRINCIPALS, PORT_MAPPINGS, 10, false, false);
+        return endpointServicesInfo.getClusterRecords(TABLE_NAME, CLUSTER_ARN);
+    }
+
+    private String getNlbArn(EndpointServiceRecord record) throws Exception {
+        return nlb.getNLBArnIndex(Collections.singleton(record.getNlbName())).get(record.getNlbName());
+    }
+
+    @Test
+    void newBrokersAreCreated() throws Exception {
+        Map<Integer, EndpointServiceRecord> records = reconcile();
+
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), records.keySet());
+        for (EndpointServiceRecord record : records.values()) {
+            assertTrue(serviceEndpoint.getAvailableServiceIds(Collections.singleton(record.getServiceId())).contains(record.getServiceId()));
+            assertEquals(0, serviceEndpoint.syncPermissions(Collections.singleton(record.getServiceId()), ALLOWED_PRINCIPALS));
+        }
+    }
+
+    @Test
+    void unchangedClusterIsLeftAlone() throws Exception {
+        Map<Integer, EndpointServiceRecord> first = reconcile();
+        Map<Integer, EndpointServiceRecord> second = reconcile();
+
+        for (int brokerId : first.keySet()) {
+            assertEquals(first.get(brokerId).getServiceId(), second.get(brokerId).getServiceId());
+            assertEquals(first.get(brokerId).getVersion(), second.get(brokerId).getVersion());
+        }
+    }
+
+    @Test
+    void movedBrokerIsRetargeted() throws Exception {
+        Map<Integer, EndpointServiceRecord> first = reconcile();
+        kafka.moveBroker(2, "10.0.1.99");
+        Map<Integer, EndpointServiceRecord> second = reconcile();
+
+        assertEquals(first.get(2).getServiceId(), second.get(2).getServiceId());
+        String targetGroupArn = nlb.getTargetGroupArnIndex(second.get(2).getTargetGroupNames()).get(second.get(2).getTargetGroupName());
+        List<TargetDescription> targets = nlb.getTargets(targetGroupArn).join();
+        assertEquals(1, targets.size());
+        assertEquals("10.0.1.99", targets.get(0).getId());
+        assertEquals(Integer.valueOf(9094), targets.get(0).getPort());
+    }
+
+    @Test
+    void brokerWithoutEndpointServiceIsReplaced() throws Exception {
+        Map<Integer, EndpointServiceRecord> first = reconcile();
+        String firstNlbArn = getNlbArn(first.get(1));
+        ec2.deleteVpcEndpointServiceConfigurationsAsync(new DeleteVpcEndpointServiceConfigurationsRequest().withServiceIds(first.get(1).getServiceId()), null).get();
+        Map<Integer, EndpointServiceRecord> second = reconcile();
+
+        assertNotEquals(first.get(1).getServiceId(), second.get(1).getServiceId());
+        assertTrue(serviceEndpoint.getAvailableServiceIds(Collections.singleton(second.get(1).getServiceId())).contains(second.get(1).getServiceId()));
+        // The leftover NLB is deleted before the broker is created again, rather than picked up by name.
+        assertNotEquals(firstNlbArn, getNlbArn(second.get(1)));
+        assertEquals(first.get(2).getServiceId(), second.get(2).getServiceId());
+        assertEquals(first.get(3).getServiceId(), second.get(3).getServiceId());
+    }
+
+    @Test
+    void removedBrokerIsDeleted() throws Exception {
+        Map<Integer, EndpointServiceRecord> first = reconcile();
+        kafka.setBrokers(2);
+        Map<Integer, EndpointServiceRecord> second = reconcile();
+
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), second.keySet());
+        assertTrue(serviceEndpoint.getAvailableServiceIds(Collections.singleton(first.get(3).getServiceId())).isEmpty());
+        assertTrue(nlb.getNLBArnIndex(Collections.singleton(first.get(3).getNlbName())).isEmpty());
+        assertTrue(nlb.getTargetGroupArnIndex(first.get(3).getTargetGroupNames()).isEmpty());
+    }
+
+    @Test
+    void addedBrokerIsCreated() throws Exception {
+        Map<Integer, EndpointServiceRecord> first = reconcile();
+        kafka.setBrokers(4);
+        Map<Integer, EndpointServiceRecord> second = reconcile();
+
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)), second.keySet());
+        for (int brokerId : first.keySet()) {
+            assertEquals(first.get(brokerId).getServiceId(), second.get(brokerId).getServiceId());
+        }
+    }
+
+    @Test
+    void sharedListenerPortAboveRangeFailsBeforeCreatingNlb() throws Exception {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> reconciler.reconcile(CLUSTER_ARN, TABLE_NAME, ALLOWED_PRINCIPALS,
+                PortMapping.parseAll(Collections.singletonList("9094:65534")), 10, true, false));
+
+        assertEquals("Broker 3 would get listener port 65536 on the shared NLB, above 65535. Use a listener port of at most 65533. \n", e.getMessage());
+        assertTrue(nlb.getNLBArnIndex(Collections.singleton(NLB.getSharedNLBName(CLUSTER_ARN))).isEmpty());
+    }
+}
@@ -0,0 +1,180 @@
+package com.amazonaws.kafka.samples;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RunJournalTest {
+
+    private static final String CLUSTER_ARN = "arn:aws:kafka:us-east-1:123456789012:cluster/test/1";
+    private static final String RESOURCE = RunJournal.broker(1);
+
+    private Path directory;
+    private String fileName;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("run-journal");
+        fileName = directory.resolve("journal.log").toString();
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(i -> i.toFile().delete());
+        }
+    }
+
+    private static CompletableFuture<String> createNlb(RunJournal journal, AtomicInteger calls, AtomicReference<String> token, CompletableFuture<String> result) {
+        return journal.step(RESOURCE, "create_nlb", "NLB-1", () -> {
+            calls.incrementAndGet();
+            token.set(journal.token(RESOURCE, "create_nlb", "NLB-1"));
+            return result;
+        });
+    }
+
+    @Test
+    void doneStepIsSkippedOnceOnResume() {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        createNlb(first, new AtomicInteger(), new AtomicReference<>(), CompletableFuture.completedFuture("arn-1")).join();
+        first.close();
+
+        RunJournal resumed = new RunJournal(fileName, true);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("arn-1", createNlb(resumed.forCluster(CLUSTER_ARN), calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-2")).join());
+        assertEquals(0, calls.get());
+        assertEquals(1, resumed.getSkipped());
+
+        // Skipped only once: a resource deleted later in the run is created again.
+        assertEquals("arn-2", createNlb(resumed.forCluster(CLUSTER_ARN), calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-2")).join());
+        assertEquals(1, calls.get());
+        resumed.close();
+    }
+
+    @Test
+    void doneStepOfAnotherClusterIsNotSkipped() {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        createNlb(first, new AtomicInteger(), new AtomicReference<>(), CompletableFuture.completedFuture("arn-1")).join();
+        first.close();
+
+        RunJournal resumed = new RunJournal(fileName, true);
+        AtomicInteger calls = new AtomicInteger();
+        createNlb(resumed.forCluster(CLUSTER_ARN + "-other"), calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-2")).join();
+        assertEquals(1, calls.get());
+        resumed.close();
+    }
+
+    @Test
+    void startedStepKeepsItsTokenOnResume() {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        AtomicReference<String> firstToken = new AtomicReference<>();
+        // Never completes, as if the run crashed during the call.
+        createNlb(first, new AtomicInteger(), firstToken, new CompletableFuture<>());
+        first.close();
+
+        RunJournal resumed = new RunJournal(fileName, true).forCluster(CLUSTER_ARN);
+        AtomicReference<String> resumedToken = new AtomicReference<>();
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("arn-1", createNlb(resumed, calls, resumedToken, CompletableFuture.completedFuture("arn-1")).join());
+        assertEquals(1, calls.get());
+        assertEquals(firstToken.get(), resumedToken.get());
+
+        // The next attempt, e.g. after --watch saw the resource deleted, gets a new token.
+        AtomicReference<String> nextToken = new AtomicReference<>();
+        createNlb(resumed, calls, nextToken, CompletableFuture.completedFuture("arn-2")).join();
+        assertNotEquals(firstToken.get(), nextToken.get());
+        resumed.close();
+    }
+
+    @Test
+    void startedStepGetsNewTokenWithoutResume() {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        AtomicReference<String> firstToken = new AtomicReference<>();
+        createNlb(first, new AtomicInteger(), firstToken, new CompletableFuture<>());
+        first.close();
+
+        RunJournal fresh = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        AtomicReference<String> freshToken = new AtomicReference<>();
+        createNlb(fresh, new AtomicInteger(), freshToken, CompletableFuture.completedFuture("arn-1")).join();
+        assertNotEquals(firstToken.get(), freshToken.get());
+        fresh.close();
+    }
+
+    @Test
+    void failedStepRunsAgainWithNewTokenOnResume() {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        AtomicReference<String> firstToken = new AtomicReference<>();
+        createNlb(first, new AtomicInteger(), firstToken, Util.failedFuture(new RuntimeException("LimitExceeded"))).handle((i, e) -> null).join();
+        first.close();
+
+        RunJournal resumed = new RunJournal(fileName, true).forCluster(CLUSTER_ARN);
+        AtomicReference<String> resumedToken = new AtomicReference<>();
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("arn-1", createNlb(resumed, calls, resumedToken, CompletableFuture.completedFuture("arn-1")).join());
+        assertEquals(1, calls.get());
+        assertNotEquals(firstToken.get(), resumedToken.get());
+        resumed.close();
+    }
+
+    @Test
+    void lineCutShortByCrashIsSkipped() throws IOException {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        createNlb(first, new AtomicInteger(), new AtomicReference<>(), CompletableFuture.completedFuture("arn-1")).join();
+        first.close();
+        Files.write(directory.resolve("journal.log"), Arrays.asList("{\"time\":\"2024-01-01T00:00:00Z\",\"cluster\":\"" + CLUSTER_ARN),
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        RunJournal resumed = new RunJournal(fileName, true);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("arn-1", createNlb(resumed.forCluster(CLUSTER_ARN), calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-2")).join());
+        assertEquals(0, calls.get());
+        resumed.close();
+    }
+
+    @Test
+    void journalOfPreviousRunIsMovedAside() throws IOException {
+        RunJournal first = new RunJournal(fileName, false).forCluster(CLUSTER_ARN);
+        createNlb(first, new AtomicInteger(), new AtomicReference<>(), CompletableFuture.completedFuture("arn-1")).join();
+        first.close();
+
+        RunJournal fresh = new RunJournal(fileName, false);
+        fresh.close();
+        assertEquals(0L, Files.size(directory.resolve("journal.log")));
+        assertTrue(new String(Files.readAllBytes(directory.resolve("journal.log.1")), StandardCharsets.UTF_8).contains("arn-1"));
+
+        // The moved journal can still be resumed from.
+        Files.move(directory.resolve("journal.log.1"), directory.resolve("journal.log"), StandardCopyOption.REPLACE_EXISTING);
+        RunJournal resumed = new RunJournal(fileName, true);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("arn-1", createNlb(resumed.forCluster(CLUSTER_ARN), calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-2")).join());
+        assertEquals(0, calls.get());
+        resumed.close();
+    }
+
+    @Test
+    void journalWithoutFileOnlyRunsSteps() {
+        RunJournal journal = new RunJournal(null, true).forCluster(CLUSTER_ARN);
+        AtomicInteger calls = new AtomicInteger();
+        createNlb(journal, calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-1")).join();
+        createNlb(journal, calls, new AtomicReference<>(), CompletableFuture.completedFuture("arn-1")).join();
+        assertEquals(2, calls.get());
+        assertEquals(0, journal.getSkipped());
+        journal.close();
+    }
+}
@@ -0,0 +1,92 @@
+package com.amazonaws.kafka.samples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for a broker's NLB listener: forwards every connection on a local port to the broker's address,
+ * optionally delaying each chunk of data by a fixed latency in each direction.
+ */
+class TcpProxy implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final String targetHost;
+    private final int targetPort;
+    private final long latencyMillis;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "tcp-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    TcpProxy(int listenPort, String targetHost, int targetPort, long latencyMillis) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress("localhost", listenPort));
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.latencyMillis = latencyMillis;
+        executor.execute(this::accept);
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket target = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                target.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(target);
+                executor.execute(() -> pipe(client, target));
+                executor.execute(() -> pipe(target, client));
+            } catch (IOException e) {
+                // Closed, or the broker refused the connection; the client sees its connection dropped either way.
+            }
+        }
+    }
+
+    private void pipe(Socket from, Socket to) {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Either side closed the connection.
+        } finally {
+            close(from);
+            close(to);
+        }
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sockets.forEach(this::close);
+        executor.shutdownNow();
+    }
+}